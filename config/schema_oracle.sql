@@ -13,8 +13,23 @@ end_time TIMESTAMP,
 destination_type VARCHAR(99) NOT NULL,
 destination_url VARCHAR(2000),
 status CLOB,
+priority VARCHAR(20),
+control_state VARCHAR(20),
+item_count NUMBER(10) DEFAULT 0,
+finished_item_count NUMBER(10) DEFAULT 0,
+queued_time TIMESTAMP,
+archive_time TIMESTAMP,
 PRIMARY KEY (MIGRATION_ID));
 
+-- the users a migration is listed for, one row per user id in migrated_by
+create table migration_owner (
+migration_id VARCHAR(99) NOT NULL,
+user_id VARCHAR(99) NOT NULL,
+PRIMARY KEY (migration_id, user_id));
+
+-- the migrations of a user are looked up by user id
+create index migration_owner_user on migration_owner (user_id, migration_id);
+
 create table migration_box_file (
 id	VARCHAR(99)    NOT NULL,
 migration_id VARCHAR(99) NOT NULL,
@@ -31,8 +46,25 @@ file_size number(10) NOT NULL,
 start_time TIMESTAMP,
 end_time TIMESTAMP,
 status CLOB,
+owner_node VARCHAR(99),
+lease_expiry TIMESTAMP,
+attempt_count NUMBER(10) DEFAULT 0,
+priority VARCHAR(20),
+next_attempt_time TIMESTAMP,
+last_error_code NUMBER(10),
+retry_count NUMBER(10) DEFAULT 0,
+outcome VARCHAR(20),
 PRIMARY KEY (id));
 
+-- pending files are fetched by start_time is null, ranked per migration, smallest file first
+create index migration_box_file_pending on migration_box_file (start_time, migration_id, file_size, id);
+
+-- finished files are counted by outcome when their migration finishes
+create index migration_box_file_outcome on migration_box_file (migration_id, outcome);
+
+-- the throughput of recently finished files is measured by end_time
+create index migration_box_file_finished on migration_box_file (end_time);
+
 create table migration_email_message (
 message_id	VARCHAR(150) NOT NULL,
 migration_id VARCHAR(99) NOT NULL,
@@ -42,8 +74,103 @@ json CLOB NOT NULL,
 start_time TIMESTAMP,
 end_time TIMESTAMP,
 status CLOB,
+owner_node VARCHAR(99),
+lease_expiry TIMESTAMP,
+attempt_count NUMBER(10) DEFAULT 0,
+priority VARCHAR(20),
+outcome VARCHAR(20),
 PRIMARY KEY (message_id));
 
+-- finished messages are counted by outcome when their migration finishes
+create index migration_email_message_outcome on migration_email_message (migration_id, outcome);
+
+-- the throughput of recently finished messages is measured by end_time
+create index migration_email_message_finished on migration_email_message (end_time);
+
+-- the items of migrations finished for the archive age, moved out of the tables above
+create table migration_box_file_history (
+id VARCHAR(99) NOT NULL,
+migration_id VARCHAR(99) NOT NULL,
+user_id VARCHAR(99) NOT NULL,
+box_folder_id VARCHAR(99) NOT NULL,
+type VARCHAR(99) NOT NULL,
+title VARCHAR(256) NOT NULL,
+web_link_url VARCHAR(2000),
+file_access_url VARCHAR(2000) NOT NULL,
+description VARCHAR(2000),
+author VARCHAR(2000) NOT NULL,
+copyright_alert VARCHAR(2000),
+file_size number(10) NOT NULL,
+start_time TIMESTAMP,
+end_time TIMESTAMP,
+status CLOB,
+owner_node VARCHAR(99),
+lease_expiry TIMESTAMP,
+attempt_count NUMBER(10) DEFAULT 0,
+priority VARCHAR(20),
+next_attempt_time TIMESTAMP,
+last_error_code NUMBER(10),
+retry_count NUMBER(10) DEFAULT 0,
+outcome VARCHAR(20),
+PRIMARY KEY (id));
+
+create index migration_box_file_history_mig on migration_box_file_history (migration_id, outcome);
+
+-- a message can be migrated again by a later migration of the site, so it is kept once per migration
+create table migration_email_message_history (
+message_id VARCHAR(150) NOT NULL,
+migration_id VARCHAR(99) NOT NULL,
+user_id VARCHAR(99) NOT NULL,
+google_group_id VARCHAR(99) NOT NULL,
+json CLOB NOT NULL,
+start_time TIMESTAMP,
+end_time TIMESTAMP,
+status CLOB,
+owner_node VARCHAR(99),
+lease_expiry TIMESTAMP,
+attempt_count NUMBER(10) DEFAULT 0,
+priority VARCHAR(20),
+outcome VARCHAR(20),
+PRIMARY KEY (migration_id, message_id));
+
+-- the items of a migration, whether archived or not, for reporting
+create view migration_box_file_all as
+select id, migration_id, user_id, box_folder_id, type, title, web_link_url, file_access_url, description, author,
+copyright_alert, file_size, start_time, end_time, status, outcome, owner_node, lease_expiry, attempt_count,
+next_attempt_time, last_error_code, retry_count, priority
+from migration_box_file
+union all
+select id, migration_id, user_id, box_folder_id, type, title, web_link_url, file_access_url, description, author,
+copyright_alert, file_size, start_time, end_time, status, outcome, owner_node, lease_expiry, attempt_count,
+next_attempt_time, last_error_code, retry_count, priority
+from migration_box_file_history;
+
+create view migration_email_message_all as
+select message_id, migration_id, user_id, google_group_id, json, start_time, end_time, status, outcome,
+owner_node, lease_expiry, attempt_count, priority
+from migration_email_message
+union all
+select message_id, migration_id, user_id, google_group_id, json, start_time, end_time, status, outcome,
+owner_node, lease_expiry, attempt_count, priority
+from migration_email_message_history;
+
+-- the schedule an admin sets for a bulk migration
+create table bulk_migration_schedule (
+bulk_migration_id VARCHAR(99) NOT NULL,
+time_windows VARCHAR(2000),
+max_concurrent_items NUMBER(10) DEFAULT 0,
+max_bytes_per_second NUMBER(19) DEFAULT 0,
+PRIMARY KEY (bulk_migration_id));
+
+-- the lease of the instance running the cluster-wide processing duties
+create table migration_leader_lease (
+lease_name VARCHAR(99) NOT NULL,
+owner_node VARCHAR(99),
+lease_expiry TIMESTAMP,
+PRIMARY KEY (lease_name));
+
+insert into migration_leader_lease (lease_name) values ('migration_processing');
+
 -- create table box_auth_user
 create table box_auth_user (
 user_id VARCHAR(99) NOT NULL,
@@ -0,0 +1,109 @@
+package edu.umich.its.cpm;
+
+/**
+ * AIMD (additive increase, multiplicative decrease) limit of in-flight requests
+ * against one destination
+ *
+ * Every successful request with acceptable latency raises the limit by
+ * 1/limit, i.e. by one after a full window of successes. A throttled or
+ * failed request (e.g. HTTP 429, 5xx or timeout), or a request slower than
+ * the latency threshold, cuts the limit by the backoff ratio. Only one cut
+ * happens per cooldown period, since requests already in flight report the
+ * same overload.
+ *
+ */
+public class AdaptiveConcurrencyLimit {
+
+	private final String name;
+
+	private final int minLimit;
+
+	private final int maxLimit;
+
+	// the limit is multiplied with this ratio on overload
+	private final double backoffRatio;
+
+	// requests slower than this count as overload
+	private final long latencyThresholdMillis;
+
+	// minimum time between two decreases
+	private final long cooldownMillis;
+
+	private double limit;
+
+	private long lastDecreaseTime = 0;
+
+	/**
+	 * @param name destination name, for reporting
+	 * @param minLimit
+	 * @param maxLimit
+	 * @param initialLimit
+	 * @param backoffRatio between 0 and 1
+	 * @param latencyThresholdMillis
+	 * @param cooldownMillis
+	 */
+	public AdaptiveConcurrencyLimit(String name, int minLimit, int maxLimit, int initialLimit,
+			double backoffRatio, long latencyThresholdMillis, long cooldownMillis) {
+		this.name = name;
+		this.minLimit = Math.max(1, minLimit);
+		this.maxLimit = Math.max(this.minLimit, maxLimit);
+		this.backoffRatio = backoffRatio > 0 && backoffRatio < 1 ? backoffRatio : 0.5;
+		this.latencyThresholdMillis = latencyThresholdMillis;
+		this.cooldownMillis = cooldownMillis;
+		this.limit = Math.max(this.minLimit, Math.min(this.maxLimit, initialLimit));
+	}
+
+	/**
+	 * record a successful request
+	 * @param latencyMillis
+	 */
+	public synchronized void onSuccess(long latencyMillis) {
+		if (latencyThresholdMillis > 0 && latencyMillis > latencyThresholdMillis)
+		{
+			// slow response is an early sign of overload
+			decrease();
+			return;
+		}
+		limit = Math.min(maxLimit, limit + 1.0 / limit);
+	}
+
+	/**
+	 * record a throttled or failed request
+	 */
+	public synchronized void onOverload() {
+		decrease();
+	}
+
+	private void decrease() {
+		long now = currentTimeMillis();
+		if (now - lastDecreaseTime < cooldownMillis)
+		{
+			return;
+		}
+		lastDecreaseTime = now;
+		limit = Math.max(minLimit, Math.floor(limit * backoffRatio));
+	}
+
+	/**
+	 * @return the current number of requests allowed in flight
+	 */
+	public synchronized int getLimit() {
+		return (int) limit;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getMinLimit() {
+		return minLimit;
+	}
+
+	public int getMaxLimit() {
+		return maxLimit;
+	}
+
+	protected long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+}
@@ -33,6 +33,31 @@ public class AttachmentHandler {
         this.env = env;
     }
 
+    // optional, limits the concurrent attachment downloads from CTools
+    private MigrationDependencyLimiter dependencyLimiter;
+
+    void setDependencyLimiter(MigrationDependencyLimiter dependencyLimiter) {
+        this.dependencyLimiter = dependencyLimiter;
+    }
+
+    // optional, counts the attachment content held in memory
+    private MigrationMemoryBudget memoryBudget;
+
+    // the attachment bytes added to the memory budget, to be released by the caller
+    private long bufferedBytes = 0;
+
+    // the attachment bytes covered by the reservation of the message, used up first
+    private long allowanceBytes = 0;
+
+    void setMemoryBudget(MigrationMemoryBudget memoryBudget) {
+        this.memoryBudget = memoryBudget;
+        this.allowanceBytes = memoryBudget.getMessageAttachmentBytes();
+    }
+
+    long getBufferedBytes() {
+        return bufferedBytes;
+    }
+
     public AttachmentHandler(HttpServletRequest req){
         this.request =req;
     }
@@ -50,6 +75,15 @@ public class AttachmentHandler {
         String sessionId = (String) sessionAttributes.get(Utils.SESSION_ID);
         HttpContext httpContext = (HttpContext) sessionAttributes.get("httpContext");
         HttpClient httpClient = HttpClientBuilder.create().build();
+        if (dependencyLimiter != null) {
+            try {
+                dependencyLimiter.acquire(MigrationDependencyLimiter.CTOOLS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                log.error("Interrupted while waiting to read the attachment content " + attachmentUrl);
+                return attachmentContent;
+            }
+        }
         try {
             HttpGet request = new HttpGet(attachmentUrl + "?_sessionId=" + sessionId);
             request.setHeader("Content-Type", "application/x-www-form-urlencoded");
@@ -60,12 +94,49 @@ public class AttachmentHandler {
                         "with status code %2$d ", attachmentUrl,statusCode ));
                 return attachmentContent;
             }
+            // reserve the declared size before reading the content into memory
+            long declaredBytes = Math.max(0L, response.getEntity().getContentLength());
+            reserveBytes(declaredBytes);
             attachmentContent = EntityUtils.toByteArray(response.getEntity());
+            // content beyond the declared size is only counted once read
+            addBufferedBytes(attachmentContent.length - declaredBytes);
 
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.error("Interrupted while waiting for memory to read the attachment content " + attachmentUrl);
         } catch (IOException e) {
             log.error("Failure in reading the attachment content for the Email Message" + e);
+        } finally {
+            if (dependencyLimiter != null) {
+                dependencyLimiter.release(MigrationDependencyLimiter.CTOOLS);
+            }
         }
         return attachmentContent;
     }
 
+    private void reserveBytes(long bytes) throws InterruptedException {
+        bytes = useAllowance(bytes);
+        if (memoryBudget != null && bytes > 0) {
+            memoryBudget.reserveAttachment(bytes);
+            bufferedBytes += bytes;
+        }
+    }
+
+    private void addBufferedBytes(long bytes) {
+        bytes = useAllowance(bytes);
+        if (memoryBudget != null && bytes > 0) {
+            memoryBudget.add(bytes);
+            bufferedBytes += bytes;
+        }
+    }
+
+    /**
+     * @return the bytes not covered by the reservation of the message
+     */
+    private long useAllowance(long bytes) {
+        long covered = Math.min(allowanceBytes, Math.max(0L, bytes));
+        allowanceBytes -= covered;
+        return bytes - covered;
+    }
+
 }
@@ -0,0 +1,74 @@
+package edu.umich.its.cpm;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * the schedule an admin sets for a bulk migration
+ * @see BulkMigrationThrottle
+ *
+ */
+@Entity
+@Table(name = "BULK_MIGRATION_SCHEDULE")
+public class BulkMigrationSchedule {
+
+	/**
+	 * Primary key field
+	 * the bulk migration id
+	 */
+	@Id
+	@Column(name = "BULK_MIGRATION_ID", columnDefinition = "VARCHAR(99) NOT NULL")
+	@Getter
+	@Setter
+	private String bulkMigrationId;
+
+	/**
+	 * comma separated HH:mm-HH:mm time windows, null for any time
+	 */
+	@Column(name = "TIME_WINDOWS", columnDefinition = "VARCHAR(2000)")
+	@Getter
+	@Setter
+	private String timeWindows;
+
+	/**
+	 * the most items in flight, 0 for no limit
+	 */
+	@Column(name = "MAX_CONCURRENT_ITEMS", columnDefinition = "NUMBER(10) DEFAULT 0")
+	@Getter
+	@Setter
+	private int maxConcurrentItems;
+
+	/**
+	 * the most bytes transferred per second, 0 for no limit
+	 */
+	@Column(name = "MAX_BYTES_PER_SECOND", columnDefinition = "NUMBER(19) DEFAULT 0")
+	@Getter
+	@Setter
+	private long maxBytesPerSecond;
+
+	protected BulkMigrationSchedule() {
+	}
+
+	public BulkMigrationSchedule(String bulkMigrationId, String timeWindows, int maxConcurrentItems, long maxBytesPerSecond) {
+		this.bulkMigrationId = bulkMigrationId;
+		this.timeWindows = timeWindows;
+		this.maxConcurrentItems = maxConcurrentItems;
+		this.maxBytesPerSecond = maxBytesPerSecond;
+	}
+
+	@Override
+	public String toString() {
+		String s = String
+				.format("BulkMigrationSchedule[bulkMigrationId=%s, "
+						+ "timeWindows='%s',"
+						+ "maxConcurrentItems='%s',"
+						+ "maxBytesPerSecond='%s',"
+						+ "]", bulkMigrationId, timeWindows, maxConcurrentItems, maxBytesPerSecond);
+		return s;
+	}
+}
@@ -0,0 +1,6 @@
+package edu.umich.its.cpm;
+
+import org.springframework.data.repository.CrudRepository;
+
+public interface BulkMigrationScheduleRepository extends CrudRepository<BulkMigrationSchedule, String> {
+}
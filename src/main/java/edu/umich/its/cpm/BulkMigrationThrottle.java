@@ -0,0 +1,170 @@
+package edu.umich.its.cpm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * the schedule of one bulk migration: the time windows it may run in,
+ * the most items it may have in flight, and the most bytes per second it may transfer
+ *
+ * time windows are given as comma separated HH:mm-HH:mm ranges in server time, e.g.
+ * "22:00-06:00,12:00-13:00"; a range ending before it starts wraps past midnight.
+ * No windows, no item limit (0) or no byte rate (0) mean no restriction.
+ * The byte rate is a token bucket holding one second worth of bytes; an item
+ * is admitted while the bucket is not empty, and may overdraw it, so that
+ * items larger than the rate still pass. The limits hold per CPM instance:
+ * each instance keeps its own bucket and counts its own items in flight.
+ *
+ */
+public class BulkMigrationThrottle {
+
+	private static final int MINUTES_PER_DAY = 24 * 60;
+
+	private final String timeWindows;
+
+	// start and end minute of the day of each window
+	private final List<int[]> windows = new ArrayList<int[]>();
+
+	private final int maxConcurrentItems;
+
+	private final long maxBytesPerSecond;
+
+	// bytes that may be transferred now; negative when overdrawn
+	private double tokens;
+
+	private long lastRefill = -1;
+
+	/**
+	 * @param timeWindows
+	 * @param maxConcurrentItems
+	 * @param maxBytesPerSecond
+	 * @throws IllegalArgumentException if the time windows cannot be parsed
+	 */
+	public BulkMigrationThrottle(String timeWindows, int maxConcurrentItems, long maxBytesPerSecond) {
+		this.timeWindows = timeWindows == null ? "" : timeWindows.trim();
+		this.maxConcurrentItems = Math.max(0, maxConcurrentItems);
+		this.maxBytesPerSecond = Math.max(0L, maxBytesPerSecond);
+		this.tokens = this.maxBytesPerSecond;
+		if (this.timeWindows.length() > 0)
+		{
+			for (String window : this.timeWindows.split(","))
+			{
+				String[] range = window.trim().split("-");
+				if (range.length != 2)
+				{
+					throw new IllegalArgumentException("time window should be HH:mm-HH:mm: " + window);
+				}
+				windows.add(new int[] { parseMinuteOfDay(range[0]), parseMinuteOfDay(range[1]) });
+			}
+		}
+	}
+
+	/**
+	 * @param minuteOfDay
+	 * @return true if the given time falls into one of the windows, or there are no windows
+	 */
+	public boolean isOpen(int minuteOfDay) {
+		if (windows.isEmpty())
+		{
+			return true;
+		}
+		for (int[] window : windows)
+		{
+			int start = window[0];
+			int end = window[1];
+			if (start <= end ? (minuteOfDay >= start && minuteOfDay < end)
+					: (minuteOfDay >= start || minuteOfDay < end))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param runningItems the items of the bulk migration in flight
+	 * @return true if another item may start
+	 */
+	public boolean hasFreeSlot(int runningItems) {
+		return maxConcurrentItems == 0 || runningItems < maxConcurrentItems;
+	}
+
+	/**
+	 * take the bytes of an item from the bucket, if it is not empty
+	 * @param bytes
+	 * @param nowMillis
+	 * @return true if the item may start
+	 */
+	public synchronized boolean tryConsume(long bytes, long nowMillis) {
+		if (maxBytesPerSecond == 0)
+		{
+			return true;
+		}
+		if (lastRefill >= 0 && nowMillis > lastRefill)
+		{
+			tokens = Math.min(maxBytesPerSecond, tokens + (nowMillis - lastRefill) * maxBytesPerSecond / 1000.0);
+		}
+		lastRefill = nowMillis;
+		if (tokens <= 0)
+		{
+			return false;
+		}
+		tokens -= bytes;
+		return true;
+	}
+
+	/**
+	 * put back the bytes of an item admitted but not started, e.g. claimed by another node meanwhile
+	 * @param bytes
+	 */
+	public synchronized void refund(long bytes) {
+		if (maxBytesPerSecond == 0)
+		{
+			return;
+		}
+		tokens = Math.min(maxBytesPerSecond, tokens + Math.max(0L, bytes));
+	}
+
+	/**
+	 * @return true if the throttle was created from the given settings
+	 */
+	public boolean hasSettings(String timeWindows, int maxConcurrentItems, long maxBytesPerSecond) {
+		return this.timeWindows.equals(timeWindows == null ? "" : timeWindows.trim())
+				&& this.maxConcurrentItems == Math.max(0, maxConcurrentItems)
+				&& this.maxBytesPerSecond == Math.max(0L, maxBytesPerSecond);
+	}
+
+	public String getTimeWindows() {
+		return timeWindows;
+	}
+
+	public int getMaxConcurrentItems() {
+		return maxConcurrentItems;
+	}
+
+	public long getMaxBytesPerSecond() {
+		return maxBytesPerSecond;
+	}
+
+	private int parseMinuteOfDay(String time) {
+		String[] parts = time.trim().split(":");
+		try
+		{
+			if (parts.length == 2)
+			{
+				int hour = Integer.parseInt(parts[0]);
+				int minute = Integer.parseInt(parts[1]);
+				int minuteOfDay = hour * 60 + minute;
+				if (hour >= 0 && minute >= 0 && minute < 60 && minuteOfDay <= MINUTES_PER_DAY)
+				{
+					return minuteOfDay;
+				}
+			}
+		}
+		catch (NumberFormatException e)
+		{
+			// reported below
+		}
+		throw new IllegalArgumentException("time should be HH:mm: " + time);
+	}
+}
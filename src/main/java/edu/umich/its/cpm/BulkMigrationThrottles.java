@@ -0,0 +1,206 @@
+package edu.umich.its.cpm;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+/**
+ * enforces the schedules of bulk migrations when the processing thread hands out items
+ *
+ * a bulk migration without its own schedule follows the default schedule
+ * from the migration.bulk.schedule properties, if any. Each instance enforces
+ * the schedule on the items it hands out, so a cluster of N instances may
+ * run up to N times the item limit and the byte rate.
+ *
+ */
+@Component
+class BulkMigrationThrottles {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(BulkMigrationThrottles.class);
+
+	// cached bulk migration ids, cleared beyond this size
+	private static final int BULK_MIGRATION_ID_CACHE_SIZE = 10000;
+
+	// stands in for an empty id list in the pending item queries, matches no bulk migration
+	private static final String NO_BULK_MIGRATION_ID = "-";
+
+	@Autowired
+	private Environment env;
+
+	@Autowired
+	private BulkMigrationScheduleRepository scheduleRepository;
+
+	@Autowired
+	private MigrationRepository mRepository;
+
+	// bulk migration id to its throttle; only touched by the processing thread
+	private HashMap<String, BulkMigrationThrottle> throttles = new HashMap<String, BulkMigrationThrottle>();
+
+	private BulkMigrationThrottle defaultThrottle = null;
+
+	// migration id to its bulk migration id, empty for migrations outside bulk migrations
+	private HashMap<String, String> bulkMigrationIds = new HashMap<String, String>();
+
+	/**
+	 * reload the schedules; throttles whose settings did not change keep their byte budget
+	 */
+	public void refresh() {
+		HashMap<String, BulkMigrationThrottle> refreshed = new HashMap<String, BulkMigrationThrottle>();
+		for (BulkMigrationSchedule schedule : scheduleRepository.findAll())
+		{
+			BulkMigrationThrottle throttle = getThrottle(throttles.get(schedule.getBulkMigrationId()), schedule.getTimeWindows(),
+					schedule.getMaxConcurrentItems(), schedule.getMaxBytesPerSecond());
+			if (throttle != null)
+			{
+				refreshed.put(schedule.getBulkMigrationId(), throttle);
+			}
+		}
+		throttles = refreshed;
+
+		String windows = env.getProperty(Utils.BULK_SCHEDULE_WINDOWS_PROP);
+		int maxItems = Utils.getIntProperty(env, Utils.BULK_SCHEDULE_MAX_ITEMS_PROP, 0);
+		long maxBytes = Utils.getLongProperty(env, Utils.BULK_SCHEDULE_MAX_BYTES_PROP, 0L);
+		defaultThrottle = (windows == null || windows.trim().isEmpty()) && maxItems <= 0 && maxBytes <= 0 ? null
+				: getThrottle(defaultThrottle, windows, maxItems, maxBytes);
+
+		if (bulkMigrationIds.size() > BULK_MIGRATION_ID_CACHE_SIZE)
+		{
+			bulkMigrationIds.clear();
+		}
+	}
+
+	/**
+	 * @param migrationId
+	 * @return the bulk migration id of the migration, null if not part of a bulk migration
+	 */
+	public String getBulkMigrationId(String migrationId) {
+		String bulkMigrationId = bulkMigrationIds.get(migrationId);
+		if (bulkMigrationId == null)
+		{
+			bulkMigrationId = mRepository.getBulkMigrationId(migrationId);
+			bulkMigrationId = bulkMigrationId == null ? "" : bulkMigrationId;
+			bulkMigrationIds.put(migrationId, bulkMigrationId);
+		}
+		return bulkMigrationId.isEmpty() ? null : bulkMigrationId;
+	}
+
+	/**
+	 * check the schedule of the bulk migration, and take the item bytes from its byte budget
+	 * @param bulkMigrationId
+	 * @param runningItems the items of the bulk migration in flight
+	 * @param bytes the size of the item
+	 * @return true if the item may start now
+	 */
+	public boolean admit(String bulkMigrationId, int runningItems, long bytes) {
+		if (bulkMigrationId == null)
+		{
+			return true;
+		}
+		BulkMigrationThrottle throttle = getThrottle(bulkMigrationId);
+		if (throttle == null)
+		{
+			return true;
+		}
+		Calendar now = Calendar.getInstance();
+		return throttle.isOpen(now.get(Calendar.HOUR_OF_DAY) * 60 + now.get(Calendar.MINUTE))
+				&& throttle.hasFreeSlot(runningItems)
+				&& throttle.tryConsume(bytes, now.getTimeInMillis());
+	}
+
+	/**
+	 * the bulk migrations none of whose items may start now, outside their time windows 
+	 * or at their item limit; the pending item queries leave them out, so that their items 
+	 * do not fill the fetched rows and keep the items of other migrations from being found.
+	 * The bulk migrations following the default schedule are held as a whole 
+	 * while it is outside its time windows, see isDefaultScheduleClosed()
+	 * @param runningItems the number of items in flight per bulk migration id
+	 * @return the bulk migration ids, never empty
+	 */
+	public List<String> getHeldBulkMigrationIds(Map<String, Integer> runningItems) {
+		int minuteOfDay = getMinuteOfDay();
+		List<String> rv = new ArrayList<String>();
+		rv.add(NO_BULK_MIGRATION_ID);
+		for (Map.Entry<String, BulkMigrationThrottle> entry : throttles.entrySet())
+		{
+			if (!entry.getValue().isOpen(minuteOfDay))
+			{
+				rv.add(entry.getKey());
+			}
+		}
+		for (Map.Entry<String, Integer> entry : runningItems.entrySet())
+		{
+			BulkMigrationThrottle throttle = getThrottle(entry.getKey());
+			if (throttle != null && !throttle.hasFreeSlot(entry.getValue()) && !rv.contains(entry.getKey()))
+			{
+				rv.add(entry.getKey());
+			}
+		}
+		return rv;
+	}
+
+	/**
+	 * @return true if the default schedule is outside its time windows, 
+	 * holding the bulk migrations without their own schedule
+	 */
+	public boolean isDefaultScheduleClosed() {
+		return defaultThrottle != null && !defaultThrottle.isOpen(getMinuteOfDay());
+	}
+
+	/**
+	 * @return the ids of the bulk migrations with their own schedule, never empty
+	 */
+	public List<String> getScheduledBulkMigrationIds() {
+		List<String> rv = new ArrayList<String>(throttles.keySet());
+		rv.add(NO_BULK_MIGRATION_ID);
+		return rv;
+	}
+
+	/**
+	 * give back the bytes taken by admit() for an item that did not start, 
+	 * so that items lost to other nodes do not use up the byte rate
+	 * @param bulkMigrationId
+	 * @param bytes
+	 */
+	public void refund(String bulkMigrationId, long bytes) {
+		BulkMigrationThrottle throttle = bulkMigrationId == null ? null : getThrottle(bulkMigrationId);
+		if (throttle != null)
+		{
+			throttle.refund(bytes);
+		}
+	}
+
+	private int getMinuteOfDay() {
+		Calendar now = Calendar.getInstance();
+		return now.get(Calendar.HOUR_OF_DAY) * 60 + now.get(Calendar.MINUTE);
+	}
+
+	private BulkMigrationThrottle getThrottle(String bulkMigrationId) {
+		return throttles.containsKey(bulkMigrationId) ? throttles.get(bulkMigrationId) : defaultThrottle;
+	}
+
+	private BulkMigrationThrottle getThrottle(BulkMigrationThrottle current, String windows, int maxItems, long maxBytes) {
+		if (current != null && current.hasSettings(windows, maxItems, maxBytes))
+		{
+			return current;
+		}
+		try
+		{
+			return new BulkMigrationThrottle(windows, maxItems, maxBytes);
+		}
+		catch (IllegalArgumentException e)
+		{
+			// stored schedules are validated when set, so this comes from the properties
+			log.error("invalid bulk migration schedule, not enforced " + e.getMessage());
+			return null;
+		}
+	}
+}
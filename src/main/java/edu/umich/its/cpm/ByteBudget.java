@@ -0,0 +1,142 @@
+package edu.umich.its.cpm;
+
+import java.util.LinkedList;
+
+/**
+ * a weighted semaphore over bytes held in memory
+ *
+ * Work reserves its declared or expected size before buffering it, and
+ * releases it when done. Work that does not fit is not started: tryAcquire()
+ * refuses it, acquire() queues it first-come first-served. Work larger than
+ * the whole budget is let through once nothing else is held, so that it is
+ * not blocked forever. Bytes found only after buffering started are added
+ * with forceAcquire(), which may go over the budget, but holds back new work
+ * until enough is released. Work that already holds bytes and needs more
+ * waits with a timeout, so that such work cannot wait on each other forever.
+ *
+ */
+public class ByteBudget {
+
+	private final long capacity;
+
+	private long used = 0;
+
+	// blocked acquire() calls, in arrival order
+	private final LinkedList<Object> waiters = new LinkedList<Object>();
+
+	public ByteBudget(long capacity) {
+		this.capacity = Math.max(1L, capacity);
+	}
+
+	/**
+	 * reserve the bytes if they fit, without waiting
+	 * @param bytes
+	 * @return true if reserved
+	 */
+	public synchronized boolean tryAcquire(long bytes) {
+		// queued work goes first
+		if (!waiters.isEmpty() || !fits(bytes))
+		{
+			return false;
+		}
+		used += Math.max(0L, bytes);
+		return true;
+	}
+
+	/**
+	 * wait till the bytes fit, then reserve them
+	 * @param bytes
+	 * @throws InterruptedException
+	 */
+	public synchronized void acquire(long bytes) throws InterruptedException {
+		Object ticket = new Object();
+		waiters.addLast(ticket);
+		try
+		{
+			while (waiters.getFirst() != ticket || !fits(bytes))
+			{
+				wait();
+			}
+		}
+		catch (InterruptedException e)
+		{
+			waiters.remove(ticket);
+			notifyAll();
+			throw e;
+		}
+		waiters.removeFirst();
+		used += Math.max(0L, bytes);
+		// the next in line may fit as well
+		notifyAll();
+	}
+
+	/**
+	 * wait till the bytes fit, then reserve them, unless the timeout passes first
+	 * @param bytes
+	 * @param timeoutMillis
+	 * @return true if reserved, false if the timeout passed
+	 * @throws InterruptedException
+	 */
+	public synchronized boolean acquire(long bytes, long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		Object ticket = new Object();
+		waiters.addLast(ticket);
+		try
+		{
+			while (waiters.getFirst() != ticket || !fits(bytes))
+			{
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0)
+				{
+					waiters.remove(ticket);
+					notifyAll();
+					return false;
+				}
+				wait(remaining);
+			}
+		}
+		catch (InterruptedException e)
+		{
+			waiters.remove(ticket);
+			notifyAll();
+			throw e;
+		}
+		waiters.removeFirst();
+		used += Math.max(0L, bytes);
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * reserve the bytes, even over the budget
+	 * @param bytes
+	 */
+	public synchronized void forceAcquire(long bytes) {
+		used += Math.max(0L, bytes);
+	}
+
+	/**
+	 * return reserved bytes
+	 * @param bytes
+	 */
+	public synchronized void release(long bytes) {
+		used = Math.max(0L, used - Math.max(0L, bytes));
+		notifyAll();
+	}
+
+	public long getCapacity() {
+		return capacity;
+	}
+
+	public synchronized long getUsed() {
+		return used;
+	}
+
+	public synchronized int getWaiting() {
+		return waiters.size();
+	}
+
+	private boolean fits(long bytes) {
+		return used == 0 || used + bytes <= capacity;
+	}
+}
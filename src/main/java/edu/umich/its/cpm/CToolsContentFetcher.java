@@ -0,0 +1,234 @@
+package edu.umich.its.cpm;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+/**
+ * fetches file content from the CTools /access urls, hedging slow requests
+ *
+ * a few /access requests take tens of seconds while most take milliseconds.
+ * When the response has not arrived within the recent p95 latency, a second
+ * request for the same content is sent on another connection, which the load
+ * balancer may route to another CTools server, and whichever responds first
+ * is used; the other one is aborted. Hedges are capped at a share of the
+ * requests, see HedgedRequestPolicy.
+ *
+ * All requests share one pooled client, and run on a bounded pool of
+ * threads. Both are sized for two requests, the primary and the hedge, per
+ * Box upload that can run at once, or per CTools permit if fewer. Callers
+ * close the content stream, or consume the entity, to return the connection.
+ *
+ */
+@Component
+class CToolsContentFetcher {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(CToolsContentFetcher.class);
+
+	@Autowired
+	private Environment env;
+
+	@Autowired
+	private MigrationExecutorConfig executorConfig;
+
+	@Autowired
+	private MigrationDependencyLimiter dependencyLimiter;
+
+	private HedgedRequestPolicy policy;
+
+	// runs the content requests, so that the caller can wait for whichever responds first
+	private ExecutorService executor;
+
+	// the client of all content requests, sharing its connection pool
+	private CloseableHttpClient httpClient;
+
+	@PostConstruct
+	public void init() {
+		policy = new HedgedRequestPolicy(Utils.HEDGE_WINDOW_SIZE, Utils.HEDGE_MIN_SAMPLES, Utils.HEDGE_PERCENTILE,
+				Utils.getIntProperty(env, Utils.HEDGE_MAX_PERCENT_PROP, Utils.HEDGE_MAX_PERCENT) / 100.0,
+				Utils.getLongProperty(env, Utils.HEDGE_MIN_DELAY_PROP, Utils.HEDGE_MIN_DELAY_MILLIS));
+		// content requests in flight, one per Box upload, or per CTools permit if fewer; 
+		// each may get a hedge
+		int fetches = executorConfig.getBoxUploadCapacity();
+		int ctoolsPermits = dependencyLimiter.getPermits(MigrationDependencyLimiter.CTOOLS);
+		if (ctoolsPermits > 0)
+		{
+			fetches = Math.min(fetches, ctoolsPermits);
+		}
+		int maxRequests = Math.max(1, fetches) * 2;
+		PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+		connectionManager.setMaxTotal(maxRequests);
+		connectionManager.setDefaultMaxPerRoute(maxRequests);
+		httpClient = HttpClients.custom().setConnectionManager(connectionManager).build();
+		final AtomicInteger threadNumber = new AtomicInteger();
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(maxRequests, maxRequests, 60L, TimeUnit.SECONDS, 
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "ctools-content-" + threadNumber.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		// requests beyond the pool, e.g. of zip downloads, wait in the queue; idle threads end
+		pool.allowCoreThreadTimeOut(true);
+		executor = pool;
+		log.info("CTools content requests pool size=" + maxRequests);
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		executor.shutdownNow();
+		try
+		{
+			httpClient.close();
+		}
+		catch (IOException e)
+		{
+			log.warn("problem closing the CTools content client " + e.getMessage());
+		}
+	}
+
+	/**
+	 * GET the content url, hedged if slow
+	 * @param url
+	 * @param httpContext the CTools session
+	 * @param requestConfig
+	 * @return the first response
+	 * @throws IOException if no request succeeded
+	 */
+	public HttpResponse execute(String url, HttpContext httpContext, RequestConfig requestConfig) throws IOException {
+		long startTime = System.currentTimeMillis();
+		long hedgeDelay = policy.getHedgeDelayMillis();
+		CompletionService<HttpResponse> completionService = new ExecutorCompletionService<HttpResponse>(executor);
+		HttpGet primary = createRequest(url, requestConfig);
+		HttpGet hedge = null;
+		Future<HttpResponse> primaryFuture = completionService.submit(createTask(primary, httpContext));
+		boolean hedged = false;
+		try
+		{
+			Future<HttpResponse> first = hedgeDelay < 0 ? completionService.take()
+					: completionService.poll(hedgeDelay, TimeUnit.MILLISECONDS);
+			if (first == null && policy.tryHedge())
+			{
+				hedged = true;
+				log.info("no response from " + url + " after " + hedgeDelay + " ms, hedging");
+				hedge = createRequest(url, requestConfig);
+				completionService.submit(createTask(hedge, httpContext));
+			}
+			if (first == null)
+			{
+				first = completionService.take();
+			}
+			HttpResponse response;
+			try
+			{
+				response = first.get();
+			}
+			catch (ExecutionException e)
+			{
+				if (!hedged)
+				{
+					throw e;
+				}
+				// one of the two failed, wait for the other
+				log.warn("hedged request for " + url + " failed " + e.getCause());
+				first = completionService.take();
+				response = first.get();
+			}
+			boolean hedgeWon = hedged && first != primaryFuture;
+			policy.record(System.currentTimeMillis() - startTime, hedged, hedgeWon);
+			// the response that lost the race is not needed
+			abort(hedgeWon ? primary : hedge);
+			return response;
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			abortAll(primary, hedge, hedged, startTime);
+			throw new InterruptedIOException("interrupted while getting content from " + url);
+		}
+		catch (ExecutionException e)
+		{
+			abortAll(primary, hedge, hedged, startTime);
+			if (e.getCause() instanceof IOException)
+			{
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * @return the hedging counters, for the status endpoint
+	 */
+	public HashMap<String, Object> getStatus() {
+		HashMap<String, Object> rv = new HashMap<String, Object>();
+		long requests = policy.getTotalRequests();
+		long hedges = policy.getTotalHedges();
+		rv.put("requests", requests);
+		rv.put("hedged", hedges);
+		rv.put("hedgeWins", policy.getTotalHedgeWins());
+		rv.put("hedgeRate", requests > 0 ? (double) hedges / requests : 0.0);
+		rv.put("hedgeDelay", policy.getHedgeDelayMillis());
+		return rv;
+	}
+
+	private HttpGet createRequest(String url, RequestConfig requestConfig) {
+		HttpGet getRequest = new HttpGet(url);
+		getRequest.setConfig(requestConfig);
+		getRequest.setHeader("Content-Type",
+				"application/x-www-form-urlencoded");
+		return getRequest;
+	}
+
+	private Callable<HttpResponse> createTask(final HttpGet getRequest, final HttpContext httpContext) {
+		return new Callable<HttpResponse>() {
+			public HttpResponse call() throws IOException {
+				// each request on its own connection from the pool, sharing the session cookies
+				return httpClient.execute(getRequest, new BasicHttpContext(httpContext));
+			}
+		};
+	}
+
+	private void abortAll(HttpGet primary, HttpGet hedge, boolean hedged, long startTime) {
+		policy.record(System.currentTimeMillis() - startTime, hedged, false);
+		abort(primary);
+		abort(hedge);
+	}
+
+	private void abort(HttpGet getRequest) {
+		if (getRequest != null)
+		{
+			getRequest.abort();
+		}
+	}
+}
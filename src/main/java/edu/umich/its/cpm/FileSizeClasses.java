@@ -0,0 +1,157 @@
+package edu.umich.its.cpm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * splits files into size classes, each with its own concurrency limit
+ *
+ * Classes are given as comma separated upperBound:limit pairs in ascending
+ * order, e.g. "10M:16,1G:4,*:1": files below 10MB run up to 16 at once, files
+ * below 1GB up to 4, and larger files one at a time. Bounds are bytes, with an
+ * optional K, M or G suffix; "*" is the open-ended last class. Without it, the
+ * files above the last bound form a class of their own without limit, as do
+ * all files when no classes are given. A limit of 0 means no limit of its own.
+ *
+ */
+public class FileSizeClasses {
+
+	private static final String OPEN_BOUND = "*";
+
+	// exclusive upper bound of each class, ascending; Long.MAX_VALUE for the last
+	private final List<Long> upperBounds = new ArrayList<Long>();
+
+	private final List<Integer> limits = new ArrayList<Integer>();
+
+	/**
+	 * @param spec
+	 * @throws IllegalArgumentException if the classes cannot be parsed, or are not ascending
+	 */
+	public FileSizeClasses(String spec) {
+		if (spec != null && spec.trim().length() > 0)
+		{
+			for (String sizeClass : spec.trim().split(","))
+			{
+				String[] pair = sizeClass.trim().split(":");
+				if (pair.length != 2)
+				{
+					throw new IllegalArgumentException("size class should be upperBound:limit: " + sizeClass);
+				}
+				if (!upperBounds.isEmpty() && upperBounds.get(upperBounds.size() - 1) == Long.MAX_VALUE)
+				{
+					throw new IllegalArgumentException("no size class can follow the open-ended one: " + sizeClass);
+				}
+				long upperBound = OPEN_BOUND.equals(pair[0].trim()) ? Long.MAX_VALUE : parseSize(pair[0]);
+				if (!upperBounds.isEmpty() && upperBound <= upperBounds.get(upperBounds.size() - 1))
+				{
+					throw new IllegalArgumentException("size classes should be in ascending order: " + sizeClass);
+				}
+				int limit;
+				try
+				{
+					limit = Integer.parseInt(pair[1].trim());
+				}
+				catch (NumberFormatException e)
+				{
+					throw new IllegalArgumentException("size class limit should be a number: " + sizeClass);
+				}
+				upperBounds.add(upperBound);
+				limits.add(Math.max(0, limit));
+			}
+		}
+		if (upperBounds.isEmpty() || upperBounds.get(upperBounds.size() - 1) != Long.MAX_VALUE)
+		{
+			upperBounds.add(Long.MAX_VALUE);
+			limits.add(0);
+		}
+	}
+
+	/**
+	 * @return the number of size classes
+	 */
+	public int size() {
+		return upperBounds.size();
+	}
+
+	/**
+	 * @param sizeClass
+	 * @return the smallest file size of the class
+	 */
+	public long getMinSize(int sizeClass) {
+		return sizeClass == 0 ? 0L : upperBounds.get(sizeClass - 1);
+	}
+
+	/**
+	 * @param sizeClass
+	 * @return the exclusive upper bound of the class
+	 */
+	public long getMaxSize(int sizeClass) {
+		return upperBounds.get(sizeClass);
+	}
+
+	/**
+	 * @param sizeClass
+	 * @return the most files of the class in flight, 0 for no limit
+	 */
+	public int getLimit(int sizeClass) {
+		return limits.get(sizeClass);
+	}
+
+	/**
+	 * @param fileSize
+	 * @return the class of the file size
+	 */
+	public int getSizeClass(long fileSize) {
+		int sizeClass = 0;
+		while (fileSize >= upperBounds.get(sizeClass))
+		{
+			sizeClass++;
+		}
+		return sizeClass;
+	}
+
+	/**
+	 * @param sizeClass
+	 * @param running the files of the class in flight
+	 * @param free the free slots across all classes
+	 * @return the files of the class that can be started
+	 */
+	public int getFreeSlots(int sizeClass, int running, int free) {
+		int limit = getLimit(sizeClass);
+		return Math.max(0, limit == 0 ? free : Math.min(free, limit - running));
+	}
+
+	private static long parseSize(String size) {
+		String s = size.trim().toUpperCase();
+		long unit = 1L;
+		if (s.endsWith("K"))
+		{
+			unit = 1024L;
+		}
+		else if (s.endsWith("M"))
+		{
+			unit = 1024L * 1024L;
+		}
+		else if (s.endsWith("G"))
+		{
+			unit = 1024L * 1024L * 1024L;
+		}
+		if (unit > 1L)
+		{
+			s = s.substring(0, s.length() - 1).trim();
+		}
+		try
+		{
+			long bytes = Long.parseLong(s) * unit;
+			if (bytes <= 0)
+			{
+				throw new IllegalArgumentException("size class bound should be positive: " + size);
+			}
+			return bytes;
+		}
+		catch (NumberFormatException e)
+		{
+			throw new IllegalArgumentException("size class bound should be a number of bytes: " + size);
+		}
+	}
+}
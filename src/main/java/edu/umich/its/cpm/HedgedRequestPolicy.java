@@ -0,0 +1,129 @@
+package edu.umich.its.cpm;
+
+import java.util.Arrays;
+
+/**
+ * decides when a slow request is hedged with a second one
+ *
+ * The latencies of the most recent requests are kept in a window; a request
+ * without response after the given percentile of those latencies is hedged.
+ * Hedges are capped at a share of the requests in the window, so that a
+ * slow dependency does not get twice the load. Nothing is hedged until the
+ * window holds enough samples.
+ *
+ */
+public class HedgedRequestPolicy {
+
+	private final double percentile;
+
+	private final double maxHedgeRatio;
+
+	private final long minDelayMillis;
+
+	private final int minSamples;
+
+	// ring buffer of the latest request latencies, and whether each was hedged
+	private final long[] latencies;
+
+	private final boolean[] hedged;
+
+	private int next = 0;
+
+	private int count = 0;
+
+	// hedges started but not recorded yet
+	private int pendingHedges = 0;
+
+	// totals since start, for the status endpoint
+	private long totalRequests = 0;
+
+	private long totalHedges = 0;
+
+	private long totalHedgeWins = 0;
+
+	/**
+	 * @param windowSize the number of latest requests kept
+	 * @param minSamples the number of requests needed before hedging
+	 * @param percentile the latency percentile to hedge after, e.g. 95
+	 * @param maxHedgeRatio the most hedges per request, e.g. 0.05
+	 * @param minDelayMillis the shortest wait before hedging
+	 */
+	public HedgedRequestPolicy(int windowSize, int minSamples, double percentile, double maxHedgeRatio, long minDelayMillis) {
+		this.latencies = new long[Math.max(1, windowSize)];
+		this.hedged = new boolean[latencies.length];
+		this.minSamples = Math.max(1, Math.min(minSamples, latencies.length));
+		this.percentile = Math.max(0, Math.min(100, percentile));
+		this.maxHedgeRatio = Math.max(0, maxHedgeRatio);
+		this.minDelayMillis = Math.max(0L, minDelayMillis);
+	}
+
+	/**
+	 * @return how long to wait for a response before hedging, or -1 if not hedging yet
+	 */
+	public synchronized long getHedgeDelayMillis() {
+		if (count < minSamples || maxHedgeRatio == 0)
+		{
+			return -1L;
+		}
+		long[] sorted = Arrays.copyOf(latencies, count);
+		Arrays.sort(sorted);
+		int index = (int) Math.ceil(percentile / 100.0 * count) - 1;
+		return Math.max(minDelayMillis, sorted[Math.max(0, Math.min(count - 1, index))]);
+	}
+
+	/**
+	 * take a hedge, if within the cap
+	 * @return true if the request may be hedged
+	 */
+	public synchronized boolean tryHedge() {
+		int hedges = pendingHedges;
+		for (int i = 0; i < count; i++)
+		{
+			if (hedged[i])
+			{
+				hedges++;
+			}
+		}
+		if (hedges + 1 > maxHedgeRatio * count)
+		{
+			return false;
+		}
+		pendingHedges++;
+		totalHedges++;
+		return true;
+	}
+
+	/**
+	 * record the time until the first response of a request
+	 * @param latencyMillis
+	 * @param wasHedged whether tryHedge() was granted for the request
+	 * @param hedgeWon whether the hedge responded first
+	 */
+	public synchronized void record(long latencyMillis, boolean wasHedged, boolean hedgeWon) {
+		latencies[next] = latencyMillis;
+		hedged[next] = wasHedged;
+		next = (next + 1) % latencies.length;
+		count = Math.min(count + 1, latencies.length);
+		totalRequests++;
+		if (wasHedged)
+		{
+			pendingHedges = Math.max(0, pendingHedges - 1);
+			if (hedgeWon)
+			{
+				totalHedgeWins++;
+			}
+		}
+	}
+
+	public synchronized long getTotalRequests() {
+		return totalRequests;
+	}
+
+	public synchronized long getTotalHedges() {
+		return totalHedges;
+	}
+
+	public synchronized long getTotalHedgeWins() {
+		return totalHedgeWins;
+	}
+}
@@ -12,11 +12,13 @@ import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.SequenceGenerator;
 import javax.persistence.Id;
+import javax.persistence.Transient;
 import javax.persistence.GenerationType;
 
 import lombok.Getter;
 import lombok.Setter;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonRawValue;
 
 @Entity
@@ -52,6 +54,22 @@ public class Migration {
 	@Setter
 	private String bulk_migration_name;
 
+	/**
+	 * priority lane, interactive or bulk, set from bulk_migration_id
+	 */
+	@Column(name = "PRIORITY", columnDefinition = "VARCHAR(20)")
+	@Getter
+	@Setter
+	private String priority;
+
+	/**
+	 * null while running, paused or cancelled by the user or admin
+	 */
+	@Column(name = "CONTROL_STATE", columnDefinition = "VARCHAR(20)")
+	@Getter
+	@Setter
+	private String control_state;
+
 	@Column(name = "SITE_ID", columnDefinition = "VARCHAR(99) NOT NULL")
 	@Getter
 	@Setter
@@ -103,6 +121,48 @@ public class Migration {
 	@JsonRawValue
 	private String status;
 
+	/**
+	 * number of file or message items queued for the migration
+	 */
+	@Column(name = "ITEM_COUNT", columnDefinition = "NUMBER(10) DEFAULT 0")
+	@Getter
+	@Setter
+	private Integer item_count;
+
+	/**
+	 * number of items finished, with success or failure
+	 */
+	@Column(name = "FINISHED_ITEM_COUNT", columnDefinition = "NUMBER(10) DEFAULT 0")
+	@Getter
+	@Setter
+	private Integer finished_item_count;
+
+	/**
+	 * when the site walk finished queuing the items of the migration; 
+	 * null while items are still being queued
+	 */
+	@Column(name = "QUEUED_TIME")
+	@Getter
+	@Setter
+	private Timestamp queued_time;
+
+	/**
+	 * when the items of the finished migration were moved to the history tables
+	 */
+	@Column(name = "ARCHIVE_TIME")
+	@Getter
+	@Setter
+	private Timestamp archive_time;
+
+	/**
+	 * estimated end time of an unfinished migration, not persisted
+	 */
+	@Transient
+	@JsonInclude(JsonInclude.Include.NON_NULL)
+	@Getter
+	@Setter
+	private Timestamp eta;
+
 	protected Migration() {
 	}
 
@@ -112,6 +172,7 @@ public class Migration {
 			String destination_url, String status) {
 		this.migration_id = UUID.randomUUID().toString();
 		log.info(this.migration_id);
+		this.priority = Utils.getMigrationPriority(null);
 		this.site_id = site_id;
 		this.site_name = site_name;
 		this.tool_id = tool_id;
@@ -122,6 +183,8 @@ public class Migration {
 		this.destination_type = destination_type;
 		this.destination_url = destination_url;
 		this.status = status;
+		this.item_count = 0;
+		this.finished_item_count = 0;
 	}
 
 	public Migration(String bulk_migration_id, String bulk_migration_name,
@@ -132,6 +195,7 @@ public class Migration {
 		log.info(this.migration_id);
 		this.bulk_migration_id = bulk_migration_id;
 		this.bulk_migration_name = bulk_migration_name;
+		this.priority = Utils.getMigrationPriority(bulk_migration_id);
 		this.site_id = site_id;
 		this.site_name = site_name;
 		this.tool_id = tool_id;
@@ -142,6 +206,8 @@ public class Migration {
 		this.destination_type = destination_type;
 		this.destination_url = destination_url;
 		this.status = status;
+		this.item_count = 0;
+		this.finished_item_count = 0;
 	}
 
 	@Override
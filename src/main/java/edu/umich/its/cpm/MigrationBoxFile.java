@@ -138,6 +138,72 @@ public class MigrationBoxFile {
 	@JsonRawValue
 	private String status;
 
+	/**
+	 * outcome code of the finished item, e.g. OK, ERROR or CONFLICT;
+	 * the status holds the text shown to users
+	 */
+	@Column(name = "OUTCOME", columnDefinition = "VARCHAR(20)")
+	@Getter
+	@Setter
+	private String outcome;
+
+	/**
+	 * the CPM instance which claimed the item for processing
+	 */
+	@Column(name = "OWNER_NODE", columnDefinition = "VARCHAR(99)")
+	@Getter
+	@Setter
+	private String owner_node;
+
+	/**
+	 * the claim is held by the owner node till this time
+	 */
+	@Column(name = "LEASE_EXPIRY", columnDefinition = "TIMESTAMP")
+	@Getter
+	@Setter
+	private Timestamp lease_expiry;
+
+	/**
+	 * the number of times the file was returned to the pool after its claim expired
+	 */
+	@Column(name = "ATTEMPT_COUNT", columnDefinition = "NUMBER(10)")
+	@Getter
+	@Setter
+	private Integer attempt_count;
+
+	/**
+	 * a file returned to the pool after a retryable error is not handed out before this time
+	 */
+	@Column(name = "NEXT_ATTEMPT_TIME", columnDefinition = "TIMESTAMP")
+	@Getter
+	@Setter
+	private Timestamp next_attempt_time;
+
+	/**
+	 * the HTTP status of the last retryable error, 0 when no response was received
+	 */
+	@Column(name = "LAST_ERROR_CODE", columnDefinition = "NUMBER(10)")
+	@Getter
+	@Setter
+	private Integer last_error_code;
+
+	/**
+	 * the number of times the file was returned to the pool after a retryable error, 
+	 * counted apart from the expired claims, against its own limit
+	 */
+	@Column(name = "RETRY_COUNT", columnDefinition = "NUMBER(10)")
+	@Getter
+	@Setter
+	private Integer retry_count;
+
+	/**
+	 * priority lane, interactive or bulk, inherited from the parent migration
+	 */
+	@Column(name = "PRIORITY", columnDefinition = "VARCHAR(20)")
+	@Getter
+	@Setter
+	private String priority;
+
 	protected MigrationBoxFile() {
 	}
 
@@ -0,0 +1,52 @@
+package edu.umich.its.cpm;
+
+/**
+ * the columns of a pending MigrationBoxFile needed for scheduling,
+ * so that the processing thread does not load the full rows of the backlog
+ *
+ * the full MigrationBoxFile is loaded only after the file is claimed
+ *
+ */
+class MigrationBoxFileCandidate {
+
+	private final String id;
+
+	private final String migration_id;
+
+	private final String user_id;
+
+	private final String priority;
+
+	private final long file_size;
+
+	/**
+	 * @param row the columns id, migration_id, user_id, priority and file_size
+	 */
+	public MigrationBoxFileCandidate(Object[] row) {
+		this.id = (String) row[0];
+		this.migration_id = (String) row[1];
+		this.user_id = (String) row[2];
+		this.priority = (String) row[3];
+		this.file_size = row[4] != null ? ((Number) row[4]).longValue() : 0L;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getMigration_id() {
+		return migration_id;
+	}
+
+	public String getUser_id() {
+		return user_id;
+	}
+
+	public String getPriority() {
+		return priority;
+	}
+
+	public long getFile_size() {
+		return file_size;
+	}
+}
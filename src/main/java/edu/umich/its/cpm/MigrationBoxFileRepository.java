@@ -3,6 +3,7 @@ package edu.umich.its.cpm;
 import java.util.List;
 import java.sql.Timestamp;
 
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.repository.CrudRepository;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
@@ -19,42 +20,172 @@ public interface MigrationBoxFileRepository extends CrudRepository<MigrationBoxF
 	public int validate();
 
 	/**
-	 * Finds next unprocessed Box file migration request
-	 * select the files with least file size first
+	 * Finds the scheduling columns of unprocessed Box file migration requests 
+	 * within the given size range: id, migration_id, user_id, priority and file_size.
+	 * At most the given number of files per migration, with least file size first; 
+	 * the interactive lane and the first files of each migration come first, 
+	 * and the page limits the total number of rows. 
+	 * The ranking reads every pending file, in the order of the migration_box_file_pending index, 
+	 * so it is not sorted; the cost grows with the pending files, not with the rows returned. 
+	 * Files of paused or cancelled migrations, of held bulk migrations, 
+	 * and files waiting for their next retry, are left out
+	 * @param perMigrationLimit
+	 * @param now
+	 * @param minSize the smallest file size
+	 * @param maxSize the exclusive upper bound of file size
+	 * @param heldBulkMigrationIds the bulk migrations whose items may not start now
+	 * @param holdUnscheduled 1 to leave out the bulk migrations without their own schedule, 0 otherwise
+	 * @param scheduledBulkMigrationIds the bulk migrations with their own schedule
+	 * @param pageable
 	 * @return
 	 */
-	@Query("SELECT bFile FROM MigrationBoxFile bFile WHERE bFile.start_time is null order by bFile.file_size asc")
-	public List<MigrationBoxFile> findNextNewMigrationBoxFile();
+	@Query(value = "SELECT id, migration_id, user_id, priority, file_size FROM " + 
+			"(SELECT id, migration_id, user_id, priority, file_size, row_number() " +
+			"OVER (PARTITION BY migration_id order by file_size asc, id) as rownumber " + 
+			"FROM migration_box_file f " + 
+			"where start_time is null " + 
+			"and (next_attempt_time is null or next_attempt_time <= ?2) " + 
+			"and file_size >= ?3 and file_size < ?4 " + 
+			"and not exists (select 1 from migration m where m.migration_id = f.migration_id and (m.control_state is not null " + 
+			"or m.bulk_migration_id in (?5) or (?6 = 1 and m.bulk_migration_id not in (?7))))) ranked " + 
+			"where rownumber <= ?1 " +
+			"order by case when priority = 'bulk' then 1 else 0 end, rownumber, file_size /* #pageable */", nativeQuery = true)
+	public List<Object[]> findNextNewMigrationBoxFileCandidates(int perMigrationLimit, Timestamp now, long minSize, long maxSize, 
+			List<String> heldBulkMigrationIds, int holdUnscheduled, List<String> scheduledBulkMigrationIds, Pageable pageable);
 	
 	/**
-	 * set start time for given migration Box file record
+	 * claim the given migration Box file record for processing by one node:
+	 * the update only succeeds if the record has not been claimed yet, 
+	 * so that the same file is not uploaded twice by different nodes
 	 * @param id
 	 * @param t
+	 * @param ownerNode
+	 * @param leaseExpiry
+	 * @return 1 if the claim succeeds, 0 otherwise
 	 */
 	@Transactional
 	@Modifying(clearAutomatically = false)
-	@Query("update MigrationBoxFile bFile set bFile.start_time = ?#{[1]} where bFile.id = ?#{[0]}")
-	public void setMigrationBoxFileStartTime(String id, Timestamp t);
+	@Query("update MigrationBoxFile bFile set bFile.start_time = ?#{[1]}, bFile.owner_node = ?#{[2]}, bFile.lease_expiry = ?#{[3]} where bFile.id = ?#{[0]} and bFile.start_time is null")
+	public int claimMigrationBoxFile(String id, Timestamp t, String ownerNode, Timestamp leaseExpiry);
 	
 	/**
-	 * set end time for given migration Box file record
+	 * extend the claim of the given migration Box file record, 
+	 * as long as it is still owned by the given node
+	 * @param id
+	 * @param ownerNode
+	 * @param leaseExpiry
+	 * @return 1 if the claim is renewed, 0 if the claim is lost
+	 */
+	@Transactional
+	@Modifying(clearAutomatically = false)
+	@Query("update MigrationBoxFile bFile set bFile.lease_expiry = ?#{[2]} where bFile.id = ?#{[0]} and bFile.owner_node = ?#{[1]} and bFile.end_time is null")
+	public int renewMigrationBoxFileLease(String id, String ownerNode, Timestamp leaseExpiry);
+	
+	/**
+	 * find unfinished migration Box file records whose claim expired, 
+	 * or started without a claim before the stale time
+	 * @param now
+	 * @param staleBefore
+	 * @return list of id, attempt count and migration id
+	 */
+	@Query("SELECT bFile.id, bFile.attempt_count, bFile.migration_id FROM MigrationBoxFile bFile WHERE bFile.end_time is null and bFile.start_time is not null and (bFile.lease_expiry < ?#{[0]} or (bFile.lease_expiry is null and bFile.start_time < ?#{[1]}))")
+	public List<Object[]> findExpiredMigrationBoxFiles(Timestamp now, Timestamp staleBefore);
+	
+	/**
+	 * return the expired migration Box file record into the pool, and count the attempt
+	 * @param id
+	 * @param now
+	 * @param staleBefore
+	 * @return 1 if the record is returned, 0 if the claim was renewed meanwhile
+	 */
+	@Transactional
+	@Modifying(clearAutomatically = false)
+	@Query("update MigrationBoxFile bFile set bFile.start_time = null, bFile.owner_node = null, bFile.lease_expiry = null, bFile.attempt_count = coalesce(bFile.attempt_count, 0) + 1 where bFile.id = ?#{[0]} and bFile.end_time is null and (bFile.lease_expiry < ?#{[1]} or (bFile.lease_expiry is null and bFile.start_time < ?#{[2]}))")
+	public int releaseExpiredMigrationBoxFile(String id, Timestamp now, Timestamp staleBefore);
+	
+	/**
+	 * mark the expired migration Box file record as finished with given status
+	 * @param id
+	 * @param now
+	 * @param staleBefore
+	 * @param status
+	 * @param outcome
+	 * @return 1 if the record is updated, 0 if the claim was renewed meanwhile
+	 */
+	@Transactional
+	@Modifying(clearAutomatically = false)
+	@Query("update MigrationBoxFile bFile set bFile.end_time = ?#{[1]}, bFile.status = ?#{[3]}, bFile.outcome = ?#{[4]}, bFile.owner_node = null, bFile.lease_expiry = null, bFile.attempt_count = coalesce(bFile.attempt_count, 0) + 1 where bFile.id = ?#{[0]} and bFile.end_time is null and (bFile.lease_expiry < ?#{[1]} or (bFile.lease_expiry is null and bFile.start_time < ?#{[2]}))")
+	public int abandonExpiredMigrationBoxFile(String id, Timestamp now, Timestamp staleBefore, String status, String outcome);
+	
+	/**
+	 * put the given migration Box file record back into the pool, if still claimed by the given node and unfinished; 
+	 * a claim that expired and was taken over by another node is left alone
+	 * @param id
+	 * @param ownerNode
+	 * @return 1 if returned, 0 if the claim is lost
+	 */
+	@Transactional
+	@Modifying(clearAutomatically = false)
+	@Query("update MigrationBoxFile bFile set bFile.start_time = null, bFile.status = null, bFile.owner_node = null, bFile.lease_expiry = null where bFile.id = ?#{[0]} and bFile.owner_node = ?#{[1]} and bFile.end_time is null")
+	public int releaseMigrationBoxFile(String id, String ownerNode);
+	
+	/**
+	 * return the unfinished migration Box file records claimed by the given node into the pool,
+	 * without counting an attempt; used when the node drains before shutdown
+	 * @param ownerNode
+	 * @return the number of records returned
+	 */
+	@Transactional
+	@Modifying(clearAutomatically = false)
+	@Query("update MigrationBoxFile bFile set bFile.start_time = null, bFile.status = null, bFile.owner_node = null, bFile.lease_expiry = null where bFile.owner_node = ?#{[0]} and bFile.end_time is null")
+	public int releaseMigrationBoxFilesOfNode(String ownerNode);
+	
+	/**
+	 * set end time, status and outcome for given migration Box file record, 
+	 * as long as it is still claimed by the given node
 	 * @param id
 	 * @param t
+	 * @param status
+	 * @param outcome
+	 * @param ownerNode
+	 * @return 1 if the record is updated, 0 if the claim is lost
+	 */
+	@Transactional
+	@Modifying(clearAutomatically = false)
+	@Query("update MigrationBoxFile bFile set bFile.end_time = ?#{[1]}, bFile.status = ?#{[2]}, bFile.outcome = ?#{[3]} where bFile.id = ?#{[0]} and bFile.owner_node = ?#{[4]} and bFile.end_time is null")
+	public int finishMigrationBoxFile(String id, Timestamp t, String status, String outcome, String ownerNode);
+	
+	/**
+	 * return the migration Box file record into the pool after a retryable error, 
+	 * not to be handed out before the next attempt time; 
+	 * as long as it is still claimed by the given node
+	 * @param id
+	 * @param nextAttemptTime
+	 * @param errorCode
+	 * @param ownerNode
+	 * @return 1 if the record is returned, 0 if the claim is lost
 	 */
 	@Transactional
 	@Modifying(clearAutomatically = false)
-	@Query("update MigrationBoxFile bFile set bFile.end_time = ?#{[1]} where bFile.id = ?#{[0]}")
-	public void setMigrationBoxFileEndTime(String id, Timestamp t);
+	@Query("update MigrationBoxFile bFile set bFile.start_time = null, bFile.status = null, bFile.owner_node = null, bFile.lease_expiry = null, bFile.retry_count = coalesce(bFile.retry_count, 0) + 1, bFile.next_attempt_time = ?#{[1]}, bFile.last_error_code = ?#{[2]} where bFile.id = ?#{[0]} and bFile.owner_node = ?#{[3]} and bFile.end_time is null")
+	public int retryMigrationBoxFile(String id, Timestamp nextAttemptTime, int errorCode, String ownerNode);
 	
 	/**
-	 * set status for given migration Box file record
+	 * give up the migration Box file record after its last retryable error: 
+	 * set end time, status and outcome, and keep the error code; 
+	 * as long as it is still claimed by the given node
 	 * @param id
+	 * @param t
 	 * @param status
+	 * @param outcome
+	 * @param errorCode
+	 * @param ownerNode
+	 * @return 1 if the record is updated, 0 if the claim is lost
 	 */
 	@Transactional
 	@Modifying(clearAutomatically = false)
-	@Query("update MigrationBoxFile bFile set bFile.status = ?#{[1]} where bFile.id = ?#{[0]}")
-	public void setMigrationBoxFileStatus(String id, String status);
+	@Query("update MigrationBoxFile bFile set bFile.end_time = ?#{[1]}, bFile.status = ?#{[2]}, bFile.outcome = ?#{[3]}, bFile.retry_count = coalesce(bFile.retry_count, 0) + 1, bFile.next_attempt_time = null, bFile.last_error_code = ?#{[4]} where bFile.id = ?#{[0]} and bFile.owner_node = ?#{[5]} and bFile.end_time is null")
+	public int deadLetterMigrationBoxFile(String id, Timestamp t, String status, String outcome, int errorCode, String ownerNode);
 	
 	/**
 	 * select all box file items for certain migration record
@@ -81,11 +212,47 @@ public interface MigrationBoxFileRepository extends CrudRepository<MigrationBoxF
 	public Timestamp getLastItemEndTimeForMigration(String migrationId);
 	
 	/**
-	 * select all item status for given migration
+	 * count the finished box file items of given migration by outcome
+	 * @param migrationId
+	 * @return list of outcome and count
+	 */
+	@Query("select bFile.outcome, count(*) from MigrationBoxFile bFile where bFile.migration_id= ?#{[0]} and bFile.end_time is not null group by bFile.outcome")
+	public List<Object[]> getFinishedItemOutcomeCountsForMigration(String migrationId);
+	
+	/**
+	 * select title and status of the finished box file items of given migration, 
+	 * with an outcome other than the given one, a page at a time
+	 * @param migrationId
+	 * @param outcome
+	 * @param pageable
+	 * @return list of title and status
+	 */
+	@Query("SELECT bFile.title, bFile.status FROM MigrationBoxFile bFile WHERE bFile.migration_id= ?#{[0]} and bFile.end_time is not null and (bFile.outcome is null or bFile.outcome <> ?#{[1]}) order by bFile.start_time asc, bFile.id asc")
+	public List<Object[]> getFailedItemStatusForMigration(String migrationId, String outcome, Pageable pageable);
+	
+	/**
+	 * count the box file items being uploaded for given migration
 	 * @param migrationId
 	 * @return
 	 */
-	@Query("SELECT bFile FROM MigrationBoxFile bFile WHERE bFile.migration_id= ?#{[0]} order by bFile.start_time asc")
-	public List<MigrationBoxFile> getAllItemStatusForMigration(String migrationId);
+	@Query("select count(*) from MigrationBoxFile bFile where bFile.migration_id= ?#{[0]} and bFile.start_time is not null and bFile.end_time is null")
+	public int getRunningMigrationBoxFileCountForMigration(String migrationId);
+	
+	/**
+	 * the remaining file size of each unfinished migration, 
+	 * leaving out paused and cancelled migrations
+	 * @return list of migration id and the size of its unfinished files
+	 */
+	@Query("SELECT bFile.migration_id, SUM(bFile.file_size) FROM MigrationBoxFile bFile, Migration m WHERE m.migration_id = bFile.migration_id and m.control_state is null and bFile.end_time is null group by bFile.migration_id")
+	public List<Object[]> getRemainingFileSizePerMigration();
+	
+	/**
+	 * the size of the box files finished since the given time, 
+	 * and the earliest start time among them
+	 * @param since
+	 * @return a single row of total file size and start time
+	 */
+	@Query("SELECT SUM(bFile.file_size), MIN(bFile.start_time) FROM MigrationBoxFile bFile WHERE bFile.end_time >= ?#{[0]}")
+	public List<Object[]> getFinishedFileSizeSince(Timestamp since);
 	
-}
\ No newline at end of file
+}
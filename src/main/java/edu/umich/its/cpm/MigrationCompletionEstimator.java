@@ -0,0 +1,194 @@
+package edu.umich.its.cpm;
+
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+/**
+ * remaining work and estimated end time of unfinished migrations
+ *
+ * The remaining work of a Box migration is the size of its unfinished files,
+ * that of a Google Groups migration the number of its unfinished messages.
+ * The throughput of each destination is observed from the items finished by
+ * all instances within the throughput window. Both are aggregated over the
+ * item tables, so they are read at most once per cache period, and shared by
+ * the processing passes and the requests within it.
+ *
+ */
+@Component
+class MigrationCompletionEstimator {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(MigrationCompletionEstimator.class);
+
+	@Autowired
+	private MigrationBoxFileRepository fRepository;
+
+	@Autowired
+	private MigrationEmailMessageRepository eRepository;
+
+	@Autowired
+	private Environment env;
+
+	private final CachedValue<Map<String, Long>> boxRemainingWork = new CachedValue<Map<String, Long>>();
+
+	private final CachedValue<Map<String, Long>> googleGroupsRemainingWork = new CachedValue<Map<String, Long>>();
+
+	private final CachedValue<Double> boxWorkPerSecond = new CachedValue<Double>();
+
+	private final CachedValue<Double> googleGroupsWorkPerSecond = new CachedValue<Double>();
+
+	/**
+	 * @return true if items are ordered by shortest remaining work first
+	 */
+	public boolean isShortestFirst() {
+		return Utils.SCHEDULER_POLICY_SRWF.equals(env.getProperty(Utils.SCHEDULER_POLICY_PROP, Utils.SCHEDULER_POLICY_FAIR));
+	}
+
+	/**
+	 * @return the remaining file size of each unfinished Box migration
+	 */
+	public synchronized Map<String, Long> getBoxRemainingWork() {
+		if (isStale(boxRemainingWork))
+		{
+			boxRemainingWork.set(toMap(fRepository.getRemainingFileSizePerMigration()));
+		}
+		return new HashMap<String, Long>(boxRemainingWork.value);
+	}
+
+	/**
+	 * @return the remaining message count of each unfinished Google Groups migration
+	 */
+	public synchronized Map<String, Long> getGoogleGroupsRemainingWork() {
+		if (isStale(googleGroupsRemainingWork))
+		{
+			googleGroupsRemainingWork.set(toMap(eRepository.getRemainingMessageCountPerMigration()));
+		}
+		return new HashMap<String, Long>(googleGroupsRemainingWork.value);
+	}
+
+	/**
+	 * @param migration
+	 * @return the estimated end time of the unfinished migration,
+	 * null if finished, stopped, or without observed throughput
+	 */
+	public Timestamp estimateEndTime(Migration migration) {
+		if (migration.getEnd_time() != null || migration.getControl_state() != null)
+		{
+			return null;
+		}
+		long now = System.currentTimeMillis();
+		Map<String, Long> remainingWork = null;
+		double workPerSecond = 0;
+		try
+		{
+			if (Utils.MIGRATION_TYPE_BOX.equals(migration.getDestination_type()))
+			{
+				remainingWork = getBoxRemainingWork();
+				workPerSecond = getBoxWorkPerSecond();
+			}
+			else if (Utils.MIGRATION_TYPE_GOOGLE_GROUP.equals(migration.getDestination_type()))
+			{
+				remainingWork = getGoogleGroupsRemainingWork();
+				workPerSecond = getGoogleGroupsWorkPerSecond();
+			}
+		}
+		catch (Exception e)
+		{
+			log.warn("cannot estimate end time of migration " + migration.getMigration_id() + " " + e.getMessage());
+			return null;
+		}
+		if (remainingWork == null || !remainingWork.containsKey(migration.getMigration_id()))
+		{
+			// no itemized work, or not started yet
+			return null;
+		}
+
+		long remaining = remainingWork.remove(migration.getMigration_id());
+		long etaMillis = MigrationEta.estimateMillis(remaining, remainingWork.values(), isShortestFirst(), workPerSecond);
+		return etaMillis == MigrationEta.UNKNOWN ? null : new Timestamp(now + etaMillis);
+	}
+
+	/**
+	 * @return the bytes of Box files finished per second within the throughput window
+	 */
+	private synchronized double getBoxWorkPerSecond() {
+		if (isStale(boxWorkPerSecond))
+		{
+			long now = System.currentTimeMillis();
+			Timestamp since = getThroughputWindowStart(now);
+			boxWorkPerSecond.set(getWorkPerSecond(fRepository.getFinishedFileSizeSince(since), since.getTime(), now));
+		}
+		return boxWorkPerSecond.value;
+	}
+
+	/**
+	 * @return the messages finished per second within the throughput window
+	 */
+	private synchronized double getGoogleGroupsWorkPerSecond() {
+		if (isStale(googleGroupsWorkPerSecond))
+		{
+			long now = System.currentTimeMillis();
+			Timestamp since = getThroughputWindowStart(now);
+			googleGroupsWorkPerSecond.set(getWorkPerSecond(eRepository.getFinishedMessageCountSince(since), since.getTime(), now));
+		}
+		return googleGroupsWorkPerSecond.value;
+	}
+
+	private Timestamp getThroughputWindowStart(long now) {
+		return new Timestamp(now - Utils.getLongProperty(env, Utils.ETA_THROUGHPUT_WINDOW_PROP, Utils.ETA_THROUGHPUT_WINDOW_MILLIS));
+	}
+
+	private boolean isStale(CachedValue<?> cached) {
+		return cached.value == null 
+				|| System.currentTimeMillis() - cached.readTime >= Utils.getLongProperty(env, Utils.ETA_CACHE_PROP, Utils.ETA_CACHE_MILLIS);
+	}
+
+	/**
+	 * the work finished within the window, over the time since the earliest of those items started
+	 * @param finished the row of finished work and earliest start time
+	 * @param windowStart
+	 * @param now
+	 * @return
+	 */
+	private double getWorkPerSecond(List<Object[]> finished, long windowStart, long now) {
+		if (finished == null || finished.isEmpty() || finished.get(0)[0] == null || finished.get(0)[1] == null)
+		{
+			return 0;
+		}
+		long work = ((Number) finished.get(0)[0]).longValue();
+		// items finishing early in the window may have started before it
+		long start = Math.max(((Timestamp) finished.get(0)[1]).getTime(), windowStart);
+		long elapsed = Math.max(1000L, now - start);
+		return work * 1000.0 / elapsed;
+	}
+
+	private Map<String, Long> toMap(List<Object[]> rows) {
+		Map<String, Long> rv = new HashMap<String, Long>();
+		for (Object[] row : rows)
+		{
+			rv.put((String) row[0], row[1] != null ? ((Number) row[1]).longValue() : 0L);
+		}
+		return rv;
+	}
+
+	/**
+	 * a value aggregated from the item tables, and when it was read
+	 */
+	private static class CachedValue<T> {
+		private T value;
+		private long readTime;
+
+		private void set(T value) {
+			this.value = value;
+			this.readTime = System.currentTimeMillis();
+		}
+	}
+}
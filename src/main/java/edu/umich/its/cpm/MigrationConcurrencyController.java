@@ -0,0 +1,136 @@
+package edu.umich.its.cpm;
+
+import java.util.HashMap;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+/**
+ * adaptive in-flight limits for Box and Google Groups uploads
+ *
+ * the upload tasks report the outcome of each request; the processing thread
+ * hands out no more items than the current limit of each destination. The
+ * upper bound of each limit is the capacity of its executor.
+ *
+ */
+@Component
+class MigrationConcurrencyController {
+
+	@Autowired
+	private Environment env;
+
+	@Autowired
+	private MigrationExecutorConfig executorConfig;
+
+	private AdaptiveConcurrencyLimit boxLimit;
+
+	private AdaptiveConcurrencyLimit googleGroupsLimit;
+
+	@PostConstruct
+	public void init() {
+		double backoffRatio = Utils.getIntProperty(env, Utils.CONCURRENCY_BACKOFF_PERCENT_PROP, Utils.CONCURRENCY_BACKOFF_PERCENT) / 100.0;
+		long cooldown = Utils.getLongProperty(env, Utils.CONCURRENCY_COOLDOWN_PROP, Utils.CONCURRENCY_COOLDOWN_MILLIS);
+
+		int boxMax = executorConfig.getBoxUploadCapacity();
+		boxLimit = new AdaptiveConcurrencyLimit(Utils.MIGRATION_TYPE_BOX,
+				Utils.getIntProperty(env, Utils.CONCURRENCY_BOX_MIN_PROP, 1),
+				boxMax,
+				Utils.getIntProperty(env, Utils.CONCURRENCY_BOX_INITIAL_PROP, boxMax),
+				backoffRatio,
+				Utils.getLongProperty(env, Utils.CONCURRENCY_BOX_LATENCY_THRESHOLD_PROP, Utils.CONCURRENCY_BOX_LATENCY_THRESHOLD_MILLIS),
+				cooldown);
+
+		int googleGroupsMax = executorConfig.getGoogleGroupsUploadCapacity();
+		googleGroupsLimit = new AdaptiveConcurrencyLimit(Utils.MIGRATION_TYPE_GOOGLE_GROUP,
+				Utils.getIntProperty(env, Utils.CONCURRENCY_GOOGLE_GROUPS_MIN_PROP, 1),
+				googleGroupsMax,
+				Utils.getIntProperty(env, Utils.CONCURRENCY_GOOGLE_GROUPS_INITIAL_PROP, googleGroupsMax),
+				backoffRatio,
+				Utils.getLongProperty(env, Utils.CONCURRENCY_GOOGLE_GROUPS_LATENCY_THRESHOLD_PROP, Utils.CONCURRENCY_GOOGLE_GROUPS_LATENCY_THRESHOLD_MILLIS),
+				cooldown);
+	}
+
+	/**
+	 * @return the number of Box uploads allowed in flight
+	 */
+	public int getBoxLimit() {
+		return boxLimit.getLimit();
+	}
+
+	/**
+	 * @return the number of Google Groups uploads allowed in flight
+	 */
+	public int getGoogleGroupsLimit() {
+		return googleGroupsLimit.getLimit();
+	}
+
+	/**
+	 * record a successful Box upload;
+	 * the latency is normalized per MB, since upload time grows with the file size
+	 * @param latencyMillis
+	 * @param fileSize
+	 */
+	public void recordBoxSuccess(long latencyMillis, long fileSize) {
+		long sizeInMB = Math.max(1L, fileSize / (1024L * 1024L));
+		boxLimit.onSuccess(latencyMillis / sizeInMB);
+	}
+
+	/**
+	 * record a failed Box request
+	 * @param responseCode the BoxAPIException response code, 0 when no response is received
+	 */
+	public void recordBoxFailure(int responseCode) {
+		if (isOverloadStatus(responseCode))
+		{
+			boxLimit.onOverload();
+		}
+	}
+
+	/**
+	 * record the result of a Google Groups upload
+	 * @param statusCode the ApiResultWrapper status
+	 * @param latencyMillis
+	 */
+	public void recordGoogleGroupsResult(int statusCode, long latencyMillis) {
+		if (statusCode / 100 == 2 || statusCode == org.apache.http.HttpStatus.SC_CONFLICT)
+		{
+			googleGroupsLimit.onSuccess(latencyMillis);
+		}
+		else if (isOverloadStatus(statusCode))
+		{
+			googleGroupsLimit.onOverload();
+		}
+	}
+
+	/**
+	 * throttling, server errors, and no response at all (timeouts, connection errors,
+	 * or ApiResultWrapper.API_EXCEPTION_ERROR) are taken as overload;
+	 * other client errors say nothing about the destination load
+	 * @param statusCode
+	 * @return
+	 */
+	private boolean isOverloadStatus(int statusCode) {
+		return statusCode == Utils.HTTP_STATUS_TOO_MANY_REQUESTS || statusCode >= 500 || statusCode <= 0;
+	}
+
+	/**
+	 * @return the current limits, for the status endpoint
+	 */
+	public HashMap<String, Object> getStatus() {
+		HashMap<String, Object> rv = new HashMap<String, Object>();
+		rv.put(boxLimit.getName(), getLimitStatus(boxLimit));
+		rv.put(googleGroupsLimit.getName(), getLimitStatus(googleGroupsLimit));
+		return rv;
+	}
+
+	private HashMap<String, Object> getLimitStatus(AdaptiveConcurrencyLimit limit) {
+		HashMap<String, Object> rv = new HashMap<String, Object>();
+		rv.put("limit", limit.getLimit());
+		rv.put("min", limit.getMinLimit());
+		rv.put("max", limit.getMaxLimit());
+		return rv;
+	}
+}
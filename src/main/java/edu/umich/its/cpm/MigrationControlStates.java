@@ -0,0 +1,60 @@
+package edu.umich.its.cpm;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.stereotype.Component;
+
+/**
+ * the ids of the paused or cancelled migrations, kept in memory
+ * so that running uploads can check them at every chunk
+ *
+ * the processing thread reloads the set from the database on every pass,
+ * so that pause and cancel requests received by another instance reach this one.
+ *
+ */
+@Component
+class MigrationControlStates {
+
+	private volatile Set<String> stoppedMigrationIds = newSet();
+
+	/**
+	 * replace the stopped migrations with those read from the database
+	 * @param migrationIds
+	 */
+	public void refresh(Collection<String> migrationIds) {
+		Set<String> refreshed = newSet();
+		refreshed.addAll(migrationIds);
+		stoppedMigrationIds = refreshed;
+	}
+
+	/**
+	 * record migrations paused or cancelled through this instance, ahead of the next refresh
+	 * @param migrationIds
+	 */
+	public void stop(Collection<String> migrationIds) {
+		stoppedMigrationIds.addAll(migrationIds);
+	}
+
+	/**
+	 * record migrations resumed through this instance, ahead of the next refresh
+	 * @param migrationIds
+	 */
+	public void resume(Collection<String> migrationIds) {
+		stoppedMigrationIds.removeAll(migrationIds);
+	}
+
+	/**
+	 * @param migrationId
+	 * @return true if the migration is paused or cancelled
+	 */
+	public boolean isStopped(String migrationId) {
+		return migrationId != null && stoppedMigrationIds.contains(migrationId);
+	}
+
+	private static Set<String> newSet() {
+		return Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	}
+}
@@ -48,6 +48,7 @@ import java.sql.Timestamp;
 import java.io.IOException;
 
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.bind.annotation.ExceptionHandler;
@@ -90,6 +91,18 @@ public class MigrationController implements ErrorController {
 	@Autowired
 	SiteToolExemptRepository tRepository;
 
+	@Autowired
+	BulkMigrationScheduleRepository sRepository;
+
+	@Autowired
+	MigrationControlStates controlStates;
+
+	@Autowired
+	MigrationWorkSignal workSignal;
+
+	@Autowired
+	MigrationCompletionEstimator completionEstimator;
+
 	@Autowired
 	MigrationTaskService migrationTaskService;
 
@@ -511,7 +524,8 @@ public class MigrationController implements ErrorController {
 	}
 
 	/**
-	 * get a specific migration record
+	 * get a specific migration record; 
+	 * an unfinished migration comes with its estimated end time (eta)
 	 *
 	 * @param migration_id
 	 * @return
@@ -537,7 +551,8 @@ public class MigrationController implements ErrorController {
 						+ migration_id + " was done by user id=" + migratedBy
 						+ " , instead of current user " + userId);
 			} else {
-				// find migration record with id
+				// find migration record with id, with its estimated end time while unfinished
+				((Migration) o).setEta(completionEstimator.estimateEndTime((Migration) o));
 				return Response.status(Response.Status.OK)
 						.entity((Migration) o).build();
 			}
@@ -545,6 +560,69 @@ public class MigrationController implements ErrorController {
 		}
 	}
 
+	/**
+	 * pause, resume or cancel the migration:
+	 * /migrations/<migration_id>/pause, /migrations/<migration_id>/resume, /migrations/<migration_id>/cancel
+	 * 
+	 * the running uploads of a paused or cancelled migration stop at their next chunk,
+	 * and their threads go to other migrations; a cancelled migration cannot be resumed
+	 *
+	 * @return
+	 */
+	@POST
+	@RequestMapping(value = "/migrations/{migration_id}/{action}", method = RequestMethod.POST)
+	@ResponseBody
+	public ResponseEntity<String> controlMigration(
+			@PathVariable("migration_id") String migration_id,
+			@PathVariable("action") String action, HttpServletRequest request) {
+		HttpHeaders headers = new HttpHeaders();
+		Migration migration = repository.findOne(migration_id);
+		if (migration == null) {
+			return new ResponseEntity<String>("no matching record for /migrations/" + migration_id, headers,
+					HttpStatus.NOT_FOUND);
+		}
+		String userId = Utils.getCurrentUserId(request, env);
+		// any of the site owners a Box migration is done for may control it
+		if (!Utils.getMigrationOwnerIds(migration.getMigrated_by()).contains(userId) && !Utils.isCurrentUserCPMAdmin(request, env)) {
+			return new ResponseEntity<String>("record for /migrations/" + migration_id + " was done by user id="
+					+ migration.getMigrated_by() + " , not including current user " + userId, headers,
+					HttpStatus.FORBIDDEN);
+		}
+		int updated = 0;
+		if ("pause".equals(action)) {
+			updated = repository.pauseMigration(migration_id);
+		} else if ("resume".equals(action)) {
+			updated = repository.resumeMigration(migration_id);
+		} else if ("cancel".equals(action)) {
+			updated = repository.cancelMigration(migration_id);
+		} else {
+			return new ResponseEntity<String>("Unknown action " + action, headers, HttpStatus.BAD_REQUEST);
+		}
+		if (updated == 0) {
+			return new ResponseEntity<String>("Cannot " + action + " migration " + migration_id
+					+ ", it is finished, cancelled, or already in that state.", headers, HttpStatus.CONFLICT);
+		}
+		applyControlAction(action, Collections.singletonList(migration_id));
+		return new ResponseEntity<String>("Migration " + migration_id + " " + action + " done.", headers,
+				HttpStatus.OK);
+	}
+
+	/**
+	 * let the running uploads on this instance see the new state right away, 
+	 * other instances pick it up at their next processing pass
+	 * @param action
+	 * @param migrationIds
+	 */
+	private void applyControlAction(String action, List<String> migrationIds) {
+		if ("resume".equals(action)) {
+			controlStates.resume(migrationIds);
+		} else {
+			controlStates.stop(migrationIds);
+		}
+		// hand out the freed, or resumed, work
+		workSignal.signal();
+	}
+
 	/**
 	 * found all migrated records (where the migration record have "end_time"
 	 * field value
@@ -1029,6 +1107,35 @@ public class MigrationController implements ErrorController {
 				"/isAdmin");
 	}
 
+	/**
+	 * stop this instance from claiming migration items ahead of a redeploy;
+	 * running item migrations get till the drain timeout to finish, then are returned to the pool
+	 *
+	 * @return the drain state
+	 */
+	@POST
+	@RequestMapping(value = "/drain", method = RequestMethod.POST)
+	@ResponseBody
+	public ResponseEntity<String> drain(HttpServletRequest request) {
+		HttpHeaders headers = new HttpHeaders();
+		if (!Utils.isCurrentUserCPMAdmin(request, env)) {
+			return new ResponseEntity<String>("Only admin users can drain the migration processing.", headers,
+					HttpStatus.FORBIDDEN);
+		}
+		long timeout = Utils.getLongProperty(env, Utils.DRAIN_TIMEOUT_PROP, Utils.DRAIN_TIMEOUT_MILLIS);
+		if (request.getParameter("timeout") != null) {
+			try {
+				timeout = Long.parseLong(request.getParameter("timeout"));
+			} catch (NumberFormatException e) {
+				return new ResponseEntity<String>("Invalid timeout " + request.getParameter("timeout"), headers,
+						HttpStatus.BAD_REQUEST);
+			}
+		}
+		migrationInstanceService.drain(timeout);
+		return new ResponseEntity<String>((new JSONObject(migrationInstanceService.getDrainStatus())).toString(),
+				headers, HttpStatus.ACCEPTED);
+	}
+
 	/**
 	 * Authorize app to access Box account based on current user's role
 	 *
@@ -1339,6 +1446,99 @@ public class MigrationController implements ErrorController {
 				HttpStatus.ACCEPTED);
 	}
 	
+	/**
+	 * set the schedule of a bulk migration:
+	 * 
+	 * 1. to run in time windows, with limits on items in flight and bytes per second, 
+	 * both enforced by each CPM instance on its own, so N instances may reach N times the limits:
+	 * /bulkUpload/<bulk_upload_id>/schedule?windows=22:00-06:00&maxItems=<number>&maxBytesPerSecond=<number>
+	 * 
+	 * 2. to reset to the default schedule:
+	 * /bulkUpload/<bulk_upload_id>/schedule?reset=true
+	 * 
+	 * @return
+	 */
+	@POST
+	@RequestMapping(value = "/bulkUpload/{bulk_upload_id}/schedule", method = RequestMethod.POST)
+	@ResponseBody
+	public ResponseEntity<String> setBulkUploadSchedule(
+			@PathVariable("bulk_upload_id") String bulk_upload_id, HttpServletRequest request) {
+		HttpHeaders headers = new HttpHeaders();
+		if (!Utils.isCurrentUserCPMAdmin(request, env)) {
+			return new ResponseEntity<String>("Only admin users can schedule bulk migrations.", headers,
+					HttpStatus.FORBIDDEN);
+		}
+		if (repository.countMigrationsInBulkUpload(bulk_upload_id) == 0) {
+			return new ResponseEntity<String>("Cannot find bulk migration " + bulk_upload_id, headers,
+					HttpStatus.NOT_FOUND);
+		}
+		if ("true".equals(request.getParameter("reset"))) {
+			if (sRepository.exists(bulk_upload_id)) {
+				sRepository.delete(bulk_upload_id);
+			}
+			return new ResponseEntity<String>("Bulk migration schedule reset.", headers, HttpStatus.OK);
+		}
+
+		String windows = request.getParameter("windows");
+		int maxItems = 0;
+		long maxBytesPerSecond = 0;
+		try {
+			if (request.getParameter("maxItems") != null) {
+				maxItems = Integer.parseInt(request.getParameter("maxItems"));
+			}
+			if (request.getParameter("maxBytesPerSecond") != null) {
+				maxBytesPerSecond = Long.parseLong(request.getParameter("maxBytesPerSecond"));
+			}
+			// validate the time windows
+			new BulkMigrationThrottle(windows, maxItems, maxBytesPerSecond);
+		} catch (IllegalArgumentException e) {
+			// NumberFormatException included
+			return new ResponseEntity<String>("Invalid bulk migration schedule: " + e.getMessage(), headers,
+					HttpStatus.BAD_REQUEST);
+		}
+		BulkMigrationSchedule schedule = new BulkMigrationSchedule(bulk_upload_id, windows, maxItems, maxBytesPerSecond);
+		sRepository.save(schedule);
+		return new ResponseEntity<String>(schedule.toString(), headers, HttpStatus.OK);
+	}
+	
+	/**
+	 * pause, resume or cancel all unfinished migrations within the bulk migration:
+	 * /bulkUpload/<bulk_upload_id>/pause, /bulkUpload/<bulk_upload_id>/resume, /bulkUpload/<bulk_upload_id>/cancel
+	 *
+	 * @return
+	 */
+	@POST
+	@RequestMapping(value = "/bulkUpload/{bulk_upload_id}/{action}", method = RequestMethod.POST)
+	@ResponseBody
+	public ResponseEntity<String> controlBulkUpload(
+			@PathVariable("bulk_upload_id") String bulk_upload_id,
+			@PathVariable("action") String action, HttpServletRequest request) {
+		HttpHeaders headers = new HttpHeaders();
+		if (!Utils.isCurrentUserCPMAdmin(request, env)) {
+			return new ResponseEntity<String>("Only admin users can " + action + " bulk migrations.", headers,
+					HttpStatus.FORBIDDEN);
+		}
+		// the ids are read before the update, so that resumed migrations are known as well
+		List<String> migrationIds = repository.getUnfinishedMigrationIdsInBulkUpload(bulk_upload_id);
+		int updated = 0;
+		if ("pause".equals(action)) {
+			updated = repository.pauseBulkMigration(bulk_upload_id);
+		} else if ("resume".equals(action)) {
+			updated = repository.resumeBulkMigration(bulk_upload_id);
+		} else if ("cancel".equals(action)) {
+			updated = repository.cancelBulkMigration(bulk_upload_id);
+		} else {
+			return new ResponseEntity<String>("Unknown action " + action, headers, HttpStatus.BAD_REQUEST);
+		}
+		if (updated > 0) {
+			// the list may hold migrations that kept their state, e.g. cancelled ones on resume;
+			// the stopped migrations are reloaded from the database on the next processing pass
+			applyControlAction(action, migrationIds);
+		}
+		return new ResponseEntity<String>("Bulk migration " + bulk_upload_id + " " + action + " done for "
+				+ updated + " migrations.", headers, HttpStatus.OK);
+	}
+
 	private JSONObject googleGlobalFailureReport(JSONObject statusObj, JSONObject details, String detailMsg,JSONObject addMembers) {
 		details.put(Utils.REPORT_ATTR_MESSAGE, detailMsg);
 		addMembers.put(Utils.REPORT_ATTR_STATUS,Utils.REPORT_STATUS_ERROR);
@@ -0,0 +1,90 @@
+package edu.umich.its.cpm;
+
+import java.util.HashMap;
+import java.util.concurrent.Semaphore;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+/**
+ * limits the concurrent calls against each external dependency
+ *
+ * with virtual threads there is no pool size bounding the calls, so each call
+ * against CTools, Box or Google Groups takes a permit of its dependency first.
+ * A dependency configured with 0 permits is not limited.
+ *
+ */
+@Component
+class MigrationDependencyLimiter {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(MigrationDependencyLimiter.class);
+
+	// dependency names, also used in the property names
+	public static final String CTOOLS = "ctools";
+	public static final String BOX = "box";
+	public static final String GOOGLE_GROUPS = "googlegroups";
+
+	@Autowired
+	private Environment env;
+
+	@Autowired
+	private MigrationExecutorConfig executorConfig;
+
+	// null entry for a dependency without limit
+	private HashMap<String, Semaphore> semaphores = new HashMap<String, Semaphore>();
+
+	// the configured permits, 0 for a dependency without limit
+	private HashMap<String, Integer> permitCounts = new HashMap<String, Integer>();
+
+	@PostConstruct
+	public void init() {
+		int defaultPermits = executorConfig.isVirtualThreadMode() ? Utils.DEPENDENCY_VIRTUAL_THREADS_PERMITS : 0;
+		for (String dependency : new String[] { CTOOLS, BOX, GOOGLE_GROUPS })
+		{
+			int permits = Utils.getIntProperty(env, Utils.DEPENDENCY_PERMITS_PROP_PREFIX + dependency + Utils.DEPENDENCY_PERMITS_PROP_SUFFIX, defaultPermits);
+			semaphores.put(dependency, permits > 0 ? new Semaphore(permits, true) : null);
+			permitCounts.put(dependency, Math.max(0, permits));
+			log.info("dependency " + dependency + " permits=" + (permits > 0 ? String.valueOf(permits) : "unlimited"));
+		}
+	}
+
+	/**
+	 * @param dependency
+	 * @return the most concurrent calls against the dependency, 0 if not limited
+	 */
+	public int getPermits(String dependency) {
+		Integer permits = permitCounts.get(dependency);
+		return permits != null ? permits : 0;
+	}
+
+	/**
+	 * wait for a permit to call the dependency
+	 * @param dependency
+	 * @throws InterruptedException
+	 */
+	public void acquire(String dependency) throws InterruptedException {
+		Semaphore semaphore = semaphores.get(dependency);
+		if (semaphore != null)
+		{
+			semaphore.acquire();
+		}
+	}
+
+	/**
+	 * return the permit taken by acquire()
+	 * @param dependency
+	 */
+	public void release(String dependency) {
+		Semaphore semaphore = semaphores.get(dependency);
+		if (semaphore != null)
+		{
+			semaphore.release();
+		}
+	}
+}
@@ -82,6 +82,47 @@ public class MigrationEmailMessage {
 	@JsonRawValue
 	private String status;
 
+	/**
+	 * outcome code of the finished item, e.g. OK, ERROR or CONFLICT;
+	 * the status holds the text shown to users
+	 */
+	@Column(name = "OUTCOME", columnDefinition = "VARCHAR(20)")
+	@Getter
+	@Setter
+	private String outcome;
+
+	/**
+	 * the CPM instance which claimed the item for processing
+	 */
+	@Column(name = "OWNER_NODE", columnDefinition = "VARCHAR(99)")
+	@Getter
+	@Setter
+	private String owner_node;
+
+	/**
+	 * the claim is held by the owner node till this time
+	 */
+	@Column(name = "LEASE_EXPIRY", columnDefinition = "TIMESTAMP")
+	@Getter
+	@Setter
+	private Timestamp lease_expiry;
+
+	/**
+	 * the number of times the item has been returned to the pool after its claim expired
+	 */
+	@Column(name = "ATTEMPT_COUNT", columnDefinition = "NUMBER(10)")
+	@Getter
+	@Setter
+	private Integer attempt_count;
+
+	/**
+	 * priority lane, interactive or bulk, inherited from the parent migration
+	 */
+	@Column(name = "PRIORITY", columnDefinition = "VARCHAR(20)")
+	@Getter
+	@Setter
+	private String priority;
+
 	protected MigrationEmailMessage() {
 	}
 
@@ -3,8 +3,10 @@ package edu.umich.its.cpm;
 import java.util.List;
 import java.sql.Timestamp;
 
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.repository.CrudRepository;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 
 import javax.persistence.EntityManager;
 import javax.persistence.NamedNativeQuery;
@@ -32,45 +34,127 @@ public interface MigrationEmailMessageRepository extends CrudRepository<Migratio
 	@Query("SELECT count(*) from MigrationEmailMessage")
 	public int validate();
 	
+	/**
+	 * Finds the first unprocessed message of each migration; 
+	 * messages of paused or cancelled migrations, and of held bulk migrations, are left out
+	 * @param heldBulkMigrationIds the bulk migrations whose items may not start now
+	 * @param holdUnscheduled 1 to leave out the bulk migrations without their own schedule, 0 otherwise
+	 * @param scheduledBulkMigrationIds the bulk migrations with their own schedule
+	 * @return
+	 */
 	@Query(value = "select * from migration_email_message " +
 			"where message_id in " +
 			"(SELECT message_id FROM " + 
             "(SELECT message_id, row_number() " +
             "OVER (PARTITION BY migration_id order by message_id) as rownumber " + 
-            "FROM migration_email_message " + 
-            "where start_time is null) " + 
+            "FROM migration_email_message e " + 
+            "where start_time is null " + 
+            "and not exists (select 1 from migration m where m.migration_id = e.migration_id and (m.control_state is not null " + 
+            "or m.bulk_migration_id in (?1) or (?2 = 1 and m.bulk_migration_id not in (?3))))) " + 
             "where rownumber = 1)", nativeQuery = true)
-	public List<MigrationEmailMessage> getFirstNewMessagePerSite();
+	public List<MigrationEmailMessage> getFirstNewMessagePerSite(List<String> heldBulkMigrationIds, int holdUnscheduled, 
+			List<String> scheduledBulkMigrationIds);
 	
 	/**
-	 * set the start time for message migration
+	 * claim the given message for processing by one node:
+	 * the update only succeeds if the message has not been claimed yet, 
+	 * so that the same message is not posted twice by different nodes
 	 * @param message_id
 	 * @param t
+	 * @param ownerNode
+	 * @param leaseExpiry
+	 * @return 1 if the claim succeeds, 0 otherwise
 	 */
 	@Transactional
 	@Modifying(clearAutomatically = false)
-	@Query("update MigrationEmailMessage message set message.start_time = ?#{[1]} where message.message_id = ?#{[0]}")
-	public void setMigrationMessageStartTime(String message_id, Timestamp t);
+	@Query("update MigrationEmailMessage message set message.start_time = ?#{[1]}, message.owner_node = ?#{[2]}, message.lease_expiry = ?#{[3]} where message.message_id = ?#{[0]} and message.start_time is null")
+	public int claimMigrationMessage(String message_id, Timestamp t, String ownerNode, Timestamp leaseExpiry);
 	
 	/**
-	 * set the end time for message migration
+	 * extend the claim of the given message, as long as it is still owned by the given node
 	 * @param message_id
-	 * @param t
+	 * @param ownerNode
+	 * @param leaseExpiry
+	 * @return 1 if the claim is renewed, 0 if the claim is lost
+	 */
+	@Transactional
+	@Modifying(clearAutomatically = false)
+	@Query("update MigrationEmailMessage message set message.lease_expiry = ?#{[2]} where message.message_id = ?#{[0]} and message.owner_node = ?#{[1]} and message.end_time is null")
+	public int renewMigrationMessageLease(String message_id, String ownerNode, Timestamp leaseExpiry);
+	
+	/**
+	 * find unfinished messages whose claim expired, 
+	 * or started without a claim before the stale time
+	 * @param now
+	 * @param staleBefore
+	 * @return list of message id, attempt count and migration id
+	 */
+	@Query("SELECT message.message_id, message.attempt_count, message.migration_id FROM MigrationEmailMessage message WHERE message.end_time is null and message.start_time is not null and (message.lease_expiry < ?#{[0]} or (message.lease_expiry is null and message.start_time < ?#{[1]}))")
+	public List<Object[]> findExpiredMigrationMessages(Timestamp now, Timestamp staleBefore);
+	
+	/**
+	 * return the expired message into the pool, and count the attempt
+	 * @param message_id
+	 * @param now
+	 * @param staleBefore
+	 * @return 1 if the message is returned, 0 if the claim was renewed meanwhile
 	 */
 	@Transactional
 	@Modifying(clearAutomatically = false)
-	@Query("update MigrationEmailMessage message set message.end_time = ?#{[1]} where message.message_id = ?#{[0]}")
-	public void setMigrationMessageEndTime(String message_id, Timestamp t);
+	@Query("update MigrationEmailMessage message set message.start_time = null, message.owner_node = null, message.lease_expiry = null, message.attempt_count = coalesce(message.attempt_count, 0) + 1 where message.message_id = ?#{[0]} and message.end_time is null and (message.lease_expiry < ?#{[1]} or (message.lease_expiry is null and message.start_time < ?#{[2]}))")
+	public int releaseExpiredMigrationMessage(String message_id, Timestamp now, Timestamp staleBefore);
 	
 	/**
-	 * set status for message migration
+	 * mark the expired message as finished with given status
 	 * @param message_id
+	 * @param now
+	 * @param staleBefore
 	 * @param status
+	 * @param outcome
+	 * @return 1 if the message is updated, 0 if the claim was renewed meanwhile
 	 */
 	@Transactional
 	@Modifying(clearAutomatically = false)
-	@Query("update MigrationEmailMessage message set message.status = ?#{[1]} where message.message_id = ?#{[0]}")
-	public void setMigrationMessageStatus(String message_id, String status);
+	@Query("update MigrationEmailMessage message set message.end_time = ?#{[1]}, message.status = ?#{[3]}, message.outcome = ?#{[4]}, message.owner_node = null, message.lease_expiry = null, message.attempt_count = coalesce(message.attempt_count, 0) + 1 where message.message_id = ?#{[0]} and message.end_time is null and (message.lease_expiry < ?#{[1]} or (message.lease_expiry is null and message.start_time < ?#{[2]}))")
+	public int abandonExpiredMigrationMessage(String message_id, Timestamp now, Timestamp staleBefore, String status, String outcome);
+	
+	/**
+	 * put the given message back into the pool, if still claimed by the given node and unfinished; 
+	 * a claim that expired and was taken over by another node is left alone
+	 * @param message_id
+	 * @param ownerNode
+	 * @return 1 if returned, 0 if the claim is lost
+	 */
+	@Transactional
+	@Modifying(clearAutomatically = false)
+	@Query("update MigrationEmailMessage message set message.start_time = null, message.status = null, message.owner_node = null, message.lease_expiry = null where message.message_id = ?#{[0]} and message.owner_node = ?#{[1]} and message.end_time is null")
+	public int releaseMigrationMessage(String message_id, String ownerNode);
+	
+	/**
+	 * return the unfinished messages claimed by the given node into the pool,
+	 * without counting an attempt; used when the node drains before shutdown
+	 * @param ownerNode
+	 * @return the number of messages returned
+	 */
+	@Transactional
+	@Modifying(clearAutomatically = false)
+	@Query("update MigrationEmailMessage message set message.start_time = null, message.status = null, message.owner_node = null, message.lease_expiry = null where message.owner_node = ?#{[0]} and message.end_time is null")
+	public int releaseMigrationMessagesOfNode(String ownerNode);
+	
+	/**
+	 * set end time, status and outcome for message migration, 
+	 * as long as the message is still claimed by the given node
+	 * @param message_id
+	 * @param t
+	 * @param status
+	 * @param outcome
+	 * @param ownerNode
+	 * @return 1 if the message is updated, 0 if the claim is lost
+	 */
+	@Transactional
+	@Modifying(clearAutomatically = false)
+	@Query("update MigrationEmailMessage message set message.end_time = ?#{[1]}, message.status = ?#{[2]}, message.outcome = ?#{[3]} where message.message_id = ?#{[0]} and message.owner_node = ?#{[4]} and message.end_time is null")
+	public int finishMigrationMessage(String message_id, Timestamp t, String status, String outcome, String ownerNode);
 	
 	/**
 	 * select all message items for certain migration record
@@ -94,10 +178,52 @@ public interface MigrationEmailMessageRepository extends CrudRepository<Migratio
 	public Timestamp getLastItemEndTimeForMigration(String migrationId);
 	
 	/**
-	 * select all message item status for given migration
+	 * count the finished messages of given migration by outcome
+	 * @param migrationId
+	 * @return list of outcome and count
+	 */
+	@Query("select message.outcome, count(*) from MigrationEmailMessage message where message.migration_id= ?#{[0]} and message.end_time is not null group by message.outcome")
+	public List<Object[]> getFinishedItemOutcomeCountsForMigration(String migrationId);
+	
+	/**
+	 * select the status of the finished messages of given migration, 
+	 * with an outcome other than the given one, a page at a time
 	 * @param migrationId
+	 * @param outcome
+	 * @param pageable
 	 */
-	@Query("SELECT message FROM MigrationEmailMessage message WHERE message.migration_id= ?#{[0]} order by message.start_time asc")
-	public List<MigrationEmailMessage> getAllItemStatusForMigration(String migrationId);
+	@Query("SELECT message.status FROM MigrationEmailMessage message WHERE message.migration_id= ?#{[0]} and message.end_time is not null and (message.outcome is null or message.outcome <> ?#{[1]}) order by message.start_time asc, message.message_id asc")
+	public List<String> getFailedItemStatusForMigration(String migrationId, String outcome, Pageable pageable);
 	
-}
\ No newline at end of file
+	/**
+	 * select the messages among the given ones that are already stored
+	 * @param messageIds
+	 * @return message id, migration id and end time of each
+	 */
+	@Query("SELECT message.message_id, message.migration_id, message.end_time FROM MigrationEmailMessage message WHERE message.message_id in :messageIds")
+	public List<Object[]> getExistingMessages(@Param("messageIds") List<String> messageIds);
+	
+	/**
+	 * count the messages being uploaded for given migration
+	 * @param migrationId
+	 */
+	@Query("select count(*) from MigrationEmailMessage message where message.migration_id= ?#{[0]} and message.start_time is not null and message.end_time is null")
+	public int getRunningMigrationMessageCountForMigration(String migrationId);
+	
+	/**
+	 * the number of remaining messages of each unfinished migration, 
+	 * leaving out paused and cancelled migrations
+	 * @return list of migration id and the count of its unfinished messages
+	 */
+	@Query("SELECT message.migration_id, COUNT(message) FROM MigrationEmailMessage message, Migration m WHERE m.migration_id = message.migration_id and m.control_state is null and message.end_time is null group by message.migration_id")
+	public List<Object[]> getRemainingMessageCountPerMigration();
+	
+	/**
+	 * the number of messages finished since the given time, 
+	 * and the earliest start time among them
+	 * @param since
+	 * @return a single row of message count and start time
+	 */
+	@Query("SELECT COUNT(message), MIN(message.start_time) FROM MigrationEmailMessage message WHERE message.end_time >= ?#{[0]}")
+	public List<Object[]> getFinishedMessageCountSince(Timestamp since);
+}
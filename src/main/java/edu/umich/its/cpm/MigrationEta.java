@@ -0,0 +1,64 @@
+package edu.umich.its.cpm;
+
+import java.util.Collection;
+
+/**
+ * estimates how long a migration takes to finish
+ *
+ * The remaining work of the migration and of the other migrations competing
+ * for the same destination are given in the same unit (bytes for Box, messages
+ * for Google Groups), together with the observed throughput of the destination
+ * in that unit per second.
+ *
+ * With the shortest-remaining-work-first policy the migrations with less work
+ * finish before this one; with fair sharing every other migration takes up to
+ * as much throughput as this one needs, until either of them is finished.
+ *
+ */
+public final class MigrationEta {
+
+	// no estimate without observed throughput
+	public static final long UNKNOWN = -1L;
+
+	private MigrationEta() {
+	}
+
+	/**
+	 * @param remainingWork the remaining work of the migration
+	 * @param otherRemainingWork the remaining work of the other unfinished migrations of the same destination
+	 * @param shortestFirst true for the shortest-remaining-work-first policy, false for fair sharing
+	 * @param workPerSecond the observed throughput of the destination
+	 * @return the estimated milliseconds until the migration finishes, or UNKNOWN
+	 */
+	public static long estimateMillis(long remainingWork, Collection<Long> otherRemainingWork, boolean shortestFirst, double workPerSecond) {
+		if (remainingWork <= 0)
+		{
+			return 0L;
+		}
+		if (workPerSecond <= 0)
+		{
+			return UNKNOWN;
+		}
+		double work = remainingWork;
+		for (Long other : otherRemainingWork)
+		{
+			if (other == null || other <= 0)
+			{
+				continue;
+			}
+			if (shortestFirst)
+			{
+				// smaller migrations go first; ties are served alongside
+				if (other <= remainingWork)
+				{
+					work += other;
+				}
+			}
+			else
+			{
+				work += Math.min(other, remainingWork);
+			}
+		}
+		return (long) Math.ceil(work * 1000.0 / workPerSecond);
+	}
+}
@@ -0,0 +1,211 @@
+package edu.umich.its.cpm;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.scheduling.concurrent.ConcurrentTaskExecutor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+/**
+ * bounded thread pools for the @Async migration tasks
+ *
+ * Box uploads, Google Groups uploads and bulk migration preparation each run
+ * in their own pool, so that a slow destination only holds up its own work.
+ * All pools abort on overflow; the caller gets a TaskRejectedException and
+ * is responsible for returning the item back into the pool.
+ *
+ * With migration.executor.virtual.threads enabled, and running on a JDK with
+ * virtual threads, Box and Google Groups uploads run on a virtual thread per
+ * task instead. The number of items in flight is then bounded by the
+ * configured capacity, and the calls against each dependency by
+ * MigrationDependencyLimiter, instead of by pool size.
+ *
+ */
+@Configuration
+public class MigrationExecutorConfig {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(MigrationExecutorConfig.class);
+
+	// bean names, referenced by @Async
+	public static final String BOX_UPLOAD_EXECUTOR = "boxUploadExecutor";
+	public static final String GOOGLE_GROUPS_UPLOAD_EXECUTOR = "googleGroupsUploadExecutor";
+	public static final String BULK_PREPARATION_EXECUTOR = "bulkPreparationExecutor";
+
+	@Autowired
+	private Environment env;
+
+	// virtual thread executors, to be shut down with the application context
+	private List<ExecutorService> virtualThreadExecutors = new ArrayList<ExecutorService>();
+
+	// whether virtual thread mode is enabled and supported, resolved once
+	private Boolean virtualThreadMode = null;
+
+	/**
+	 * @return thread pool for uploading files into Box
+	 */
+	@Bean(name = BOX_UPLOAD_EXECUTOR)
+	public AsyncTaskExecutor boxUploadExecutor() {
+		AsyncTaskExecutor virtualThreadExecutor = createVirtualThreadExecutor("box-upload-");
+		if (virtualThreadExecutor != null)
+		{
+			return virtualThreadExecutor;
+		}
+		int queueCapacity = Utils.getIntProperty(env, Utils.BOX_EXECUTOR_QUEUE_CAPACITY_PROP, 0);
+		return createExecutor("box-upload-", getBoxUploadCapacity(), queueCapacity);
+	}
+
+	/**
+	 * @return thread pool for uploading messages into Google Groups
+	 */
+	@Bean(name = GOOGLE_GROUPS_UPLOAD_EXECUTOR)
+	public AsyncTaskExecutor googleGroupsUploadExecutor() {
+		AsyncTaskExecutor virtualThreadExecutor = createVirtualThreadExecutor("google-groups-upload-");
+		if (virtualThreadExecutor != null)
+		{
+			return virtualThreadExecutor;
+		}
+		int queueCapacity = Utils.getIntProperty(env, Utils.GOOGLE_GROUPS_EXECUTOR_QUEUE_CAPACITY_PROP, 0);
+		return createExecutor("google-groups-upload-", getGoogleGroupsUploadCapacity(), queueCapacity);
+	}
+
+	/**
+	 * bulk preparation works off the queued site ids one batch at a time,
+	 * hence a single thread by default
+	 * @return thread pool for preparing bulk migrations
+	 */
+	@Bean(name = BULK_PREPARATION_EXECUTOR)
+	public ThreadPoolTaskExecutor bulkPreparationExecutor() {
+		int poolSize = Utils.getIntProperty(env, Utils.BULK_EXECUTOR_POOL_SIZE_PROP, 1);
+		int queueCapacity = Utils.getIntProperty(env, Utils.BULK_EXECUTOR_QUEUE_CAPACITY_PROP, 0);
+		return createExecutor("bulk-preparation-", poolSize, queueCapacity);
+	}
+
+	/**
+	 * @return the most Box uploads that can run at once
+	 */
+	public int getBoxUploadCapacity() {
+		if (isVirtualThreadMode())
+		{
+			return Utils.getIntProperty(env, Utils.VIRTUAL_THREADS_BOX_CAPACITY_PROP, Utils.VIRTUAL_THREADS_CAPACITY);
+		}
+		return positive(Utils.getIntProperty(env, Utils.BOX_EXECUTOR_POOL_SIZE_PROP, getMaxParallelThreadNum()));
+	}
+
+	/**
+	 * @return the most Google Groups uploads that can run at once
+	 */
+	public int getGoogleGroupsUploadCapacity() {
+		if (isVirtualThreadMode())
+		{
+			return Utils.getIntProperty(env, Utils.VIRTUAL_THREADS_GOOGLE_GROUPS_CAPACITY_PROP, Utils.VIRTUAL_THREADS_CAPACITY);
+		}
+		return positive(Utils.getIntProperty(env, Utils.GOOGLE_GROUPS_EXECUTOR_POOL_SIZE_PROP, getMaxParallelThreadNum()));
+	}
+
+	/**
+	 * @return true if virtual threads are enabled and supported by the running JDK
+	 */
+	public synchronized boolean isVirtualThreadMode() {
+		if (virtualThreadMode == null)
+		{
+			virtualThreadMode = Boolean.parseBoolean(env.getProperty(Utils.VIRTUAL_THREADS_PROP, "false"))
+					&& getVirtualThreadFactoryMethod() != null;
+		}
+		return virtualThreadMode;
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		for (ExecutorService executor : virtualThreadExecutors)
+		{
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * the former max_parallel_threads_prop setting stays the default pool size
+	 * @return
+	 */
+	private int getMaxParallelThreadNum() {
+		int threadNum = Utils.getIntProperty(env, Utils.MAX_PARALLEL_THREADS_PROP, Utils.MAX_PARALLEL_THREADS_NUM);
+		return threadNum > 0 ? threadNum : Utils.MAX_PARALLEL_THREADS_NUM;
+	}
+
+	private int positive(int poolSize) {
+		if (poolSize < 1)
+		{
+			log.error("pool size should be positive, use 1 instead of " + poolSize);
+			return 1;
+		}
+		return poolSize;
+	}
+
+	private ThreadPoolTaskExecutor createExecutor(String threadNamePrefix, int poolSize, int queueCapacity) {
+		poolSize = positive(poolSize);
+		if (queueCapacity < 0)
+		{
+			queueCapacity = 0;
+		}
+		ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+		executor.setThreadNamePrefix(threadNamePrefix);
+		executor.setCorePoolSize(poolSize);
+		executor.setMaxPoolSize(poolSize);
+		executor.setQueueCapacity(queueCapacity);
+		// reject instead of running in the caller thread, which is the single processing thread
+		executor.setRejectedExecutionHandler(new ThreadPoolExecutor.AbortPolicy());
+		log.info("executor " + threadNamePrefix + " pool size=" + poolSize + " queue capacity=" + queueCapacity);
+		return executor;
+	}
+
+	/**
+	 * @param name
+	 * @return an executor starting a virtual thread per task,
+	 * or null if not enabled, or not supported by the running JDK
+	 */
+	private AsyncTaskExecutor createVirtualThreadExecutor(String name) {
+		if (!isVirtualThreadMode())
+		{
+			return null;
+		}
+		try
+		{
+			// compiled for older JDKs, hence the reflective call to Executors.newVirtualThreadPerTaskExecutor()
+			ExecutorService executor = (ExecutorService) getVirtualThreadFactoryMethod().invoke(null);
+			virtualThreadExecutors.add(executor);
+			log.info("executor " + name + " runs on virtual threads");
+			return new ConcurrentTaskExecutor(executor);
+		}
+		catch (Exception e)
+		{
+			log.error("cannot create virtual thread executor " + name + ", use thread pool instead " + e.getMessage());
+			virtualThreadMode = Boolean.FALSE;
+			return null;
+		}
+	}
+
+	private Method getVirtualThreadFactoryMethod() {
+		try
+		{
+			return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+		}
+		catch (NoSuchMethodException e)
+		{
+			log.warn("virtual threads are not supported by Java " + System.getProperty("java.version") + ", use thread pools instead");
+			return null;
+		}
+	}
+}
@@ -7,17 +7,23 @@ import org.json.JSONException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.DependsOn;
 import org.springframework.core.env.Environment;
 import org.springframework.stereotype.Component;
 
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.Iterator;
 import java.io.IOException;
 import java.sql.Timestamp;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
@@ -27,11 +33,15 @@ import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.protocol.HttpContext;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Service;
 
 @Service
 @Component
+// the executors must outlive this service, so that running item migrations can finish while draining on shutdown
+@DependsOn({MigrationExecutorConfig.BOX_UPLOAD_EXECUTOR, MigrationExecutorConfig.GOOGLE_GROUPS_UPLOAD_EXECUTOR})
 class MigrationInstanceService {
 	
 	private static final Logger log = LoggerFactory
@@ -52,31 +62,104 @@ class MigrationInstanceService {
 	@Autowired
 	private MigrationRepository mRepository;
 	
+	@Autowired
+	private MigrationWorkSignal workSignal;
+	
+	@Autowired
+	private MigrationNode node;
+	
 	@Autowired
 	private Environment env;
 	
-	/**
-	 * check the setting of parallel processing thread number
-	 * @return
-	 */
-	private int getMaxParallelThreadNum()
-	{
-		if (env.getProperty(Utils.MAX_PARALLEL_THREADS_PROP) != null)
+	@Autowired
+	private MigrationConcurrencyController concurrencyController;
+	
+	@Autowired
+	private MigrationExecutorConfig executorConfig;
+	
+	@Autowired
+	private MigrationLeaderElection leaderElection;
+	
+	@Autowired
+	private BulkMigrationThrottles bulkMigrationThrottles;
+	
+	@Autowired
+	private MigrationControlStates controlStates;
+	
+	@Autowired
+	private MigrationCompletionEstimator completionEstimator;
+	
+	@Autowired
+	private MigrationMemoryBudget memoryBudget;
+
+	@Autowired
+	private MigrationItemCounter itemCounter;
+
+	@Autowired
+	private MigrationStateRecorder stateRecorder;
+	
+	// interleaves pending items across users and migrations, 
+	// or serves the migrations with least remaining work first; one per Box file size class
+	private List<ShortestRemainingWorkScheduler<MigrationBoxFileCandidate>> boxFileSchedulers;
+	
+	// Box files of each size class run up to their own concurrency limit
+	private FileSizeClasses boxSizeClasses;
+	
+	private ShortestRemainingWorkScheduler<MigrationEmailMessage> messageScheduler;
+	
+	// set once draining starts: no more items are claimed by this instance
+	private volatile boolean draining = false;
+	
+	// the time when unfinished item migrations are given up and returned to the pool
+	private volatile long drainDeadline = 0;
+	
+	// counted down when the processing thread has released all its claims
+	private final CountDownLatch drained = new CountDownLatch(1);
+	
+	@PostConstruct
+	public void init() {
+		long maxWait = Utils.getLongProperty(env, Utils.SCHEDULER_SRWF_MAX_WAIT_PROP, Utils.SCHEDULER_SRWF_MAX_WAIT_MILLIS);
+		try
 		{
-			try
-			{
-				// return the setting in property file
-				return Integer.parseInt(env.getProperty(Utils.MAX_PARALLEL_THREADS_PROP));
+			boxSizeClasses = new FileSizeClasses(env.getProperty(Utils.BOX_SIZE_CLASSES_PROP));
+		}
+		catch (IllegalArgumentException e)
+		{
+			log.error("Cannot parse " + Utils.BOX_SIZE_CLASSES_PROP + ", Box files are not split by size: " + e.getMessage());
+			boxSizeClasses = new FileSizeClasses(null);
+		}
+		MigrationItemScheduler.ItemKey<MigrationBoxFileCandidate> boxFileKey = new MigrationItemScheduler.ItemKey<MigrationBoxFileCandidate>() {
+			public String getUserId(MigrationBoxFileCandidate item) {
+				return item.getUser_id();
 			}
-			catch (NumberFormatException e)
-			{
-				// log error and return default value
-				log.error(Utils.MAX_PARALLEL_THREADS_PROP + " property should have integer value. ");
-				return 0;
+
+			public String getMigrationId(MigrationBoxFileCandidate item) {
+				return item.getMigration_id();
 			}
+
+			public String getPriority(MigrationBoxFileCandidate item) {
+				return item.getPriority();
+			}
+		};
+		boxFileSchedulers = new ArrayList<ShortestRemainingWorkScheduler<MigrationBoxFileCandidate>>();
+		for (int sizeClass = 0; sizeClass < boxSizeClasses.size(); sizeClass++)
+		{
+			boxFileSchedulers.add(new ShortestRemainingWorkScheduler<MigrationBoxFileCandidate>(boxFileKey, maxWait));
 		}
-		// return default value
-		return Utils.MAX_PARALLEL_THREADS_NUM;
+		messageScheduler = new ShortestRemainingWorkScheduler<MigrationEmailMessage>(
+				new MigrationItemScheduler.ItemKey<MigrationEmailMessage>() {
+					public String getUserId(MigrationEmailMessage item) {
+						return item.getUser_id();
+					}
+
+					public String getMigrationId(MigrationEmailMessage item) {
+						return item.getMigration_id();
+					}
+
+					public String getPriority(MigrationEmailMessage item) {
+						return item.getPriority();
+					}
+				}, maxWait);
 	}
 	
 	@Async
@@ -84,76 +167,518 @@ class MigrationInstanceService {
 		
 		log.info("Box Migration Processing thread is running");
 		
-		int threadNum = getMaxParallelThreadNum();
+		
+		// the longest wait without any new work signalled, as a safety net
+		long sweepInterval = Utils.getLongProperty(env, Utils.DISPATCHER_SWEEP_INTERVAL_PROP, Utils.DISPATCHER_SWEEP_INTERVAL_MILLIS);
+		// the shortest gap between two processing passes
+		long minInterval = Utils.getLongProperty(env, Utils.DISPATCHER_MIN_INTERVAL_PROP, Utils.DISPATCHER_MIN_INTERVAL_MILLIS);
+		// how often expired claims are reclaimed
+		long reaperInterval = Utils.getLongProperty(env, Utils.CLAIM_REAPER_INTERVAL_PROP, Utils.CLAIM_REAPER_INTERVAL_MILLIS);
+		long lastReapTime = 0;
+		long lastSweepTime = 0;
 		
 		// future list for Box migration tasks
-		List<Future<String>> futureBoxList = new ArrayList<Future<String>>();
+		List<MigrationTaskHandle> futureBoxList = new ArrayList<MigrationTaskHandle>();
 		
 		// future list for Google Groups migration tasks
-		List<Future<String>> futureGoogleGroupList = new ArrayList<Future<String>>();
+		List<MigrationTaskHandle> futureGoogleGroupList = new ArrayList<MigrationTaskHandle>();
+		
+		// future of the running bulk preparation task
+		Future<String> bulkPreparationFuture = null;
 
 		while (true)
 		{
 
-			// delay for 5 seconds
-			Thread.sleep(5000L);
+			// wait till new work is enqueued, or an item migration finishes, 
+			// or the sweep interval elapses; wake up in time to renew the leader lease
+			boolean signalled = workSignal.await(Math.min(sweepInterval, leaderElection.getRenewInterval()));
+			
+			if (draining)
+			{
+				// claim nothing new; wait for the running item migrations, then leave
+				if (drained.getCount() > 0 && finishDraining(futureBoxList, futureGoogleGroupList))
+				{
+					drained.countDown();
+				}
+				Thread.sleep(minInterval);
+				continue;
+			}
+			
+			// check whether there is queued-up site id for migration, 
+			// and prepare it in the background, one batch at a time
+			if (bulkPreparationFuture == null || bulkPreparationFuture.isDone())
+			{
+				try
+				{
+					bulkPreparationFuture = migrationTaskService.prepareBatchFileMigrationRequest();
+				}
+				catch (TaskRejectedException e)
+				{
+					log.warn("bulk preparation executor is busy, try again later " + e.getMessage());
+				}
+			}
 			
-			// check whether there is queued-up site id for migration
-			migrationTaskService.handleWithBatchFileMigrationRequest();
+			// pick up migrations paused or cancelled through other instances, 
+			// so that their running uploads here are aborted
+			controlStates.refresh(mRepository.getStoppedMigrationIds());
+			
+			// the reaper and the status aggregation are cluster-wide duties, run by the leader only
+			boolean leader = leaderElection.isLeader();
+			
+			// return items whose claim expired, e.g. because the owner node died, back into the pool
+			if (leader && System.currentTimeMillis() - lastReapTime >= reaperInterval)
+			{
+				lastReapTime = System.currentTimeMillis();
+				reclaimExpiredItems();
+			}
 			
-			/*********** Box migration tasks ***********/
-			// looping through resource request
-			List<MigrationBoxFile> bFiles = fRepository.findNextNewMigrationBoxFile();
-			if (bFiles != null && bFiles.size() > 0)
+			// claim items on new work, or when the sweep interval elapses; 
+			// the more frequent wake-ups for the leader lease do not poll for items
+			if (signalled || System.currentTimeMillis() - lastSweepTime >= sweepInterval)
 			{
-				// get right HttpContext object
-				HashMap<String, Object> sessionAttributes = Utils.login_becomeuser(env, env.getProperty(Utils.ENV_PROPERTY_USERNAME));
-				HttpContext httpContext = sessionAttributes != null ? (HttpContext) sessionAttributes.get("httpContext"):null;
-				String sessionId = sessionAttributes != null ? (String) sessionAttributes.get("sessionId"):null;
+				lastSweepTime = System.currentTimeMillis();
+				bulkMigrationThrottles.refresh();
+				// whether a bulk item was held back by its schedule
+				boolean throttled = false;
+				boolean shortestFirst = completionEstimator.isShortestFirst();
 				
-				// process with the Box upload request
-				for(MigrationBoxFile bFile : bFiles)
-				{	
-					if (futureBoxList.size() < threadNum)
+				// never hand out more items than the adaptive limit of each destination, 
+				// which is bounded by the executor threads, so that claimed items do not wait in the executor queue
+				int boxThreadNum = Math.min(executorConfig.getBoxUploadCapacity(), concurrencyController.getBoxLimit());
+				int googleGroupThreadNum = Math.min(executorConfig.getGoogleGroupsUploadCapacity(), concurrencyController.getGoogleGroupsLimit());
+				// bulk items cannot take the threads reserved for the interactive lane
+				int boxBulkThreadNum = getBulkThreadNum(boxThreadNum);
+				int googleGroupBulkThreadNum = getBulkThreadNum(googleGroupThreadNum);
+			
+				/*********** Box migration tasks ***********/
+			    // remove finished Box migration task from future list
+				trimFutureListRemoveFinishedTask(futureBoxList);
+			
+				// looping through resource request, one size class after the other, each up to its own limit;
+				// smallest files of each migration first, interleaved across users and migrations, 
+				// or migrations with least remaining work first; interactive lane first
+				int boxBulkCount = countBulkTasks(futureBoxList);
+				// leave out the bulk migrations outside their time windows or at their item limit
+				List<String> heldBulkMigrationIds = bulkMigrationThrottles.getHeldBulkMigrationIds(
+						countBulkMigrationTasks(futureBoxList, futureGoogleGroupList));
+				Map<String, Long> boxRemainingWork = null;
+				// the CTools session, after the first candidates are found
+				HttpContext httpContext = null;
+				String sessionId = null;
+				boolean loggedIn = false;
+				boolean rejected = false;
+				for (int sizeClass = 0; sizeClass < boxSizeClasses.size() && !rejected && futureBoxList.size() < boxThreadNum; sizeClass++)
+				{
+					int classThreadNum = boxSizeClasses.getFreeSlots(sizeClass, 
+							countSizeClassTasks(futureBoxList, sizeClass), boxThreadNum - futureBoxList.size());
+					if (classThreadNum == 0)
 					{
-						futureBoxList.add( migrationTaskService.uploadBoxFile(bFile, httpContext, sessionId));
+						continue;
+					}
+					List<MigrationBoxFileCandidate> bFiles = findNextNewMigrationBoxFileCandidates(classThreadNum, 
+							boxSizeClasses.getMinSize(sizeClass), boxSizeClasses.getMaxSize(sizeClass), heldBulkMigrationIds);
+					if (bFiles.isEmpty())
+					{
+						continue;
+					}
+					ShortestRemainingWorkScheduler<MigrationBoxFileCandidate> boxFileScheduler = boxFileSchedulers.get(sizeClass);
+					if (shortestFirst && boxRemainingWork == null)
+					{
+						boxRemainingWork = completionEstimator.getBoxRemainingWork();
+					}
+					bFiles = shortestFirst ? boxFileScheduler.order(bFiles, boxRemainingWork) : boxFileScheduler.order(bFiles);
+					
+					if (!loggedIn)
+					{
+						// get right HttpContext object
+						HashMap<String, Object> sessionAttributes = Utils.login_becomeuser(env, env.getProperty(Utils.ENV_PROPERTY_USERNAME));
+						httpContext = sessionAttributes != null ? (HttpContext) sessionAttributes.get("httpContext"):null;
+						sessionId = sessionAttributes != null ? (String) sessionAttributes.get("sessionId"):null;
+						loggedIn = true;
+					}
+				
+					// process with the Box upload request
+					int classCount = 0;
+					for(MigrationBoxFileCandidate bFile : bFiles)
+					{	
+						if (futureBoxList.size() >= boxThreadNum || classCount >= classThreadNum)
+						{
+							break;
+						}
+						boolean bulk = Utils.PRIORITY_BULK.equals(bFile.getPriority());
+						if (bulk && boxBulkCount >= boxBulkThreadNum)
+						{
+							// bulk lane is full; interactive items are ordered first, so none is left
+							break;
+						}
+						String bulkMigrationId = bulk ? bulkMigrationThrottles.getBulkMigrationId(bFile.getMigration_id()) : null;
+						if (!bulkMigrationThrottles.admit(bulkMigrationId, 
+								countBulkMigrationTasks(bulkMigrationId, futureBoxList, futureGoogleGroupList), bFile.getFile_size()))
+						{
+							// beyond the byte rate of the bulk migration schedule, or at its item limit since the query
+							throttled = true;
+							continue;
+						}
+						// claim the file before handing it over, 
+						// skip it if another node, or a previous pass, has claimed it already
+						if (fRepository.claimMigrationBoxFile(bFile.getId(), new Timestamp(System.currentTimeMillis()), 
+								node.getNodeId(), node.getLeaseExpiry()) == 0)
+						{
+							bulkMigrationThrottles.refund(bulkMigrationId, bFile.getFile_size());
+							continue;
+						}
+						// load the full record only once it is claimed
+						MigrationBoxFile mFile = fRepository.findOne(bFile.getId());
+						if (mFile == null)
+						{
+							bulkMigrationThrottles.refund(bulkMigrationId, bFile.getFile_size());
+							continue;
+						}
+						try
+						{
+							futureBoxList.add(new MigrationTaskHandle(bFile.getId(), bFile.getPriority(), bulkMigrationId, sizeClass, 
+									migrationTaskService.uploadBoxFile(mFile, httpContext, sessionId)));
+							boxFileScheduler.served(bFile);
+							classCount++;
+							if (bulk)
+							{
+								boxBulkCount++;
+							}
+						}
+						catch (TaskRejectedException e)
+						{
+							// executor is full, release the claim and try again later
+							log.warn("Box upload executor rejected file " + bFile.getId() + " " + e.getMessage());
+							fRepository.releaseMigrationBoxFile(bFile.getId(), node.getNodeId());
+							bulkMigrationThrottles.refund(bulkMigrationId, bFile.getFile_size());
+							rejected = true;
+							break;
+						}
 					}
 				}
-			}
-
-		    // remove finished Box migration task from future list
-			trimFutureListRemoveFinishedTask(futureBoxList);
 			
-			/*********** Google Groups migration tasks ***********/
-			// looping through email request
-			List<MigrationEmailMessage> messages = eRepository.getFirstNewMessagePerSite();
-			// process with the message upload request
-			for(MigrationEmailMessage message : messages)
-			{	
-				if (futureGoogleGroupList.size() < threadNum )
+				/*********** Google Groups migration tasks ***********/
+			    // remove finished Google Groups migration task from future list
+				trimFutureListRemoveFinishedTask(futureGoogleGroupList);
+			
+				// looping through email request
+				int googleGroupBulkCount = countBulkTasks(futureGoogleGroupList);
+				List<MigrationEmailMessage> messages = new ArrayList<MigrationEmailMessage>();
+				if (futureGoogleGroupList.size() < googleGroupThreadNum)
 				{
+					messages = eRepository.getFirstNewMessagePerSite(
+							bulkMigrationThrottles.getHeldBulkMigrationIds(countBulkMigrationTasks(futureBoxList, futureGoogleGroupList)), 
+							bulkMigrationThrottles.isDefaultScheduleClosed() ? 1 : 0, bulkMigrationThrottles.getScheduledBulkMigrationIds());
+					messages = shortestFirst && !messages.isEmpty() ? 
+							messageScheduler.order(messages, completionEstimator.getGoogleGroupsRemainingWork()) : messageScheduler.order(messages);
+				}
+				// process with the message upload request
+				for(MigrationEmailMessage message : messages)
+				{	
+					if (futureGoogleGroupList.size() >= googleGroupThreadNum )
+					{
+						break;
+					}
+					boolean bulk = Utils.PRIORITY_BULK.equals(message.getPriority());
+					if (bulk && googleGroupBulkCount >= googleGroupBulkThreadNum)
+					{
+						// bulk lane is full; interactive items are ordered first, so none is left
+						break;
+					}
+					String bulkMigrationId = bulk ? bulkMigrationThrottles.getBulkMigrationId(message.getMigration_id()) : null;
+					if (!bulkMigrationThrottles.admit(bulkMigrationId, 
+							countBulkMigrationTasks(bulkMigrationId, futureBoxList, futureGoogleGroupList), message.getJson().length()))
+					{
+						// beyond the byte rate of the bulk migration schedule, or at its item limit since the query
+						throttled = true;
+						continue;
+					}
+					// the message and its attachments are held in memory; 
+					// leave it in the pool while the node-wide memory budget is used up
+					long reservedBytes = memoryBudget.estimateMessageBytes(message.getJson());
+					if (!memoryBudget.tryReserve(reservedBytes))
+					{
+						throttled = true;
+						continue;
+					}
+					// claim the message before handing it over, 
+					// skip it if another node, or a previous pass, has claimed it already
+					if (eRepository.claimMigrationMessage(message.getMessage_id(), new Timestamp(System.currentTimeMillis()), 
+							node.getNodeId(), node.getLeaseExpiry()) == 0)
+					{
+						memoryBudget.release(reservedBytes);
+						bulkMigrationThrottles.refund(bulkMigrationId, message.getJson().length());
+						continue;
+					}
 					//call to microservice to upload message to Google Groups
-					futureGoogleGroupList.add(migrationTaskService.uploadMessageToGoogleGroup(message));
+					try
+					{
+						futureGoogleGroupList.add(new MigrationTaskHandle(message.getMessage_id(), message.getPriority(), bulkMigrationId, 
+								migrationTaskService.uploadMessageToGoogleGroup(message, reservedBytes)));
+						messageScheduler.served(message);
+						if (bulk)
+						{
+							googleGroupBulkCount++;
+						}
+					}
+					catch (TaskRejectedException e)
+					{
+						// executor is full, release the claim and try again later
+						log.warn("Google Groups upload executor rejected message " + message.getMessage_id() + " " + e.getMessage());
+						memoryBudget.release(reservedBytes);
+						eRepository.releaseMigrationMessage(message.getMessage_id(), node.getNodeId());
+						bulkMigrationThrottles.refund(bulkMigrationId, message.getJson().length());
+						break;
+					}
+				}
+				
+				if (throttled)
+				{
+					// retry the held back items at the next wake-up, instead of the next sweep; 
+					// bulk migrations outside their time windows or at their item limit are not fetched, 
+					// so they do not keep the query running at every wake-up
+					lastSweepTime = 0;
 				}
 			}
 			
-		    // remove finished Google Groups migration task from future list
-			trimFutureListRemoveFinishedTask(futureGoogleGroupList);
-			
 			/*********** update parent migration status for both Box and Google Groups migration request ***********/
 			// if all itemized migration finishes, 
 			// update the parent migration record for status and end time
-			updateMigrationStatusAndEndTime();
+			if (leader)
+			{
+				updateMigrationStatusAndEndTime();
+			}
+			
+			// coalesce bursts of signals, e.g. while a large site is being enqueued
+			Thread.sleep(minInterval);
 		}
 	}
 
+	/**
+	 * stop claiming items, and let the running item migrations finish till the drain timeout
+	 * @param timeoutMillis
+	 */
+	public synchronized void drain(long timeoutMillis) {
+		if (!draining)
+		{
+			drainDeadline = System.currentTimeMillis() + timeoutMillis;
+			draining = true;
+			log.info("Node " + node.getNodeId() + " starts draining, deadline in " + timeoutMillis + " milliseconds");
+		}
+		// wake up the processing thread
+		workSignal.signal();
+	}
+	
+	/**
+	 * wait till the processing thread has released all claims of this node
+	 * @param timeoutMillis
+	 * @return true if drained
+	 * @throws InterruptedException
+	 */
+	public boolean awaitDrained(long timeoutMillis) throws InterruptedException {
+		return drained.await(timeoutMillis, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * @return the drain state, for the status endpoint
+	 */
+	public HashMap<String, Object> getDrainStatus() {
+		HashMap<String, Object> rv = new HashMap<String, Object>();
+		rv.put("draining", draining);
+		rv.put("drained", drained.getCount() == 0);
+		if (draining)
+		{
+			rv.put("deadline", new Timestamp(drainDeadline).toString());
+		}
+		return rv;
+	}
+	
+	/**
+	 * drain before the application context closes, so that a redeploy does not cut uploads halfway
+	 */
+	@PreDestroy
+	public void shutdown() {
+		long timeout = Utils.getLongProperty(env, Utils.DRAIN_TIMEOUT_PROP, Utils.DRAIN_TIMEOUT_MILLIS);
+		drain(timeout);
+		try
+		{
+			// some slack for the processing thread to release the claims after the deadline
+			long slack = Utils.getLongProperty(env, Utils.DISPATCHER_SWEEP_INTERVAL_PROP, Utils.DISPATCHER_SWEEP_INTERVAL_MILLIS);
+			if (!awaitDrained(Math.max(0, drainDeadline - System.currentTimeMillis()) + slack))
+			{
+				log.warn("Node " + node.getNodeId() + " shuts down before draining, its claims will expire");
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			log.warn("Node " + node.getNodeId() + " interrupted while draining");
+		}
+	}
+	
+	/**
+	 * one processing pass while draining
+	 * @param futureBoxList
+	 * @param futureGoogleGroupList
+	 * @return true if no item migration is running on this node any more
+	 */
+	private boolean finishDraining(List<MigrationTaskHandle> futureBoxList, List<MigrationTaskHandle> futureGoogleGroupList) {
+		// let another node take over the leader duties right away
+		leaderElection.release();
+		trimFutureListRemoveFinishedTask(futureBoxList);
+		trimFutureListRemoveFinishedTask(futureGoogleGroupList);
+		boolean timedOut = System.currentTimeMillis() >= drainDeadline;
+		if (!timedOut && (futureBoxList.size() > 0 || futureGoogleGroupList.size() > 0))
+		{
+			log.info("Node " + node.getNodeId() + " draining: " + futureBoxList.size() + " Box uploads and " 
+					+ futureGoogleGroupList.size() + " Google Groups uploads running");
+			return false;
+		}
+		
+		// give up the item migrations still running
+		for (MigrationTaskHandle future : futureBoxList)
+		{
+			future.getFuture().cancel(true);
+		}
+		for (MigrationTaskHandle future : futureGoogleGroupList)
+		{
+			future.getFuture().cancel(true);
+		}
+		futureBoxList.clear();
+		futureGoogleGroupList.clear();
+		
+		// record the finished items still held back, before their claims are returned
+		stateRecorder.flushAll();
+		
+		// return unfinished claims to the pool; the cancelled tasks cannot record their outcome any more
+		int released = fRepository.releaseMigrationBoxFilesOfNode(node.getNodeId())
+				+ eRepository.releaseMigrationMessagesOfNode(node.getNodeId());
+		
+		log.info("Node " + node.getNodeId() + " drained, " + released + " unfinished items returned to the pool");
+		return true;
+	}
+
+	/**
+	 * fetch only enough pending Box files of the size range to fill the free threads
+	 * @param freeThreadNum
+	 * @param minSize
+	 * @param maxSize
+	 * @return
+	 */
+	private List<MigrationBoxFileCandidate> findNextNewMigrationBoxFileCandidates(int freeThreadNum, long minSize, long maxSize, 
+			List<String> heldBulkMigrationIds) {
+		// fetch twice the free threads, as some files may be claimed by other nodes meanwhile
+		List<Object[]> rows = fRepository.findNextNewMigrationBoxFileCandidates(freeThreadNum, 
+				new Timestamp(System.currentTimeMillis()), minSize, maxSize, heldBulkMigrationIds, 
+				bulkMigrationThrottles.isDefaultScheduleClosed() ? 1 : 0, bulkMigrationThrottles.getScheduledBulkMigrationIds(), 
+				new PageRequest(0, freeThreadNum * 2));
+		List<MigrationBoxFileCandidate> rv = new ArrayList<MigrationBoxFileCandidate>(rows.size());
+		for (Object[] row : rows)
+		{
+			rv.add(new MigrationBoxFileCandidate(row));
+		}
+		return rv;
+	}
+
+	/**
+	 * the number of threads bulk items can take, 
+	 * after reserving the configured share for the interactive lane
+	 * @param threadNum
+	 * @return
+	 */
+	private int getBulkThreadNum(int threadNum) {
+		int share = Utils.getIntProperty(env, Utils.PRIORITY_INTERACTIVE_SHARE_PROP, Utils.PRIORITY_INTERACTIVE_SHARE_PERCENT);
+		share = Math.max(0, Math.min(100, share));
+		int reserved = (threadNum * share + 99) / 100;
+		// leave at least one thread to bulk work
+		return Math.max(1, threadNum - reserved);
+	}
+
+	/**
+	 * @param futureList
+	 * @param sizeClass
+	 * @return the number of running tasks of the size class
+	 */
+	private int countSizeClassTasks(List<MigrationTaskHandle> futureList, int sizeClass) {
+		int count = 0;
+		for (MigrationTaskHandle future : futureList) {
+			if (future.getSizeClass() == sizeClass)
+			{
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @param futureList
+	 * @return the number of running bulk lane tasks
+	 */
+	private int countBulkTasks(List<MigrationTaskHandle> futureList) {
+		int count = 0;
+		for (MigrationTaskHandle future : futureList) {
+			if (future.isBulk())
+			{
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @param bulkMigrationId
+	 * @param futureBoxList
+	 * @param futureGoogleGroupList
+	 * @return the number of running tasks of the given bulk migration
+	 */
+	private int countBulkMigrationTasks(String bulkMigrationId, List<MigrationTaskHandle> futureBoxList, 
+			List<MigrationTaskHandle> futureGoogleGroupList) {
+		int count = 0;
+		if (bulkMigrationId != null)
+		{
+			for (MigrationTaskHandle future : futureBoxList) {
+				if (bulkMigrationId.equals(future.getBulkMigrationId()))
+				{
+					count++;
+				}
+			}
+			for (MigrationTaskHandle future : futureGoogleGroupList) {
+				if (bulkMigrationId.equals(future.getBulkMigrationId()))
+				{
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @param futureBoxList
+	 * @param futureGoogleGroupList
+	 * @return the number of running tasks per bulk migration
+	 */
+	private Map<String, Integer> countBulkMigrationTasks(List<MigrationTaskHandle> futureBoxList, 
+			List<MigrationTaskHandle> futureGoogleGroupList) {
+		Map<String, Integer> rv = new HashMap<String, Integer>();
+		List<MigrationTaskHandle> futureList = new ArrayList<MigrationTaskHandle>(futureBoxList);
+		futureList.addAll(futureGoogleGroupList);
+		for (MigrationTaskHandle future : futureList) {
+			String bulkMigrationId = future.getBulkMigrationId();
+			if (bulkMigrationId != null)
+			{
+				rv.put(bulkMigrationId, rv.containsKey(bulkMigrationId) ? rv.get(bulkMigrationId) + 1 : 1);
+			}
+		}
+		return rv;
+	}
+
 	private void trimFutureListRemoveFinishedTask(
-			List<Future<String>> futureList) {
+			List<MigrationTaskHandle> futureList) {
 		// get a cloned list, in case we need to remove the finished async tasks from the original list
-		List<Future<String>> futureListClone = new ArrayList<Future<String>>();
+		List<MigrationTaskHandle> futureListClone = new ArrayList<MigrationTaskHandle>();
 		futureListClone.addAll(futureList);
 		
-		for (Future<String> future : futureListClone) {
+		for (MigrationTaskHandle future : futureListClone) {
 			try {
 				// get the status of asynchronize processed Box upload request
 				if (future.isDone())
@@ -167,28 +692,87 @@ class MigrationInstanceService {
 		}
 	}
 
+	/**
+	 * find the Box file and email message items, whose claim lease has expired without being finished, 
+	 * which happens when the owner node dies or hangs in the middle of migration.
+	 * Such items are returned into the pool for another attempt; 
+	 * after the maximum number of attempts the item is marked as failed, 
+	 * so that the parent migration can finish
+	 */
+	private void reclaimExpiredItems() {
+		Timestamp now = new Timestamp(System.currentTimeMillis());
+		// items started before the lease columns were introduced carry no lease; 
+		// treat them as expired after one lease duration
+		Timestamp staleBefore = new Timestamp(now.getTime() - node.getLeaseDuration());
+		int maxAttempts = Utils.getIntProperty(env, Utils.CLAIM_MAX_ATTEMPTS_PROP, Utils.CLAIM_MAX_ATTEMPTS);
+		
+		int released = 0;
+		int abandoned = 0;
+		for (Object[] item : fRepository.findExpiredMigrationBoxFiles(now, staleBefore))
+		{
+			String id = (String) item[0];
+			int attempts = item[1] != null ? ((Number) item[1]).intValue() + 1 : 1;
+			if (attempts >= maxAttempts)
+			{
+				String status = "Migration of this file was abandoned after " + attempts 
+						+ " attempts, the processing instance stopped responding.";
+				abandoned += itemCounter.abandonExpiredBoxFile((String) item[2], id, now, staleBefore, status);
+			}
+			else
+			{
+				released += fRepository.releaseExpiredMigrationBoxFile(id, now, staleBefore);
+			}
+		}
+		
+		for (Object[] item : eRepository.findExpiredMigrationMessages(now, staleBefore))
+		{
+			String messageId = (String) item[0];
+			int attempts = item[1] != null ? ((Number) item[1]).intValue() + 1 : 1;
+			if (attempts >= maxAttempts)
+			{
+				JSONObject statusObj = new JSONObject();
+				statusObj.put(Utils.REPORT_ATTR_ITEM_ID, messageId);
+				statusObj.put(Utils.REPORT_ATTR_ITEM_STATUS, Utils.REPORT_STATUS_ERROR);
+				statusObj.put(Utils.REPORT_ATTR_MESSAGE, "Migration of this message was abandoned after " + attempts 
+						+ " attempts, the processing instance stopped responding.");
+				abandoned += itemCounter.abandonExpiredMessage((String) item[2], messageId, now, staleBefore, statusObj.toString());
+			}
+			else
+			{
+				released += eRepository.releaseExpiredMigrationMessage(messageId, now, staleBefore);
+			}
+		}
+		
+		if (released > 0 || abandoned > 0)
+		{
+			log.warn("Reclaimed expired claims: " + released + " items returned to the pool, " 
+					+ abandoned + " items marked as failed");
+		}
+	}
+
 	/**
 	 * check to see whether all itemized Box migration finishes, 
 	 * so that the parent record can be updated
 	 */
 	private void updateMigrationStatusAndEndTime() {
-		// this is a task to iterate through the non-finished site migration record
-		// check whether all child items has been migrated
-		// if so, set the end time of the site migration, and set the aggregated status
-		List<Migration> allOngoingMigrations = mRepository.findMigrating();
+		// the item counters of the parent record are kept as items are queued and finished,
+		// so only the site migrations whose child items have all finished, or are cancelled, come back;
+		// set the end time of the site migration, and set the aggregated status
+		List<Migration> allOngoingMigrations = mRepository.findMigrationsToFinalize();
 		for (Migration migration : allOngoingMigrations)
 		{
 			String mId = migration.getMigration_id();
 			String destination_type = migration.getDestination_type();
+			boolean cancelled = Utils.MIGRATION_STATE_CANCELLED.equals(migration.getControl_state());
 			if (Utils.MIGRATION_TYPE_BOX.equals(destination_type))
 			{
 				// for Box file migration
-				updateBoxMigrationTimeAndStatus(mId);
+				updateBoxMigrationTimeAndStatus(mId, cancelled);
 			}
 			else if (Utils.MIGRATION_TYPE_GOOGLE_GROUP.equals(destination_type))
 			{
 				// for Google Groups email migration	
-				updateMessageMigrationTimeAndStatus(mId);
+				updateMessageMigrationTimeAndStatus(mId, cancelled);
 			}
 		}
 	}
@@ -196,13 +780,17 @@ class MigrationInstanceService {
 	/**
 	 * if all box migration resource items within the migration is finished
 	 * update the migration end time with the last end time of items
-	 * update the migration status with the aggregation of item status
+	 * update the migration status with the aggregation of item status.
+	 * A cancelled migration finishes once no item is being uploaded; 
+	 * its items never started are counted as cancelled
 	 * @param mId
+	 * @param cancelled
 	 */
-	private void updateBoxMigrationTimeAndStatus(String mId) {
+	private void updateBoxMigrationTimeAndStatus(String mId, boolean cancelled) {
 		int allItemCount = fRepository.getMigrationBoxFileCountForMigration(mId);
 		int allFinishedItemCount = fRepository.getFinishedMigrationBoxFileCountForMigration(mId);
-		if (allItemCount > 0 && allItemCount == allFinishedItemCount )
+		boolean allFinished = allItemCount > 0 && allItemCount == allFinishedItemCount;
+		if (allFinished || (cancelled && fRepository.getRunningMigrationBoxFileCountForMigration(mId) == 0))
 		{
 			// cleanup the added owner of admin user from CTools site
 			String siteId = mRepository.getMigrationSiteId(mId);
@@ -210,35 +798,31 @@ class MigrationInstanceService {
 			
 			// all the items within the migration is finished
 			// update the end time of the parent record
-			Timestamp lastItemMigrationTime = fRepository.getLastItemEndTimeForMigration(mId);
+			Timestamp lastItemMigrationTime = allFinished ? fRepository.getLastItemEndTimeForMigration(mId) 
+					: new Timestamp(System.currentTimeMillis());
 			mRepository.setMigrationEndTime(lastItemMigrationTime, mId);
 			
 			// update the status of the parent record
-			List<MigrationBoxFile> mFileList = fRepository.getAllItemStatusForMigration(mId);
-			// parse the string into JSON object
-			List<MigrationFileItem> itemStatusList = new ArrayList<MigrationFileItem>();
-			int itemStatusFailureCount = 0;
-			int itemStatusSuccessCount = 0;
+			// the counts come from the database by item outcome; only the failed items are read, a page at a time
+			Map<String, Integer> outcomeCounts = getOutcomeCounts(fRepository.getFinishedItemOutcomeCountsForMigration(mId));
+			int itemStatusSuccessCount = outcomeCounts.containsKey(Utils.ITEM_OUTCOME_OK) ? outcomeCounts.get(Utils.ITEM_OUTCOME_OK) : 0;
+			int itemStatusFailureCount = allFinishedItemCount - itemStatusSuccessCount;
 			JSONArray itemsArray = new JSONArray();
-			for(MigrationBoxFile mFile : mFileList)
+			for (int page = 0; page * Utils.REPORT_ITEMS_PAGE_SIZE < itemStatusFailureCount; page++)
 			{
-				String status = mFile.getStatus();
-				// if there is error, status message won't have String "Box upload successful for file"
-				if (status == null || status.indexOf("Box upload successful for file") == -1)
+				List<Object[]> failedItems = fRepository.getFailedItemStatusForMigration(mId, Utils.ITEM_OUTCOME_OK, 
+						new PageRequest(page, Utils.REPORT_ITEMS_PAGE_SIZE));
+				for (Object[] failedItem : failedItems)
 				{
-					// increase the count for failed migrated item
-					itemStatusFailureCount++;
-					
 					// report error 
 					JSONObject itemJson = new JSONObject();
-					itemJson.put(Utils.REPORT_ATTR_ITEM_ID, mFile.getTitle());
-					itemJson.put(Utils.REPORT_ATTR_ITEM_STATUS, status);
+					itemJson.put(Utils.REPORT_ATTR_ITEM_ID, failedItem[0]);
+					itemJson.put(Utils.REPORT_ATTR_ITEM_STATUS, failedItem[1]);
 					itemsArray.put(itemJson);
 				}
-				else
+				if (failedItems.size() < Utils.REPORT_ITEMS_PAGE_SIZE)
 				{
-					// increase the count for successfully migrated item
-					itemStatusSuccessCount++;
+					break;
 				}
 			}
 			
@@ -266,11 +850,20 @@ class MigrationInstanceService {
 				// with failures
 				statusSummary = Utils.REPORT_STATUS_PARTIAL;
 			}
+			if (!allFinished)
+			{
+				// cancelled before all items were migrated
+				statusSummary = Utils.REPORT_STATUS_CANCELLED;
+			}
 			
 			// count JSON
 			JSONObject countsJson = new JSONObject();
 			countsJson.put(Utils.REPORT_ATTR_COUNTS_SUCCESSES, itemStatusSuccessCount);
 			countsJson.put(Utils.REPORT_ATTR_COUNTS_ERRORS, itemStatusFailureCount);
+			if (cancelled)
+			{
+				countsJson.put(Utils.REPORT_ATTR_COUNTS_CANCELLED, allItemCount - allFinishedItemCount);
+			}
 	
 			// add to top report level
 			statusObject.put(Utils.REPORT_ATTR_COUNTS, countsJson);
@@ -284,44 +877,62 @@ class MigrationInstanceService {
 		}
 	}
 	
+	/**
+	 * @param rows outcome and count pairs
+	 * @return the item count by outcome
+	 */
+	private static Map<String, Integer> getOutcomeCounts(List<Object[]> rows) {
+		Map<String, Integer> rv = new HashMap<String, Integer>();
+		for (Object[] row : rows)
+		{
+			rv.put((String) row[0], ((Number) row[1]).intValue());
+		}
+		return rv;
+	}
+
 	/**
 	 * if all email migration items within the migration is finished
 	 * update the migration end time with the last end time of items
-	 * update the migration status with the aggregation of item status
+	 * update the migration status with the aggregation of item status.
+	 * A cancelled migration finishes once no message is being uploaded; 
+	 * its messages never started are counted as cancelled
 	 * @param mId
+	 * @param cancelled
 	 */
-	private void updateMessageMigrationTimeAndStatus(String mId) {
+	private void updateMessageMigrationTimeAndStatus(String mId, boolean cancelled) {
 		int allItemCount = eRepository.getMigrationMessageCountForMigration(mId);
 		int allFinishedItemCount = eRepository.getFinishedMigrationMessageCountForMigration(mId);
-		if (allItemCount > 0 && allItemCount == allFinishedItemCount )
+		boolean allFinished = allItemCount > 0 && allItemCount == allFinishedItemCount;
+		if (allFinished || (cancelled && eRepository.getRunningMigrationMessageCountForMigration(mId) == 0))
 		{
 			// all the items within the migration is finished
 			// update the end time of the parent record
-			Timestamp lastItemMigrationTime = eRepository.getLastItemEndTimeForMigration(mId);
+			Timestamp lastItemMigrationTime = allFinished ? eRepository.getLastItemEndTimeForMigration(mId) 
+					: new Timestamp(System.currentTimeMillis());
 		
 			mRepository.setMigrationEndTime(lastItemMigrationTime, mId);
 			
 			// update the status of the parent record
-			List<MigrationEmailMessage> mMessageList = eRepository.getAllItemStatusForMigration(mId);
-			Migration migration = mRepository.findOne(mId);
-			String partialStatus = migration.getStatus();
+			// the counts come from the database by item outcome; only the failed messages are read, a page at a time
+			String partialStatus = mRepository.getMigrationStatus(mId);
 			JSONObject status = new JSONObject(partialStatus);
 			JSONArray messages = new JSONArray();
-			int success,error,partial;
-			success=error=partial=0;
-			for (MigrationEmailMessage message: mMessageList) {
-				JSONObject msgStatus = new JSONObject(message.getStatus());
-				String itemStatus = (String)msgStatus.get(Utils.REPORT_ATTR_ITEM_STATUS);
-				if(itemStatus.equals(Utils.REPORT_STATUS_OK)){
-					success++;
-				}
-				if(itemStatus.equals(Utils.REPORT_STATUS_ERROR)){
-					error++;
-					messages.put(msgStatus);
+			Map<String, Integer> outcomeCounts = getOutcomeCounts(eRepository.getFinishedItemOutcomeCountsForMigration(mId));
+			int success = outcomeCounts.containsKey(Utils.ITEM_OUTCOME_OK) ? outcomeCounts.get(Utils.ITEM_OUTCOME_OK) : 0;
+			int partial = outcomeCounts.containsKey(Utils.ITEM_OUTCOME_PARTIAL) ? outcomeCounts.get(Utils.ITEM_OUTCOME_PARTIAL) : 0;
+			// abandoned messages count as errors
+			int error = allFinishedItemCount - success - partial;
+			for (int page = 0; page * Utils.REPORT_ITEMS_PAGE_SIZE < error + partial; page++)
+			{
+				List<String> failedMessages = eRepository.getFailedItemStatusForMigration(mId, Utils.ITEM_OUTCOME_OK, 
+						new PageRequest(page, Utils.REPORT_ITEMS_PAGE_SIZE));
+				for (String msgStatus : failedMessages)
+				{
+					messages.put(new JSONObject(msgStatus));
 				}
-				if(itemStatus.equals(Utils.REPORT_STATUS_PARTIAL)){
-					partial++;
-					messages.put(msgStatus);
+				if (failedMessages.size() < Utils.REPORT_ITEMS_PAGE_SIZE)
+				{
+					break;
 				}
 			}
 			status.put(Utils.REPORT_ATTR_ITEMS,messages);
@@ -332,10 +943,17 @@ class MigrationInstanceService {
 			}else{
 				status.put(Utils.REPORT_ATTR_STATUS, Utils.REPORT_STATUS_OK);
 			}
+			if(!allFinished){
+				// cancelled before all messages were migrated
+				status.put(Utils.REPORT_ATTR_STATUS, Utils.REPORT_STATUS_CANCELLED);
+			}
 			JSONObject counts = Utils.getCountJsonObj();
 			counts.put(Utils.REPORT_ATTR_COUNTS_SUCCESSES,success);
 			counts.put(Utils.REPORT_ATTR_COUNTS_ERRORS,error);
 			counts.put(Utils.REPORT_ATTR_COUNT_PARTIALS,partial);
+			if(cancelled){
+				counts.put(Utils.REPORT_ATTR_COUNTS_CANCELLED,allItemCount - allFinishedItemCount);
+			}
 			status.put(Utils.REPORT_ATTR_COUNTS,counts);
 		
 			// update the status of migration record
@@ -0,0 +1,192 @@
+package edu.umich.its.cpm;
+
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.List;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * moves the items of finished migrations into the history tables
+ *
+ * The dispatcher, claim and count queries only need the items of ongoing
+ * migrations. Once a migration has been finished for the archive age, well
+ * past its report and the throughput window of the completion estimates,
+ * its Box file and message items are copied into MIGRATION_BOX_FILE_HISTORY
+ * and MIGRATION_EMAIL_MESSAGE_HISTORY and removed from the hot tables, one
+ * migration per transaction, and the migration is stamped with its archive
+ * time. The migration record keeps its report; the MIGRATION_BOX_FILE_ALL
+ * and MIGRATION_EMAIL_MESSAGE_ALL views read both tables for reporting.
+ * Archiving is a cluster-wide duty, run by the leader only.
+ *
+ */
+@Component
+class MigrationItemArchiver {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(MigrationItemArchiver.class);
+
+	private static final String BOX_FILE_COLUMNS = "ID, MIGRATION_ID, USER_ID, BOX_FOLDER_ID, TYPE, TITLE, WEB_LINK_URL, "
+			+ "FILE_ACCESS_URL, DESCRIPTION, AUTHOR, COPYRIGHT_ALERT, FILE_SIZE, START_TIME, END_TIME, STATUS, OUTCOME, "
+			+ "OWNER_NODE, LEASE_EXPIRY, ATTEMPT_COUNT, NEXT_ATTEMPT_TIME, LAST_ERROR_CODE, RETRY_COUNT, PRIORITY";
+
+	private static final String MESSAGE_COLUMNS = "MESSAGE_ID, MIGRATION_ID, USER_ID, GOOGLE_GROUP_ID, JSON, "
+			+ "START_TIME, END_TIME, STATUS, OUTCOME, OWNER_NODE, LEASE_EXPIRY, ATTEMPT_COUNT, PRIORITY";
+
+	private static final String ARCHIVE_BOX_FILES_SQL = "insert into MIGRATION_BOX_FILE_HISTORY (" + BOX_FILE_COLUMNS + ") "
+			+ "select " + BOX_FILE_COLUMNS + " from MIGRATION_BOX_FILE where MIGRATION_ID = ?";
+
+	private static final String DELETE_BOX_FILES_SQL = "delete from MIGRATION_BOX_FILE where MIGRATION_ID = ?";
+
+	private static final String ARCHIVE_MESSAGES_SQL = "insert into MIGRATION_EMAIL_MESSAGE_HISTORY (" + MESSAGE_COLUMNS + ") "
+			+ "select " + MESSAGE_COLUMNS + " from MIGRATION_EMAIL_MESSAGE where MIGRATION_ID = ?";
+
+	private static final String DELETE_MESSAGES_SQL = "delete from MIGRATION_EMAIL_MESSAGE where MIGRATION_ID = ?";
+
+	@Autowired
+	private Environment env;
+
+	@Autowired
+	private JdbcTemplate jdbcTemplate;
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	@Autowired
+	private MigrationRepository mRepository;
+
+	@Autowired
+	private MigrationLeaderElection leaderElection;
+
+	private TransactionTemplate transactionTemplate;
+
+	private Thread archiver;
+
+	private volatile boolean running = true;
+
+	private long interval;
+
+	private long archiveAfter;
+
+	private int batchSize;
+
+	private long archivedMigrations = 0;
+
+	private long archivedItems = 0;
+
+	private long lastRunTime = 0;
+
+	@PostConstruct
+	public void init() {
+		interval = Utils.getLongProperty(env, Utils.ARCHIVE_INTERVAL_PROP, Utils.ARCHIVE_INTERVAL_MILLIS);
+		archiveAfter = Utils.getLongProperty(env, Utils.ARCHIVE_AFTER_PROP, Utils.ARCHIVE_AFTER_MILLIS);
+		batchSize = Utils.getIntProperty(env, Utils.ARCHIVE_BATCH_PROP, Utils.ARCHIVE_BATCH);
+		transactionTemplate = new TransactionTemplate(transactionManager);
+		if (interval <= 0)
+		{
+			log.info("archiving of finished migration items disabled");
+			return;
+		}
+		archiver = new Thread(new Runnable() {
+			public void run() {
+				archiveLoop();
+			}
+		}, "migration-item-archiver");
+		archiver.setDaemon(true);
+		archiver.start();
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		running = false;
+		if (archiver != null)
+		{
+			archiver.interrupt();
+		}
+	}
+
+	/**
+	 * @return the archive counters, for the status endpoint
+	 */
+	public synchronized HashMap<String, Object> getStatus() {
+		HashMap<String, Object> rv = new HashMap<String, Object>();
+		rv.put("enabled", interval > 0);
+		rv.put("archivedMigrations", archivedMigrations);
+		rv.put("archivedItems", archivedItems);
+		rv.put("lastRunTime", lastRunTime > 0 ? new Timestamp(lastRunTime) : null);
+		return rv;
+	}
+
+	private void archiveLoop() {
+		while (running)
+		{
+			try
+			{
+				Thread.sleep(interval);
+				if (leaderElection.isLeader())
+				{
+					archive();
+				}
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return;
+			}
+			catch (RuntimeException e)
+			{
+				log.error("problem archiving finished migration items " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * move the items of up to a batch of migrations finished before the archive age
+	 */
+	private void archive() {
+		long now = System.currentTimeMillis();
+		List<String> migrationIds = mRepository.getMigrationIdsToArchive(new Timestamp(now - archiveAfter),
+				new PageRequest(0, batchSize));
+		for (final String migrationId : migrationIds)
+		{
+			// stop once the leader lease is lost, another node carries on
+			if (!running || !leaderElection.isLeader())
+			{
+				break;
+			}
+			Integer moved = transactionTemplate.execute(new TransactionCallback<Integer>() {
+				public Integer doInTransaction(TransactionStatus status) {
+					int items = jdbcTemplate.update(ARCHIVE_BOX_FILES_SQL, migrationId)
+							+ jdbcTemplate.update(ARCHIVE_MESSAGES_SQL, migrationId);
+					jdbcTemplate.update(DELETE_BOX_FILES_SQL, migrationId);
+					jdbcTemplate.update(DELETE_MESSAGES_SQL, migrationId);
+					mRepository.setMigrationArchiveTime(new Timestamp(System.currentTimeMillis()), migrationId);
+					return items;
+				}
+			});
+			synchronized (this)
+			{
+				archivedMigrations++;
+				archivedItems += moved;
+			}
+			log.info("archived " + moved + " items of migration " + migrationId);
+		}
+		synchronized (this)
+		{
+			lastRunTime = now;
+		}
+	}
+}
@@ -0,0 +1,209 @@
+package edu.umich.its.cpm;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * keeps the item counters of the parent migration in step with its items
+ *
+ * An item is counted when it is queued, and counted as finished when it gets
+ * its end time, in the same transaction as the item update. The leader only
+ * looks at the migrations whose finished count has caught up with the item
+ * count, instead of counting the items of every ongoing migration each tick.
+ * Fenced updates that lose the claim change no item, and count nothing.
+ * A message stored before, by an earlier migration of the site, is taken
+ * over by the migration queuing it again, and its count moves along.
+ *
+ * Items found while walking a site are queued a chunk at a time: persisted
+ * without the select that save() runs for entities with assigned ids, and
+ * inserted in JDBC batches when hibernate.jdbc.batch_size is set.
+ *
+ */
+@Component
+class MigrationItemCounter {
+
+	@Autowired
+	private MigrationRepository mRepository;
+
+	@Autowired
+	private MigrationBoxFileRepository fRepository;
+
+	@Autowired
+	private MigrationEmailMessageRepository eRepository;
+
+	@PersistenceContext
+	private EntityManager entityManager;
+
+	/**
+	 * queue the Box file item
+	 * @param bFile
+	 * @return the saved item
+	 */
+	@Transactional
+	public MigrationBoxFile addBoxFile(MigrationBoxFile bFile) {
+		MigrationBoxFile saved = fRepository.save(bFile);
+		mRepository.addMigrationItems(bFile.getMigration_id(), 1);
+		return saved;
+	}
+
+	/**
+	 * queue the message item
+	 * @param message
+	 * @return the saved item
+	 */
+	@Transactional
+	public MigrationEmailMessage addMessage(MigrationEmailMessage message) {
+		List<Object[]> existing = eRepository.getExistingMessages(Collections.singletonList(message.getMessage_id()));
+		MigrationEmailMessage saved = eRepository.save(message);
+		if (!existing.isEmpty())
+		{
+			uncount(existing.get(0));
+		}
+		mRepository.addMigrationItems(message.getMigration_id(), 1);
+		return saved;
+	}
+
+	/**
+	 * queue the new Box file items of the migration in one transaction
+	 * @param migrationId
+	 * @param bFiles
+	 */
+	@Transactional
+	public void addBoxFiles(String migrationId, List<MigrationBoxFile> bFiles) {
+		for (MigrationBoxFile bFile : bFiles)
+		{
+			entityManager.persist(bFile);
+		}
+		// insert now, and let go of the entities
+		entityManager.flush();
+		entityManager.clear();
+		mRepository.addMigrationItems(migrationId, bFiles.size());
+	}
+
+	/**
+	 * queue the message items of the migration in one transaction; 
+	 * messages stored before, by an earlier migration of the site, are taken over
+	 * @param migrationId
+	 * @param messages
+	 */
+	@Transactional
+	public void addMessages(String migrationId, List<MigrationEmailMessage> messages) {
+		List<String> messageIds = new ArrayList<String>(messages.size());
+		for (MigrationEmailMessage message : messages)
+		{
+			messageIds.add(message.getMessage_id());
+		}
+		Map<String, Object[]> existing = new HashMap<String, Object[]>();
+		for (Object[] row : eRepository.getExistingMessages(messageIds))
+		{
+			existing.put((String) row[0], row);
+		}
+		Set<String> seenIds = new HashSet<String>();
+		int added = 0;
+		for (MigrationEmailMessage message : messages)
+		{
+			String messageId = message.getMessage_id();
+			if (!seenIds.add(messageId))
+			{
+				// seen earlier in this chunk, and counted then
+				entityManager.merge(message);
+			}
+			else if (existing.containsKey(messageId))
+			{
+				// stored before: taken over
+				entityManager.merge(message);
+				uncount(existing.get(messageId));
+				added++;
+			}
+			else
+			{
+				entityManager.persist(message);
+				added++;
+			}
+		}
+		// insert now, and let go of the entities
+		entityManager.flush();
+		entityManager.clear();
+		mRepository.addMigrationItems(migrationId, added);
+	}
+
+	/**
+	 * take a message stored before out of the counts of its migration, 
+	 * as it is queued again, unfinished, for the migration taking it over
+	 * @param existing message id, migration id and end time of the stored message
+	 */
+	private void uncount(Object[] existing) {
+		String previousMigrationId = (String) existing[1];
+		mRepository.addMigrationItems(previousMigrationId, -1);
+		if (existing[2] != null)
+		{
+			mRepository.addFinishedMigrationItems(previousMigrationId, -1);
+		}
+	}
+
+	/**
+	 * @see MigrationBoxFileRepository#finishMigrationBoxFile
+	 * @return 1 if the item is finished, 0 if the claim is lost
+	 */
+	@Transactional
+	public int finishBoxFile(String migrationId, String id, Timestamp t, String status, String outcome, String ownerNode) {
+		return countFinished(migrationId, fRepository.finishMigrationBoxFile(id, t, status, outcome, ownerNode));
+	}
+
+	/**
+	 * @see MigrationBoxFileRepository#deadLetterMigrationBoxFile
+	 * @return 1 if the item is finished, 0 if the claim is lost
+	 */
+	@Transactional
+	public int deadLetterBoxFile(String migrationId, String id, Timestamp t, String status, int errorCode, String ownerNode) {
+		return countFinished(migrationId, fRepository.deadLetterMigrationBoxFile(id, t, status, Utils.ITEM_OUTCOME_RETRIES_EXHAUSTED, errorCode, ownerNode));
+	}
+
+	/**
+	 * @see MigrationBoxFileRepository#abandonExpiredMigrationBoxFile
+	 * @return 1 if the item is finished, 0 if the claim was renewed meanwhile
+	 */
+	@Transactional
+	public int abandonExpiredBoxFile(String migrationId, String id, Timestamp now, Timestamp staleBefore, String status) {
+		return countFinished(migrationId, fRepository.abandonExpiredMigrationBoxFile(id, now, staleBefore, status, Utils.ITEM_OUTCOME_ABANDONED));
+	}
+
+	/**
+	 * @see MigrationEmailMessageRepository#finishMigrationMessage
+	 * @return 1 if the message is finished, 0 if the claim is lost
+	 */
+	@Transactional
+	public int finishMessage(String migrationId, String messageId, Timestamp t, String status, String outcome, String ownerNode) {
+		return countFinished(migrationId, eRepository.finishMigrationMessage(messageId, t, status, outcome, ownerNode));
+	}
+
+	/**
+	 * @see MigrationEmailMessageRepository#abandonExpiredMigrationMessage
+	 * @return 1 if the message is finished, 0 if the claim was renewed meanwhile
+	 */
+	@Transactional
+	public int abandonExpiredMessage(String migrationId, String messageId, Timestamp now, Timestamp staleBefore, String status) {
+		return countFinished(migrationId, eRepository.abandonExpiredMigrationMessage(messageId, now, staleBefore, status, Utils.ITEM_OUTCOME_ABANDONED));
+	}
+
+	private int countFinished(String migrationId, int finished) {
+		if (finished > 0)
+		{
+			mRepository.addFinishedMigrationItems(migrationId, finished);
+		}
+		return finished;
+	}
+}
@@ -0,0 +1,177 @@
+package edu.umich.its.cpm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * orders pending migration items fairly across users and migrations
+ *
+ * Candidates are interleaved round-robin by user first, then round-robin
+ * across the migrations of that user, while the incoming order (e.g. smallest
+ * file first) is kept within each migration. A bulk migration with many
+ * items therefore gets the same share as a single interactive site, instead
+ * of starving it. The rotation continues after the last served user and
+ * migration, so that the same user is not always placed first.
+ *
+ * Items of the interactive lane are placed before items of the bulk lane;
+ * fairness applies within each lane.
+ *
+ * @param <T> the migration item type
+ */
+public class MigrationItemScheduler<T> {
+
+	/**
+	 * how to get the user, migration and priority lane of an item
+	 */
+	public interface ItemKey<T> {
+		String getUserId(T item);
+
+		String getMigrationId(T item);
+
+		String getPriority(T item);
+	}
+
+	private final ItemKey<T> key;
+
+	// the user of the last dispatched item
+	private String lastServedUser = null;
+
+	// the last dispatched migration, per user
+	private Map<String, String> lastServedMigrations = new HashMap<String, String>();
+
+	public MigrationItemScheduler(ItemKey<T> key) {
+		this.key = key;
+	}
+
+	/**
+	 * interleave the candidate items across users and migrations, interactive lane first
+	 * @param candidates items in their preferred order within each migration
+	 * @return the items in dispatch order
+	 */
+	public synchronized List<T> order(List<T> candidates) {
+		List<T> interactive = new ArrayList<T>();
+		List<T> bulk = new ArrayList<T>();
+		Set<String> userIds = new HashSet<String>();
+		for (T item : candidates)
+		{
+			userIds.add(nullToEmpty(key.getUserId(item)));
+			if (Utils.PRIORITY_BULK.equals(key.getPriority(item)))
+			{
+				bulk.add(item);
+			}
+			else
+			{
+				interactive.add(item);
+			}
+		}
+		// forget users without pending items
+		lastServedMigrations.keySet().retainAll(userIds);
+
+		List<T> rv = interleave(interactive);
+		rv.addAll(interleave(bulk));
+		return rv;
+	}
+
+	/**
+	 * interleave the candidate items across users and migrations
+	 * @param candidates
+	 * @return
+	 */
+	private List<T> interleave(List<T> candidates) {
+		// group the candidates by user, then by migration, keeping the order within each migration
+		TreeMap<String, TreeMap<String, LinkedList<T>>> userMap = new TreeMap<String, TreeMap<String, LinkedList<T>>>();
+		for (T item : candidates)
+		{
+			String userId = nullToEmpty(key.getUserId(item));
+			String migrationId = nullToEmpty(key.getMigrationId(item));
+			TreeMap<String, LinkedList<T>> migrationMap = userMap.get(userId);
+			if (migrationMap == null)
+			{
+				migrationMap = new TreeMap<String, LinkedList<T>>();
+				userMap.put(userId, migrationMap);
+			}
+			LinkedList<T> items = migrationMap.get(migrationId);
+			if (items == null)
+			{
+				items = new LinkedList<T>();
+				migrationMap.put(migrationId, items);
+			}
+			items.add(item);
+		}
+
+		// per user, the migrations rotated to start after the last served one
+		LinkedHashMap<String, LinkedList<LinkedList<T>>> userQueues = new LinkedHashMap<String, LinkedList<LinkedList<T>>>();
+		for (String userId : rotate(new ArrayList<String>(userMap.keySet()), lastServedUser))
+		{
+			TreeMap<String, LinkedList<T>> migrationMap = userMap.get(userId);
+			LinkedList<LinkedList<T>> migrationQueues = new LinkedList<LinkedList<T>>();
+			for (String migrationId : rotate(new ArrayList<String>(migrationMap.keySet()), lastServedMigrations.get(userId)))
+			{
+				migrationQueues.add(migrationMap.get(migrationId));
+			}
+			userQueues.put(userId, migrationQueues);
+		}
+
+		List<T> rv = new ArrayList<T>(candidates.size());
+		while (!userQueues.isEmpty())
+		{
+			// one item per user in each round
+			for (Iterator<LinkedList<LinkedList<T>>> userIterator = userQueues.values().iterator(); userIterator.hasNext();)
+			{
+				LinkedList<LinkedList<T>> migrationQueues = userIterator.next();
+				// take from the user's next migration, then move that migration to the end
+				LinkedList<T> items = migrationQueues.removeFirst();
+				rv.add(items.removeFirst());
+				if (!items.isEmpty())
+				{
+					migrationQueues.addLast(items);
+				}
+				if (migrationQueues.isEmpty())
+				{
+					userIterator.remove();
+				}
+			}
+		}
+		return rv;
+	}
+
+	/**
+	 * record the item as dispatched, so that the next order starts after it
+	 * @param item
+	 */
+	public synchronized void served(T item) {
+		lastServedUser = nullToEmpty(key.getUserId(item));
+		lastServedMigrations.put(lastServedUser, nullToEmpty(key.getMigrationId(item)));
+	}
+
+	/**
+	 * rotate the sorted list, so that it starts with the first element after the given one
+	 */
+	private static List<String> rotate(List<String> sorted, String last) {
+		if (last == null)
+		{
+			return sorted;
+		}
+		int start = 0;
+		while (start < sorted.size() && sorted.get(start).compareTo(last) <= 0)
+		{
+			start++;
+		}
+		List<String> rv = new ArrayList<String>(sorted.size());
+		rv.addAll(sorted.subList(start, sorted.size()));
+		rv.addAll(sorted.subList(0, start));
+		return rv;
+	}
+
+	private static String nullToEmpty(String s) {
+		return s == null ? "" : s;
+	}
+}
@@ -0,0 +1,139 @@
+package edu.umich.its.cpm;
+
+import java.sql.Timestamp;
+import java.util.HashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+/**
+ * elects one CPM instance as leader, through a lease in the database
+ *
+ * the leader runs the cluster-wide duties of the processing thread: reclaiming
+ * expired item claims and aggregating the status of finished migrations. The
+ * leader renews its lease on every processing pass; when it stops doing so,
+ * another instance takes over once the lease expires.
+ *
+ */
+@Component
+class MigrationLeaderElection {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(MigrationLeaderElection.class);
+
+	// the lease for the processing duties
+	public static final String PROCESSING_LEASE = "migration_processing";
+
+	@Autowired
+	private Environment env;
+
+	@Autowired
+	private MigrationNode node;
+
+	@Autowired
+	private MigrationLeaderLeaseRepository leaseRepository;
+
+	// whether this node held the lease at the last attempt
+	private volatile boolean leader = false;
+
+	// the last time this node tried to take or renew the lease
+	private long lastAttempt = 0;
+
+	// when the lease taken at the last attempt expires, by the clock of this node
+	private long leaderUntil = 0;
+
+	/**
+	 * take or renew the lease when due
+	 * @return true if this node is the leader
+	 */
+	public synchronized boolean isLeader() {
+		long now = System.currentTimeMillis();
+		if (now - lastAttempt >= getRenewInterval())
+		{
+			lastAttempt = now;
+			boolean wasLeader = leader;
+			leader = tryAcquire(now);
+			if (leader)
+			{
+				leaderUntil = now + getLeaseDuration();
+			}
+			if (leader != wasLeader)
+			{
+				log.info("Node " + node.getNodeId() + (leader ? " became" : " is no longer") + " the migration processing leader");
+			}
+		}
+		// stop acting as leader once the lease may have passed on to another node
+		return leader && now < leaderUntil;
+	}
+
+	/**
+	 * give up the lease, so that another node takes over without waiting for the expiry
+	 */
+	public synchronized void release() {
+		if (leader)
+		{
+			leader = false;
+			try
+			{
+				leaseRepository.releaseLease(PROCESSING_LEASE, node.getNodeId());
+				log.info("Node " + node.getNodeId() + " released the migration processing leadership");
+			}
+			catch (Exception e)
+			{
+				log.warn("Cannot release the migration processing lease " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * @return the lease duration, in milliseconds
+	 */
+	public long getLeaseDuration() {
+		return Utils.getLongProperty(env, Utils.LEADER_LEASE_DURATION_PROP, Utils.LEADER_LEASE_DURATION_SECONDS) * 1000L;
+	}
+
+	/**
+	 * the lease is renewed three times per lease duration,
+	 * so that a single slow pass does not lose it
+	 * @return the interval for renewing the lease, in milliseconds
+	 */
+	public long getRenewInterval() {
+		return getLeaseDuration() / 3;
+	}
+
+	/**
+	 * @return the leader state, for the status endpoint
+	 */
+	public HashMap<String, Object> getStatus() {
+		HashMap<String, Object> rv = new HashMap<String, Object>();
+		rv.put("node", node.getNodeId());
+		rv.put("leader", leader);
+		return rv;
+	}
+
+	private boolean tryAcquire(long now) {
+		Timestamp expiry = new Timestamp(now + getLeaseDuration());
+		try
+		{
+			if (leaseRepository.acquireLease(PROCESSING_LEASE, node.getNodeId(), new Timestamp(now), expiry) == 1)
+			{
+				return true;
+			}
+			if (leaseRepository.findOne(PROCESSING_LEASE) == null)
+			{
+				// the schema scripts create the lease row; this covers databases set up without it.
+				// Nodes starting at the same time may both save, read back who won
+				leaseRepository.save(new MigrationLeaderLease(PROCESSING_LEASE, node.getNodeId(), expiry));
+				return node.getNodeId().equals(leaseRepository.getLeaseOwner(PROCESSING_LEASE));
+			}
+		}
+		catch (Exception e)
+		{
+			log.warn("Cannot take the migration processing lease " + e.getMessage());
+		}
+		return false;
+	}
+}
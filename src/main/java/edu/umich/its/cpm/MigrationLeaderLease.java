@@ -0,0 +1,63 @@
+package edu.umich.its.cpm;
+
+import java.sql.Timestamp;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * a named lease in the database, held by at most one CPM instance at a time
+ * @see MigrationLeaderElection
+ *
+ */
+@Entity
+@Table(name = "MIGRATION_LEADER_LEASE")
+public class MigrationLeaderLease {
+
+	/**
+	 * Primary key field
+	 * the name of the lease
+	 */
+	@Id
+	@Column(name = "LEASE_NAME", columnDefinition = "VARCHAR(99) NOT NULL")
+	@Getter
+	@Setter
+	private String leaseName;
+
+	/**
+	 * the node id of the current holder, null if released
+	 */
+	@Column(name = "OWNER_NODE", columnDefinition = "VARCHAR(99)")
+	@Getter
+	@Setter
+	private String ownerNode;
+
+	@Column(name = "LEASE_EXPIRY", columnDefinition = "TIMESTAMP")
+	@Getter
+	@Setter
+	private Timestamp leaseExpiry;
+
+	protected MigrationLeaderLease() {
+	}
+
+	public MigrationLeaderLease(String leaseName, String ownerNode, Timestamp leaseExpiry) {
+		this.leaseName = leaseName;
+		this.ownerNode = ownerNode;
+		this.leaseExpiry = leaseExpiry;
+	}
+
+	@Override
+	public String toString() {
+		String s = String
+				.format("MigrationLeaderLease[leaseName=%s, "
+						+ "ownerNode='%s',"
+						+ "leaseExpiry='%s',"
+						+ "]", leaseName, ownerNode, leaseExpiry);
+		return s;
+	}
+}
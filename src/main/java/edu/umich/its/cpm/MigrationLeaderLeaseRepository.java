@@ -0,0 +1,42 @@
+package edu.umich.its.cpm;
+
+import java.sql.Timestamp;
+
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.transaction.annotation.Transactional;
+
+public interface MigrationLeaderLeaseRepository extends CrudRepository<MigrationLeaderLease, String> {
+
+	/**
+	 * take or renew the lease, if it is free, expired, or already held by the given node
+	 * @param leaseName
+	 * @param ownerNode
+	 * @param now
+	 * @param leaseExpiry
+	 * @return 1 if the given node holds the lease now, 0 otherwise
+	 */
+	@Transactional
+	@Modifying(clearAutomatically = false)
+	@Query("update MigrationLeaderLease l set l.ownerNode = ?#{[1]}, l.leaseExpiry = ?#{[3]} where l.leaseName = ?#{[0]} and (l.ownerNode = ?#{[1]} or l.ownerNode is null or l.leaseExpiry is null or l.leaseExpiry < ?#{[2]})")
+	public int acquireLease(String leaseName, String ownerNode, Timestamp now, Timestamp leaseExpiry);
+
+	/**
+	 * give up the lease, if held by the given node
+	 * @param leaseName
+	 * @param ownerNode
+	 * @return 1 if released
+	 */
+	@Transactional
+	@Modifying(clearAutomatically = false)
+	@Query("update MigrationLeaderLease l set l.ownerNode = null, l.leaseExpiry = null where l.leaseName = ?#{[0]} and l.ownerNode = ?#{[1]}")
+	public int releaseLease(String leaseName, String ownerNode);
+
+	/**
+	 * @param leaseName
+	 * @return the node id of the lease holder
+	 */
+	@Query("select l.ownerNode from MigrationLeaderLease l where l.leaseName = ?#{[0]}")
+	public String getLeaseOwner(String leaseName);
+}
@@ -0,0 +1,134 @@
+package edu.umich.its.cpm;
+
+import java.util.HashMap;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+/**
+ * node-wide budget of message content held in memory
+ *
+ * Google Groups uploads and mbox downloads hold whole messages, with their
+ * attachments, on the heap. The processing thread reserves the expected size
+ * of a message before handing it out, and leaves it in the pool when the
+ * budget is used up. The estimate covers the json, the formatted text, and
+ * the expected attachment content of the message. Attachments beyond that
+ * reserve their declared size before they are read, waiting for room; to
+ * keep uploads that each hold a reservation from waiting on each other
+ * forever, the wait is bounded, after which the bytes are counted over the
+ * budget. Content read beyond its declared size, e.g. without a
+ * Content-Length, is counted only once read. Box uploads and zip downloads
+ * stream their content, and are not counted.
+ *
+ */
+@Component
+class MigrationMemoryBudget {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(MigrationMemoryBudget.class);
+
+	@Autowired
+	private Environment env;
+
+	@Autowired
+	private MigrationWorkSignal workSignal;
+
+	private ByteBudget budget;
+
+	// the expected attachment content of a message, on top of its json
+	private long messageAttachmentBytes;
+
+	// the longest wait for room for attachment bytes beyond the estimate
+	private static final long ATTACHMENT_RESERVE_TIMEOUT_MILLIS = 10000L;
+
+	@PostConstruct
+	public void init() {
+		long capacity = Utils.getLongProperty(env, Utils.MEMORY_BUDGET_PROP, Runtime.getRuntime().maxMemory() / 4);
+		budget = new ByteBudget(capacity);
+		messageAttachmentBytes = Utils.getLongProperty(env, Utils.MEMORY_MESSAGE_ATTACHMENT_BYTES_PROP, Utils.MEMORY_MESSAGE_ATTACHMENT_BYTES);
+		log.info("memory budget " + budget.getCapacity() + " bytes");
+	}
+
+	/**
+	 * @param json the message json
+	 * @return the bytes to reserve before formatting the message
+	 */
+	public long estimateMessageBytes(String json) {
+		// the json string, and the formatted message text, two bytes per char each
+		long jsonBytes = json != null ? json.length() * 2L : 0L;
+		return jsonBytes * 2 + messageAttachmentBytes;
+	}
+
+	/**
+	 * reserve the bytes if they fit, without waiting
+	 * @param bytes
+	 * @return true if reserved
+	 */
+	public boolean tryReserve(long bytes) {
+		return budget.tryAcquire(bytes);
+	}
+
+	/**
+	 * wait till the bytes fit, then reserve them
+	 * @param bytes
+	 * @throws InterruptedException
+	 */
+	public void reserve(long bytes) throws InterruptedException {
+		budget.acquire(bytes);
+	}
+
+	/**
+	 * @return the attachment bytes covered by the estimate of a message
+	 */
+	public long getMessageAttachmentBytes() {
+		return messageAttachmentBytes;
+	}
+
+	/**
+	 * wait for room for attachment bytes beyond the estimate, then reserve them;
+	 * once the wait is over, they are reserved over the budget
+	 * @param bytes
+	 * @throws InterruptedException
+	 */
+	public void reserveAttachment(long bytes) throws InterruptedException {
+		if (!budget.acquire(bytes, ATTACHMENT_RESERVE_TIMEOUT_MILLIS))
+		{
+			log.warn("no room in the memory budget for " + bytes + " attachment bytes after " 
+					+ ATTACHMENT_RESERVE_TIMEOUT_MILLIS + " ms, going over the budget");
+			budget.forceAcquire(bytes);
+		}
+	}
+
+	/**
+	 * add bytes found to be held beyond the reservation
+	 * @param bytes
+	 */
+	public void add(long bytes) {
+		budget.forceAcquire(bytes);
+	}
+
+	/**
+	 * return the bytes, and wake up the processing thread for the messages held back
+	 * @param bytes
+	 */
+	public void release(long bytes) {
+		budget.release(bytes);
+		workSignal.signal();
+	}
+
+	/**
+	 * @return the budget usage, for the status endpoint
+	 */
+	public HashMap<String, Object> getStatus() {
+		HashMap<String, Object> rv = new HashMap<String, Object>();
+		rv.put("capacity", budget.getCapacity());
+		rv.put("used", budget.getUsed());
+		rv.put("waiting", budget.getWaiting());
+		return rv;
+	}
+}
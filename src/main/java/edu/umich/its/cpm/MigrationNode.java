@@ -0,0 +1,86 @@
+package edu.umich.its.cpm;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.sql.Timestamp;
+import java.util.UUID;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+/**
+ * identity of this CPM instance among all instances sharing the same database
+ *
+ * the node id is recorded as owner of claimed migration items,
+ * so that several instances can run behind the load balancer
+ * without processing the same item twice
+ *
+ */
+@Component
+class MigrationNode {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(MigrationNode.class);
+
+	@Autowired
+	private Environment env;
+
+	private String nodeId;
+
+	@PostConstruct
+	public void init() {
+		nodeId = env.getProperty(Utils.NODE_ID_PROP);
+		if (nodeId == null || nodeId.trim().isEmpty())
+		{
+			// default to host name, with a random suffix
+			// so that instances on the same host are told apart
+			String hostName = "localhost";
+			try
+			{
+				hostName = InetAddress.getLocalHost().getHostName();
+			}
+			catch (UnknownHostException e)
+			{
+				log.warn("Cannot resolve local host name " + e.getMessage());
+			}
+			nodeId = hostName + ":" + UUID.randomUUID().toString().substring(0, 8);
+		}
+		nodeId = nodeId.trim();
+		log.info("migration node id is " + nodeId);
+	}
+
+	/**
+	 * @return the id of this node
+	 */
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	/**
+	 * @return the lease duration of a claim, in milliseconds
+	 */
+	public long getLeaseDuration() {
+		return Utils.getLongProperty(env, Utils.CLAIM_LEASE_DURATION_PROP, Utils.CLAIM_LEASE_DURATION_SECONDS) * 1000L;
+	}
+
+	/**
+	 * the claim is renewed three times per lease duration, 
+	 * so that a single missed heartbeat does not lose the claim
+	 * @return the heartbeat interval for renewing a claim, in milliseconds
+	 */
+	public long getLeaseRenewInterval() {
+		return getLeaseDuration() / 3;
+	}
+
+	/**
+	 * @return the lease expiry time for an item claimed or renewed now
+	 */
+	public Timestamp getLeaseExpiry() {
+		return new Timestamp(System.currentTimeMillis() + getLeaseDuration());
+	}
+}
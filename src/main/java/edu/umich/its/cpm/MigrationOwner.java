@@ -0,0 +1,97 @@
+package edu.umich.its.cpm;
+
+import java.io.Serializable;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.IdClass;
+import javax.persistence.Table;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * one of the users a migration is listed for: the user who started it, and
+ * the site owners or maintainers, as in the migrated_by field of the migration
+ *
+ */
+@Entity
+@Table(name = "MIGRATION_OWNER")
+@IdClass(MigrationOwner.Key.class)
+public class MigrationOwner {
+
+	/**
+	 * primary key field
+	 * a foreign key to the migration table
+	 */
+	@Id
+	@Column(name = "MIGRATION_ID", columnDefinition = "VARCHAR(99) NOT NULL")
+	@Getter
+	@Setter
+	private String migration_id;
+
+	/**
+	 * primary key field
+	 * the login id of the user, the email address for users outside of the default domain
+	 */
+	@Id
+	@Column(name = "USER_ID", columnDefinition = "VARCHAR(99) NOT NULL")
+	@Getter
+	@Setter
+	private String user_id;
+
+	protected MigrationOwner() {
+	}
+
+	public MigrationOwner(String migration_id, String user_id) {
+		this.migration_id = migration_id;
+		this.user_id = user_id;
+	}
+
+	@Override
+	public String toString() {
+		String s = String
+				.format("MigrationOwner[migration_id=%s, "
+						+ "user_id='%s',"
+						+ "]", migration_id, user_id);
+		return s;
+	}
+
+	/**
+	 * the composite primary key
+	 */
+	public static class Key implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private String migration_id;
+
+		private String user_id;
+
+		public Key() {
+		}
+
+		public Key(String migration_id, String user_id) {
+			this.migration_id = migration_id;
+			this.user_id = user_id;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+			{
+				return false;
+			}
+			Key other = (Key) o;
+			return migration_id != null && migration_id.equals(other.migration_id)
+					&& user_id != null && user_id.equals(other.user_id);
+		}
+
+		@Override
+		public int hashCode() {
+			return (migration_id != null ? migration_id.hashCode() : 0) * 31
+					+ (user_id != null ? user_id.hashCode() : 0);
+		}
+	}
+}
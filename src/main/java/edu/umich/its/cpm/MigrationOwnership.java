@@ -0,0 +1,38 @@
+package edu.umich.its.cpm;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * saves a new migration record together with its owners
+ *
+ * The migrations of a user are looked up through the MIGRATION_OWNER rows,
+ * one per owner, by an index on the user id, instead of scanning the
+ * comma separated migrated_by field of every migration for the user id.
+ *
+ */
+@Component
+class MigrationOwnership {
+
+	@Autowired
+	private MigrationRepository mRepository;
+
+	@Autowired
+	private MigrationOwnerRepository oRepository;
+
+	/**
+	 * save the migration, and an owner row for each user in its migrated_by field
+	 * @param m
+	 * @return the saved migration
+	 */
+	@Transactional
+	public Migration saveMigration(Migration m) {
+		Migration saved = mRepository.save(m);
+		for (String userId : Utils.getMigrationOwnerIds(m.getMigrated_by()))
+		{
+			oRepository.save(new MigrationOwner(saved.getMigration_id(), userId));
+		}
+		return saved;
+	}
+}
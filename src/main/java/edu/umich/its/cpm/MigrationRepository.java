@@ -4,6 +4,7 @@ import java.util.List;
 
 import java.sql.Timestamp;
 
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.repository.CrudRepository;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
@@ -25,7 +26,7 @@ public interface MigrationRepository extends CrudRepository<Migration, String> {
 	 * @param userId
 	 * @return
 	 */
-	@Query("SELECT m FROM Migration m WHERE m.migrated_by like %:userId% and destination_type != 'box' order by m.start_time desc")
+	@Query("SELECT m FROM Migration m WHERE m.migration_id in (select o.migration_id from MigrationOwner o where o.user_id = :userId) and destination_type != 'box' order by m.start_time desc")
 	List<Migration> findMigrations(@Param("userId") String userId);
 
 	/**
@@ -34,7 +35,7 @@ public interface MigrationRepository extends CrudRepository<Migration, String> {
 	 * @param userId
 	 * @return
 	 */
-	@Query("SELECT m FROM Migration m WHERE m.end_time IS NOT NULL and m.migrated_by like %:userId% and destination_type != 'box' order by m.end_time desc")
+	@Query("SELECT m FROM Migration m WHERE m.end_time IS NOT NULL and m.migration_id in (select o.migration_id from MigrationOwner o where o.user_id = :userId) and destination_type != 'box' order by m.end_time desc")
 	public List<Migration> findMigrated(@Param("userId") String userId);
 
 	/**
@@ -43,7 +44,7 @@ public interface MigrationRepository extends CrudRepository<Migration, String> {
 	 * @param userId
 	 * @return
 	 */
-	@Query("SELECT m FROM Migration m WHERE m.end_time IS NULL and m.migrated_by LIKE %:userId% and destination_type != 'box' order by m.start_time desc")
+	@Query("SELECT m FROM Migration m WHERE m.end_time IS NULL and m.migration_id in (select o.migration_id from MigrationOwner o where o.user_id = :userId) and destination_type != 'box' order by m.start_time desc")
 	public List<Migration> findMigrating(@Param("userId") String userId);
 	
 	/**
@@ -54,6 +55,18 @@ public interface MigrationRepository extends CrudRepository<Migration, String> {
 	@Query("SELECT m FROM Migration m WHERE m.end_time IS NULL and destination_type != 'box' order by m.start_time desc")
 	public List<Migration> findMigrating();
 
+	/**
+	 * Finds the ongoing migrations whose items have all finished, 
+	 * going by the item counters, and the cancelled ones; 
+	 * Box migrations included, unlike the user-facing lists.
+	 * Migrations whose items are still being queued are left out, 
+	 * as the items queued so far may all finish before the rest are found
+	 * 
+	 * @return
+	 */
+	@Query("SELECT m FROM Migration m WHERE m.end_time IS NULL and m.queued_time IS NOT NULL and ((m.item_count > 0 and m.finished_item_count >= m.item_count) or m.control_state = 'cancelled')")
+	public List<Migration> findMigrationsToFinalize();
+
 	/**
 	 * Finds migration with migration_id
 	 * 
@@ -86,6 +99,50 @@ public interface MigrationRepository extends CrudRepository<Migration, String> {
 	@Query("update Migration m set m.status = ?#{[0]} where m.id = ?#{[1]}")
 	public int setMigrationStatus(String status, String migrationId);
 
+	/**
+	 * add to the number of items queued for the migration
+	 * @param migrationId
+	 * @param count
+	 * @return
+	 */
+	@Transactional
+	@Modifying(clearAutomatically = false)
+	@Query("update Migration m set m.item_count = coalesce(m.item_count, 0) + ?#{[1]} where m.migration_id = ?#{[0]}")
+	public int addMigrationItems(String migrationId, int count);
+
+	/**
+	 * add to the number of finished items of the migration
+	 * @param migrationId
+	 * @param count
+	 * @return
+	 */
+	@Transactional
+	@Modifying(clearAutomatically = false)
+	@Query("update Migration m set m.finished_item_count = coalesce(m.finished_item_count, 0) + ?#{[1]} where m.migration_id = ?#{[0]}")
+	public int addFinishedMigrationItems(String migrationId, int count);
+
+	/**
+	 * the migrations finished before the given time whose items are still in the hot tables, oldest first
+	 */
+	@Query("SELECT m.migration_id FROM Migration m WHERE m.end_time < ?#{[0]} and m.archive_time IS NULL order by m.end_time")
+	public List<String> getMigrationIdsToArchive(Timestamp endedBefore, Pageable pageable);
+
+	/**
+	 * stamp the migration whose items have all been queued
+	 */
+	@Transactional
+	@Modifying(clearAutomatically = false)
+	@Query("update Migration m set m.queued_time = ?#{[0]} where m.migration_id = ?#{[1]}")
+	public int setMigrationQueuedTime(Timestamp t, String migrationId);
+
+	/**
+	 * stamp the migration whose items were moved to the history tables
+	 */
+	@Transactional
+	@Modifying(clearAutomatically = false)
+	@Query("update Migration m set m.archive_time = ?#{[0]} where m.migration_id = ?#{[1]}")
+	public int setMigrationArchiveTime(Timestamp t, String migrationId);
+
 	/**
 	 * Update the migration end time field
 	 */
@@ -120,6 +177,15 @@ public interface MigrationRepository extends CrudRepository<Migration, String> {
 	@Query("SELECT m FROM Migration m where m.bulk_migration_id = ?#{[0]}")
 	public List<Migration> getMigrationsInBulkUpload(String bulk_migration_id);
 
+	/**
+	 * count the migrations within the bulk migration
+	 * 
+	 * @param bulk_migration_id
+	 * @return
+	 */
+	@Query("SELECT count(*) FROM Migration m where m.bulk_migration_id = ?#{[0]}")
+	public int countMigrationsInBulkUpload(String bulk_migration_id);
+
 	/**
 	 * get migration with the bulk migration id and site id
 	 * 
@@ -139,4 +205,95 @@ public interface MigrationRepository extends CrudRepository<Migration, String> {
 	@Query("SELECT m.site_id FROM Migration m where m.migration_id = ?#{[0]} and destination_type != 'box'")
 	public String getMigrationSiteId(String migration_id);
 
+	/**
+	 * return the priority lane for given migration
+	 * @param migration_id
+	 * @return
+	 */
+	@Query("SELECT m.priority FROM Migration m where m.migration_id = ?#{[0]}")
+	public String getMigrationPriority(String migration_id);
+
+	/**
+	 * return the ids of unfinished migrations that are paused or cancelled
+	 * @return
+	 */
+	@Query("SELECT m.migration_id FROM Migration m where m.end_time is null and m.control_state is not null")
+	public List<String> getStoppedMigrationIds();
+
+	/**
+	 * return the ids of unfinished migrations within the bulk migration
+	 * @param bulk_migration_id
+	 * @return
+	 */
+	@Query("SELECT m.migration_id FROM Migration m where m.bulk_migration_id = ?#{[0]} and m.end_time is null")
+	public List<String> getUnfinishedMigrationIdsInBulkUpload(String bulk_migration_id);
+
+	/**
+	 * pause the running migration
+	 * @param migration_id
+	 * @return 1 if paused
+	 */
+	@Transactional
+	@Modifying(clearAutomatically = false)
+	@Query("update Migration m set m.control_state = 'paused' where m.migration_id = ?#{[0]} and m.end_time is null and m.control_state is null")
+	public int pauseMigration(String migration_id);
+
+	/**
+	 * resume the paused migration
+	 * @param migration_id
+	 * @return 1 if resumed
+	 */
+	@Transactional
+	@Modifying(clearAutomatically = false)
+	@Query("update Migration m set m.control_state = null where m.migration_id = ?#{[0]} and m.end_time is null and m.control_state = 'paused'")
+	public int resumeMigration(String migration_id);
+
+	/**
+	 * cancel the running or paused migration; it cannot be resumed afterwards
+	 * @param migration_id
+	 * @return 1 if cancelled
+	 */
+	@Transactional
+	@Modifying(clearAutomatically = false)
+	@Query("update Migration m set m.control_state = 'cancelled' where m.migration_id = ?#{[0]} and m.end_time is null and (m.control_state is null or m.control_state = 'paused')")
+	public int cancelMigration(String migration_id);
+
+	/**
+	 * pause the running migrations within the bulk migration
+	 * @param bulk_migration_id
+	 * @return the number of migrations paused
+	 */
+	@Transactional
+	@Modifying(clearAutomatically = false)
+	@Query("update Migration m set m.control_state = 'paused' where m.bulk_migration_id = ?#{[0]} and m.end_time is null and m.control_state is null")
+	public int pauseBulkMigration(String bulk_migration_id);
+
+	/**
+	 * resume the paused migrations within the bulk migration
+	 * @param bulk_migration_id
+	 * @return the number of migrations resumed
+	 */
+	@Transactional
+	@Modifying(clearAutomatically = false)
+	@Query("update Migration m set m.control_state = null where m.bulk_migration_id = ?#{[0]} and m.end_time is null and m.control_state = 'paused'")
+	public int resumeBulkMigration(String bulk_migration_id);
+
+	/**
+	 * cancel the running or paused migrations within the bulk migration
+	 * @param bulk_migration_id
+	 * @return the number of migrations cancelled
+	 */
+	@Transactional
+	@Modifying(clearAutomatically = false)
+	@Query("update Migration m set m.control_state = 'cancelled' where m.bulk_migration_id = ?#{[0]} and m.end_time is null and (m.control_state is null or m.control_state = 'paused')")
+	public int cancelBulkMigration(String bulk_migration_id);
+
+	/**
+	 * return the bulk migration id for given migration
+	 * @param migration_id
+	 * @return null if not part of a bulk migration
+	 */
+	@Query("SELECT m.bulk_migration_id FROM Migration m where m.migration_id = ?#{[0]}")
+	public String getBulkMigrationId(String migration_id);
+
 }
\ No newline at end of file
@@ -0,0 +1,69 @@
+package edu.umich.its.cpm;
+
+/**
+ * decides whether a failed item migration is retried, and when
+ *
+ * Timeouts and connection errors (no response at all), throttling, server
+ * errors and expired access tokens are transient: the item goes back into
+ * the pool and is handed out again after an exponential backoff. The backoff
+ * doubles with each attempt up to the max delay; half of it is random jitter,
+ * so that items failing together are not retried together. After the max
+ * attempts the item is given up, and stays failed as a dead letter.
+ *
+ */
+public class MigrationRetryPolicy {
+
+	// error code for failures without any response, e.g. timeouts and connection errors
+	public static final int NO_RESPONSE = 0;
+
+	private final long baseDelayMillis;
+
+	private final long maxDelayMillis;
+
+	private final int maxAttempts;
+
+	public MigrationRetryPolicy(long baseDelayMillis, long maxDelayMillis, int maxAttempts) {
+		this.baseDelayMillis = Math.max(0L, baseDelayMillis);
+		this.maxDelayMillis = Math.max(this.baseDelayMillis, maxDelayMillis);
+		this.maxAttempts = Math.max(1, maxAttempts);
+	}
+
+	/**
+	 * @param errorCode the HTTP status, or NO_RESPONSE
+	 * @return true if the error is transient and worth a retry
+	 */
+	public static boolean isRetryable(int errorCode) {
+		return errorCode <= NO_RESPONSE
+				|| errorCode == org.apache.http.HttpStatus.SC_UNAUTHORIZED
+				|| errorCode == org.apache.http.HttpStatus.SC_REQUEST_TIMEOUT
+				|| errorCode == Utils.HTTP_STATUS_TOO_MANY_REQUESTS
+				|| errorCode >= 500;
+	}
+
+	/**
+	 * @param attempts the failed attempts so far, including the current one
+	 * @return true if another attempt is allowed
+	 */
+	public boolean canRetry(int attempts) {
+		return attempts < maxAttempts;
+	}
+
+	/**
+	 * @param attempts the failed attempts so far, including the current one
+	 * @param random a random number from 0 to 1
+	 * @return how long to wait before the next attempt
+	 */
+	public long getBackoffMillis(int attempts, double random) {
+		long delay = baseDelayMillis;
+		for (int i = 1; i < attempts && delay < maxDelayMillis; i++)
+		{
+			delay *= 2;
+		}
+		delay = Math.min(delay, maxDelayMillis);
+		return delay / 2 + (long) (random * (delay - delay / 2));
+	}
+
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+}
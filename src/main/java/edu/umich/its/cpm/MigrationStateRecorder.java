@@ -0,0 +1,397 @@
+package edu.umich.its.cpm;
+
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * write-behind recorder of finished Box file and message items
+ *
+ * The end time, status and outcome of a finished item are held back, and
+ * written together with others in one JDBC batch, along with the finished
+ * counts of their migrations, in one transaction. A batch is written once
+ * it is full, or once its oldest item has waited the flush interval.
+ * With a driver that does not report the rows of batched statements, the
+ * items are updated one at a time instead, so that an item whose claim is
+ * lost is never counted as finished.
+ *
+ * Durability: an item held back is still claimed by this node in the
+ * database. If the node dies before the batch is written, its claim
+ * expires, and the item is migrated again, the same as an item the node
+ * was still working on. A batch that fails to be written is tried again
+ * at the next flush, after a backoff. While writes keep failing, or fall
+ * behind, the queue fills up, and the upload thread finishing an item
+ * writes it itself, right away, instead of adding it to an unbounded queue;
+ * if that fails too, the item is migrated again after its claim expires.
+ * The batch is flushed before the node drains, and on
+ * shutdown. The flush interval has to stay well below the claim lease
+ * duration, since claims held back are not renewed. A flush interval of 0
+ * writes each item on its own, right away.
+ *
+ */
+@Component
+class MigrationStateRecorder {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(MigrationStateRecorder.class);
+
+	private static final String FINISH_BOX_FILE_SQL = "update MIGRATION_BOX_FILE set END_TIME = ?, STATUS = ?, OUTCOME = ? "
+			+ "where ID = ? and OWNER_NODE = ? and END_TIME is null";
+
+	private static final String FINISH_MESSAGE_SQL = "update MIGRATION_EMAIL_MESSAGE set END_TIME = ?, STATUS = ?, OUTCOME = ? "
+			+ "where MESSAGE_ID = ? and OWNER_NODE = ? and END_TIME is null";
+
+	private static final String ADD_FINISHED_ITEMS_SQL = "update MIGRATION set FINISHED_ITEM_COUNT = coalesce(FINISHED_ITEM_COUNT, 0) + ? "
+			+ "where MIGRATION_ID = ?";
+
+	@Autowired
+	private Environment env;
+
+	@Autowired
+	private JdbcTemplate jdbcTemplate;
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	@Autowired
+	private MigrationItemCounter itemCounter;
+
+	private WriteBehindQueue<ItemFinish> queue;
+
+	private TransactionTemplate transactionTemplate;
+
+	private Thread flusher;
+
+	private volatile boolean running = true;
+
+	// serializes flushes of the flusher thread and of drain and shutdown
+	private final Object flushLock = new Object();
+
+	private long flushedItems = 0;
+
+	private long lostClaims = 0;
+
+	private long failedFlushes = 0;
+
+	// cleared once the driver turns out to return SUCCESS_NO_INFO for batched statements
+	private volatile boolean rowCountsReported = true;
+
+	/**
+	 * the rows updated by a batched statement are not known, the transaction is rolled back
+	 */
+	private static class RowCountsNotReportedException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+	}
+
+	/**
+	 * the end of an item migration, waiting to be written
+	 */
+	private static class ItemFinish {
+		final boolean boxFile;
+		final String migrationId;
+		final String id;
+		final Timestamp t;
+		final String status;
+		final String outcome;
+		final String ownerNode;
+
+		ItemFinish(boolean boxFile, String migrationId, String id, Timestamp t, String status, String outcome, String ownerNode) {
+			this.boxFile = boxFile;
+			this.migrationId = migrationId;
+			this.id = id;
+			this.t = t;
+			this.status = status;
+			this.outcome = outcome;
+			this.ownerNode = ownerNode;
+		}
+
+		Object[] getArgs() {
+			return new Object[] { t, status, outcome, id, ownerNode };
+		}
+	}
+
+	@PostConstruct
+	public void init() {
+		long flushInterval = Utils.getLongProperty(env, Utils.STATE_FLUSH_INTERVAL_PROP, Utils.STATE_FLUSH_INTERVAL_MILLIS);
+		int batchSize = Utils.getIntProperty(env, Utils.STATE_FLUSH_BATCH_PROP, Utils.STATE_FLUSH_BATCH);
+		transactionTemplate = new TransactionTemplate(transactionManager);
+		if (flushInterval <= 0)
+		{
+			log.info("item state write-behind disabled");
+			return;
+		}
+		queue = new WriteBehindQueue<ItemFinish>(batchSize, flushInterval, batchSize * Utils.STATE_FLUSH_QUEUED_BATCHES);
+		flusher = new Thread(new Runnable() {
+			public void run() {
+				flushLoop();
+			}
+		}, "migration-state-recorder");
+		flusher.setDaemon(true);
+		flusher.start();
+		log.info("item state write-behind every " + flushInterval + " ms, or " + queue.getBatchSize() + " items");
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		running = false;
+		if (flusher != null)
+		{
+			flusher.interrupt();
+		}
+		flushAll();
+	}
+
+	/**
+	 * record the end time, status and outcome of the Box file item claimed by the node
+	 */
+	public void recordBoxFileFinish(String migrationId, String id, Timestamp t, String status, String outcome, String ownerNode) {
+		enqueue(new ItemFinish(true, migrationId, id, t, status, outcome, ownerNode));
+	}
+
+	/**
+	 * record the end time, status and outcome of the message claimed by the node
+	 */
+	public void recordMessageFinish(String migrationId, String messageId, Timestamp t, String status, String outcome, String ownerNode) {
+		enqueue(new ItemFinish(false, migrationId, messageId, t, status, outcome, ownerNode));
+	}
+
+	/**
+	 * write all the items held back, e.g. before the node returns its claims to the pool
+	 */
+	public void flushAll() {
+		if (queue == null)
+		{
+			return;
+		}
+		synchronized (flushLock)
+		{
+			while (queue.size() > 0)
+			{
+				if (!flush())
+				{
+					log.error(queue.size() + " finished items could not be recorded, they are migrated again after their claim expires");
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the write-behind counters, for the status endpoint
+	 */
+	public synchronized HashMap<String, Object> getStatus() {
+		HashMap<String, Object> rv = new HashMap<String, Object>();
+		rv.put("queued", queue != null ? queue.size() : 0);
+		rv.put("flushedItems", flushedItems);
+		rv.put("lostClaims", lostClaims);
+		rv.put("failedFlushes", failedFlushes);
+		return rv;
+	}
+
+	private void enqueue(ItemFinish finish) {
+		if (queue == null || queue.isFull())
+		{
+			// write-behind disabled, or the queue is full: the caller writes its item itself
+			writeThrough(finish);
+			return;
+		}
+		if (queue.add(finish, System.currentTimeMillis()))
+		{
+			// a whole batch is waiting
+			synchronized (queue)
+			{
+				queue.notifyAll();
+			}
+		}
+	}
+
+	private void writeThrough(ItemFinish finish) {
+		int finished = finish.boxFile
+				? itemCounter.finishBoxFile(finish.migrationId, finish.id, finish.t, finish.status, finish.outcome, finish.ownerNode)
+				: itemCounter.finishMessage(finish.migrationId, finish.id, finish.t, finish.status, finish.outcome, finish.ownerNode);
+		if (finished == 0)
+		{
+			log.warn("The claim on " + (finish.boxFile ? "Box file item " : "message ") + finish.id
+					+ " is no longer held by node " + finish.ownerNode + ", status not recorded");
+		}
+	}
+
+	private void flushLoop() {
+		while (running)
+		{
+			try
+			{
+				long delay;
+				synchronized (queue)
+				{
+					delay = queue.getFlushDelay(System.currentTimeMillis());
+					if (delay != 0)
+					{
+						// nothing due: wait for a whole batch, the first item's interval, or the backoff after a failed write
+						queue.wait(delay < 0 ? 1000L : delay);
+						continue;
+					}
+				}
+				synchronized (flushLock)
+				{
+					flush();
+				}
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return;
+			}
+			catch (RuntimeException e)
+			{
+				log.error("problem recording finished items " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * write one batch in one transaction; put it back if that fails
+	 * @return true if written
+	 */
+	private boolean flush() {
+		final List<ItemFinish> batch = queue.drain();
+		if (batch.isEmpty())
+		{
+			return true;
+		}
+		try
+		{
+			Integer finished;
+			try
+			{
+				finished = writeInTransaction(batch);
+			}
+			catch (RowCountsNotReportedException e)
+			{
+				// rolled back: write the batch again, one item at a time, from now on
+				log.warn("The JDBC driver does not report the rows of batched statements, finished items are written one at a time");
+				rowCountsReported = false;
+				finished = writeInTransaction(batch);
+			}
+			queue.written();
+			synchronized (this)
+			{
+				flushedItems += finished;
+				lostClaims += batch.size() - finished;
+			}
+			return true;
+		}
+		catch (RuntimeException e)
+		{
+			log.error("problem writing " + batch.size() + " finished items, to be tried again: " + e.getMessage());
+			synchronized (this)
+			{
+				failedFlushes++;
+			}
+			queue.requeue(batch, System.currentTimeMillis());
+			return false;
+		}
+	}
+
+	private Integer writeInTransaction(final List<ItemFinish> batch) {
+		return transactionTemplate.execute(new TransactionCallback<Integer>() {
+			public Integer doInTransaction(TransactionStatus status) {
+				return writeBatch(batch);
+			}
+		});
+	}
+
+	/**
+	 * @param batch
+	 * @return the number of items finished; items whose claim is lost are not
+	 */
+	private int writeBatch(List<ItemFinish> batch) {
+		List<ItemFinish> boxFiles = new ArrayList<ItemFinish>();
+		List<ItemFinish> messages = new ArrayList<ItemFinish>();
+		for (ItemFinish finish : batch)
+		{
+			(finish.boxFile ? boxFiles : messages).add(finish);
+		}
+		Map<String, Integer> finishedPerMigration = new HashMap<String, Integer>();
+		int finished = writeItems(FINISH_BOX_FILE_SQL, boxFiles, finishedPerMigration)
+				+ writeItems(FINISH_MESSAGE_SQL, messages, finishedPerMigration);
+
+		List<Object[]> counts = new ArrayList<Object[]>();
+		for (Map.Entry<String, Integer> entry : finishedPerMigration.entrySet())
+		{
+			counts.add(new Object[] { entry.getValue(), entry.getKey() });
+		}
+		if (!counts.isEmpty())
+		{
+			jdbcTemplate.batchUpdate(ADD_FINISHED_ITEMS_SQL, counts);
+		}
+		return finished;
+	}
+
+	private int writeItems(String sql, List<ItemFinish> items, Map<String, Integer> finishedPerMigration) {
+		if (items.isEmpty())
+		{
+			return 0;
+		}
+		List<Object[]> args = new ArrayList<Object[]>(items.size());
+		for (ItemFinish finish : items)
+		{
+			args.add(finish.getArgs());
+		}
+		int[] updated;
+		if (rowCountsReported)
+		{
+			updated = jdbcTemplate.batchUpdate(sql, args);
+			for (int rows : updated)
+			{
+				// a fenced update that lost its claim must not be counted
+				if (rows == Statement.SUCCESS_NO_INFO)
+				{
+					throw new RowCountsNotReportedException();
+				}
+			}
+		}
+		else
+		{
+			updated = new int[items.size()];
+			for (int i = 0; i < items.size(); i++)
+			{
+				updated[i] = jdbcTemplate.update(sql, args.get(i));
+			}
+		}
+		int finished = 0;
+		for (int i = 0; i < items.size(); i++)
+		{
+			ItemFinish finish = items.get(i);
+			if (updated[i] > 0)
+			{
+				finished++;
+				Integer count = finishedPerMigration.get(finish.migrationId);
+				finishedPerMigration.put(finish.migrationId, count != null ? count + 1 : 1);
+			}
+			else
+			{
+				log.warn("The claim on " + (finish.boxFile ? "Box file item " : "message ") + finish.id
+						+ " is no longer held by node " + finish.ownerNode + ", status not recorded");
+			}
+		}
+		return finished;
+	}
+}
@@ -0,0 +1,15 @@
+package edu.umich.its.cpm;
+
+/**
+ * thrown from inside an item upload, when its migration is paused or cancelled,
+ * to abort the upload at the next chunk
+ *
+ */
+class MigrationStoppedException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	public MigrationStoppedException(String migrationId) {
+		super("migration " + migrationId + " is paused or cancelled");
+	}
+}
@@ -0,0 +1,71 @@
+package edu.umich.its.cpm;
+
+import java.util.concurrent.Future;
+
+/**
+ * an item migration handed over to an executor,
+ * with the information the processing thread needs to account for it
+ *
+ */
+class MigrationTaskHandle {
+
+	// Box file id or email message id
+	private final String itemId;
+
+	// priority lane of the item
+	private final String priority;
+
+	// the bulk migration of the item, null if not part of a bulk migration
+	private final String bulkMigrationId;
+
+	// the size class of a Box file, 0 for email messages
+	private final int sizeClass;
+
+	private final Future<String> future;
+
+	public MigrationTaskHandle(String itemId, String priority, String bulkMigrationId, Future<String> future) {
+		this(itemId, priority, bulkMigrationId, 0, future);
+	}
+
+	public MigrationTaskHandle(String itemId, String priority, String bulkMigrationId, int sizeClass, Future<String> future) {
+		this.itemId = itemId;
+		this.priority = priority;
+		this.bulkMigrationId = bulkMigrationId;
+		this.sizeClass = sizeClass;
+		this.future = future;
+	}
+
+	public String getItemId() {
+		return itemId;
+	}
+
+	public String getPriority() {
+		return priority;
+	}
+
+	public String getBulkMigrationId() {
+		return bulkMigrationId;
+	}
+
+	public int getSizeClass() {
+		return sizeClass;
+	}
+
+	public Future<String> getFuture() {
+		return future;
+	}
+
+	/**
+	 * @return true if the item migration has finished
+	 */
+	public boolean isDone() {
+		return future.isDone();
+	}
+
+	/**
+	 * @return true if the item belongs to the bulk lane
+	 */
+	public boolean isBulk() {
+		return Utils.PRIORITY_BULK.equals(priority);
+	}
+}
@@ -10,6 +10,7 @@ import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.json.JSONException;
@@ -43,7 +44,7 @@ import java.util.zip.ZipOutputStream;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 import java.util.Queue;
-import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -82,6 +83,36 @@ class MigrationTaskService {
 	@Autowired
 	MigrationRepository migrationRepository;
 
+	@Autowired
+	MigrationOwnership migrationOwnership;
+
+	@Autowired
+	MigrationWorkSignal workSignal;
+	
+	@Autowired
+	MigrationNode node;
+	
+	@Autowired
+	MigrationConcurrencyController concurrencyController;
+
+	@Autowired
+	MigrationDependencyLimiter dependencyLimiter;
+
+	@Autowired
+	MigrationControlStates controlStates;
+
+	@Autowired
+	CToolsContentFetcher contentFetcher;
+
+	@Autowired
+	MigrationMemoryBudget memoryBudget;
+
+	@Autowired
+	MigrationItemCounter itemCounter;
+
+	@Autowired
+	MigrationStateRecorder stateRecorder;
+
 	@Autowired
 	private Environment env;
 
@@ -110,7 +141,11 @@ class MigrationTaskService {
 	// use the decimal version of GB here, smaller than the binary version
 	private static final long MAX_CONTENT_SIZE_FOR_BOX = 5L * 1024 * 1024 * 1024;
 	
-	private Queue<String> migrationSiteQueue = new LinkedList<String>();
+	// site ids are queued from request threads and drained by the bulk preparation thread
+	private Queue<String> migrationSiteQueue = new ConcurrentLinkedQueue<String>();
+
+	// jitter of the retry backoff
+	private final Random random = new Random();
 	
 	/**
 	 * put siteId into the migration queue
@@ -119,6 +154,7 @@ class MigrationTaskService {
 	public void queueMigrationSiteId(String siteId)
 	{
 		migrationSiteQueue.add(siteId);		
+		workSignal.signal();
 	}
 	
 	/**
@@ -129,6 +165,7 @@ class MigrationTaskService {
 	public void queueMigrationSiteIds(Set<String> siteIds)
 	{
 		migrationSiteQueue.addAll(siteIds);		
+		workSignal.signal();
 	}
 	
 	/**
@@ -140,21 +177,47 @@ class MigrationTaskService {
 		return migrationSiteQueue.poll();	
 	}
 	
+	/**
+	 * prepare the queued-up bulk migration requests in the bulk preparation thread pool
+	 * @return
+	 */
+	@Async(MigrationExecutorConfig.BULK_PREPARATION_EXECUTOR)
+	protected Future<String> prepareBatchFileMigrationRequest() {
+		try
+		{
+			handleWithBatchFileMigrationRequest();
+		}
+		catch (Exception e)
+		{
+			log.error("problem preparing bulk migration request " + e.getMessage());
+		}
+		finally
+		{
+			// new items may have been enqueued, wake up the processing thread
+			workSignal.signal();
+		}
+		return new AsyncResult<String>(Utils.STATUS_SUCCESS);
+	}
+
 	public void handleWithBatchFileMigrationRequest() {
 		// for box migration usage
 		HashMap<String, String> siteBoxMigrationIdMap = new HashMap<String, String>();
 		
-		if (!migrationSiteQueue.isEmpty()) {
+		// take the site ids queued so far; 
+		// ids queued from now on are handled in the next batch
+		List<String> siteAttributesList = new ArrayList<String>();
+		String queuedSiteAttributes = null;
+		while ((queuedSiteAttributes = migrationSiteQueue.poll()) != null) {
+			siteAttributesList.add(queuedSiteAttributes);
+		}
+		
+		if (!siteAttributesList.isEmpty()) {
 			// now that we get the site ids for batch upload
 			// start the batch process
 			String bulkMigrationId = java.util.UUID.randomUUID().toString();
 
-			// duplicate the queue for resource folder process
-			Queue<String> dup_migrationSiteQueue = new LinkedList<String>();
-			dup_migrationSiteQueue.addAll(migrationSiteQueue);
-			
-			while (!dup_migrationSiteQueue.isEmpty()) {
-				String siteAttributesString = dup_migrationSiteQueue.poll();
+			// first pass for resource folder process
+			for (String siteAttributesString : siteAttributesList) {
 				String[] siteAttributes = siteAttributesString.split(Utils.BOX_BULK_UPLOAD_SEPARATOR);
 				if (siteAttributes.length != 6)
 				{
@@ -256,14 +319,11 @@ class MigrationTaskService {
 			
 			// now that we finished all box root folder creation
 			// we are ready to do file content tasks
-			String boxFolderId = null;
-			String migrationId = null;
 			
 			// get the Box Admin Id
 			String userId = env.getProperty(Utils.BOX_ADMIN_ACCOUNT_ID);
-			while (!migrationSiteQueue.isEmpty())
+			for (String siteAttributesString : siteAttributesList)
 			{
-				String siteAttributesString = migrationSiteQueue.poll();
 				String[] siteAttributes = siteAttributesString.split(Utils.BOX_BULK_UPLOAD_SEPARATOR);
 				if (siteAttributes.length != 6)
 				{
@@ -272,6 +332,9 @@ class MigrationTaskService {
 				}
 				String siteId = siteAttributes[0];
 				
+				// per site, do not carry over the folder of the previous site
+				String boxFolderId = null;
+				String migrationId = null;
 				if (siteBoxMigrationIdMap != null && siteBoxMigrationIdMap.containsKey(siteId + "_boxRootFolderId")) {
 					boxFolderId = siteBoxMigrationIdMap.get(siteId + "_boxRootFolderId");
 				}
@@ -339,7 +402,7 @@ class MigrationTaskService {
 				userId, now, now,
 				Utils.MIGRATION_TYPE_BOX, null, uploadStatus.toString());
 		try {
-			migrationRepository.save(m);
+			migrationOwnership.saveMigration(m);
 		} catch (Exception e) {
 			log.error("Exception saving migraion record " + errorMessage + " with error for " + siteName
 					+ e.getMessage());
@@ -973,7 +1036,7 @@ class MigrationTaskService {
 
 		log.info(insertMigrationDetails.toString());
 		try {
-			newMigration = migrationRepository.save(m);
+			newMigration = migrationOwnership.saveMigration(m);
 		} catch (Exception e) {
 			log.error("Exception " + insertMigrationDetails.toString()
 					+ e.getMessage());
@@ -1015,7 +1078,7 @@ class MigrationTaskService {
 
 		log.info(insertMigrationDetails.toString());
 		try {
-			newMigration = migrationRepository.save(m);
+			newMigration = migrationOwnership.saveMigration(m);
 		} catch (Exception e) {
 			log.error("Exception " + insertMigrationDetails.toString()
 					+ e.getMessage());
@@ -1654,17 +1717,10 @@ class MigrationTaskService {
 			// record zip status
 			StringBuffer zipFileStatus = new StringBuffer();
 
-			// create httpclient
-			HttpClient httpClient = HttpClientBuilder.create().build();
-			
 			InputStream content = null;
 			try {
-				// get file content from /access url
-				HttpGet getRequest = new HttpGet(fileAccessUrl);
-				getRequest.setConfig(getRequestConfigWithTimeouts());
-				getRequest.setHeader("Content-Type",
-						"application/x-www-form-urlencoded");
-				HttpResponse r = httpClient.execute(getRequest, httpContext);
+				// get file content from /access url, hedged if slow
+				HttpResponse r = contentFetcher.execute(fileAccessUrl, httpContext, getRequestConfigWithTimeouts());
 				content = r.getEntity().getContent();
 			} catch (Exception e) {
 				String errorMessage = "Cannot get content for " + title + " due to " + e.getMessage();
@@ -1861,6 +1917,24 @@ class MigrationTaskService {
 		public List<MigrationFileItem> boxUploadSiteContent(
 				String migration_id, HttpContext httpContext, String userId, String sessionId,
 				String siteResourceJson, String boxFolderId) {
+			List<MigrationBoxFile> pendingFiles = new ArrayList<MigrationBoxFile>();
+			try {
+				return boxUploadSiteContent(migration_id, httpContext, userId, sessionId, 
+						siteResourceJson, boxFolderId, pendingFiles);
+			} finally {
+				// the files found so far, also when the walk stops early
+				enqueueBoxFiles(migration_id, pendingFiles);
+				// no more files to come, the migration can be finalized once they finish
+				setMigrationQueued(migration_id);
+			}
+		}
+
+		/**
+		 * @param pendingFiles the file records found, inserted a chunk at a time
+		 */
+		private List<MigrationFileItem> boxUploadSiteContent(
+				String migration_id, HttpContext httpContext, String userId, String sessionId,
+				String siteResourceJson, String boxFolderId, List<MigrationBoxFile> pendingFiles) {
 
 			List<MigrationFileItem> rv = new ArrayList<MigrationFileItem>();
 
@@ -1882,6 +1956,11 @@ class MigrationTaskService {
 			// container collections
 			java.util.Stack<String> boxFolderIdStack = new java.util.Stack<String>();
 			
+			// file items inherit the priority lane of the migration
+			String priority = migrationRepository.getMigrationPriority(migration_id);
+			
+			// file records are inserted a chunk at a time
+			int enqueueChunk = Math.min(Utils.ENQUEUE_CHUNK_MAX, Utils.getIntProperty(env, Utils.ENQUEUE_CHUNK_PROP, Utils.ENQUEUE_CHUNK));
 			for (int i = 0; i < array.length(); i++) {
 				// error flag
 				boolean error_flag = false;
@@ -1961,12 +2040,16 @@ class MigrationTaskService {
 									container, boxFolderId, itemStatus,
 									description, contentItem, httpContext,
 									webLinkUrl, contentAccessUrl, author,
-									copyrightAlert, sessionId);
+									copyrightAlert, sessionId, priority, pendingFiles);
 							itemStatus = (StringBuffer) rvValues.get(Utils.PARAM_ITEM_STATUS);
 							containerStack = (java.util.Stack<String>) rvValues
 									.get(Utils.PARAM_CONTAINER_STACK);
 							boxFolderIdStack = (java.util.Stack<String>) rvValues
 									.get(Utils.PARAM_BOX_FOLDER_ID_STACK);
+							if (pendingFiles.size() >= enqueueChunk)
+							{
+								enqueueBoxFiles(migration_id, pendingFiles);
+							}
 							log.debug(Utils.PARAM_CONTAINER_STACK + " length="
 									+ containerStack.size());
 							log.debug(Utils.PARAM_BOX_FOLDER_ID_STACK + " length="
@@ -2087,6 +2170,8 @@ class MigrationTaskService {
 		 * @param author
 		 * @param copyrightAlert
 		 * @param sessionId
+		 * @param priority
+		 * @param pendingFiles the file records to be inserted
 		 * @return
 		 * @throws BoxAPIException
 		 */
@@ -2098,7 +2183,7 @@ class MigrationTaskService {
 				StringBuffer itemStatus, String description,
 				JSONObject contentItem, HttpContext httpContext, String webLinkUrl,
 				String contentAccessUrl, String author, String copyrightAlert,
-				String sessionId) throws BoxAPIException {
+				String sessionId, String priority, List<MigrationBoxFile> pendingFiles) throws BoxAPIException {
 
 			if (Utils.COLLECTION_TYPE.equals(type)) {
 				// folders
@@ -2219,7 +2304,9 @@ class MigrationTaskService {
 								contentAccessUrl, description, author,
 								copyrightAlert, size, null,
 								null, null);
-						fRepository.save(mFile);
+						mFile.setPriority(priority);
+						// queued with the other files of the chunk
+						pendingFiles.add(mFile);
 					}
 				}
 			}
@@ -2229,6 +2316,41 @@ class MigrationTaskService {
 			return rv;
 		}
 
+		/**
+		 * insert the file records in one batch, and wake up the processing thread;
+		 * if the batch fails, insert them one by one, so that one bad record does not keep out the others
+		 * @param migrationId
+		 * @param bFiles emptied afterwards
+		 */
+		private void enqueueBoxFiles(String migrationId, List<MigrationBoxFile> bFiles) {
+			if (bFiles.isEmpty())
+			{
+				return;
+			}
+			try
+			{
+				itemCounter.addBoxFiles(migrationId, bFiles);
+			}
+			catch (Exception e)
+			{
+				log.error("Problem inserting " + bFiles.size() + " file records in a batch, inserting them one by one: " + e.getMessage());
+				for (MigrationBoxFile bFile : bFiles)
+				{
+					try
+					{
+						itemCounter.addBoxFile(bFile);
+					}
+					catch (Exception ee)
+					{
+						log.error("Problem inserting the file record " + bFile.getTitle() + " of migration " + migrationId + ": " + ee.getMessage());
+					}
+				}
+			}
+			bFiles.clear();
+			// wake up the processing thread
+			workSignal.signal();
+		}
+
 		private HashMap<String, Object> returnMapWithStatus(
 				java.util.Stack<String> containerStack,
 				java.util.Stack<String> boxFolderIdStack,
@@ -2246,8 +2368,50 @@ class MigrationTaskService {
 		 * @param httpContext
 		 * @return
 		 */
-		@Async
+		@Async(MigrationExecutorConfig.BOX_UPLOAD_EXECUTOR)
 		protected Future<String> uploadBoxFile(MigrationBoxFile bFile, HttpContext httpContext, String sessionId) {
+			// the file content streams from CTools straight into Box,
+			// so the upload holds a permit of both dependencies, always taken in the same order
+			boolean ctoolsAcquired = false;
+			boolean boxAcquired = false;
+			try
+			{
+				dependencyLimiter.acquire(MigrationDependencyLimiter.CTOOLS);
+				ctoolsAcquired = true;
+				dependencyLimiter.acquire(MigrationDependencyLimiter.BOX);
+				boxAcquired = true;
+				return transferBoxFile(bFile, httpContext, sessionId);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				log.warn("interrupted while waiting to upload Box file item " + bFile.getId());
+				// return the file into the pool, so that it would be picked up again for migration
+				fRepository.releaseMigrationBoxFile(bFile.getId(), node.getNodeId());
+				workSignal.signal();
+				return new AsyncResult<String>("interrupted");
+			}
+			finally
+			{
+				if (boxAcquired)
+				{
+					dependencyLimiter.release(MigrationDependencyLimiter.BOX);
+				}
+				if (ctoolsAcquired)
+				{
+					dependencyLimiter.release(MigrationDependencyLimiter.CTOOLS);
+				}
+			}
+		}
+
+		/**
+		 * download the file content from CTools and upload it into Box
+		 * @param bFile
+		 * @param httpContext
+		 * @param sessionId
+		 * @return
+		 */
+		private Future<String> transferBoxFile(MigrationBoxFile bFile, HttpContext httpContext, String sessionId) {
 			// status string
 			StringBuffer status = new StringBuffer();
 			
@@ -2263,7 +2427,7 @@ class MigrationTaskService {
 				status.append(" uploadFile: file name is null or empty. ");
 				// update job end time and status
 				// return AsyncResult
-				return new AsyncResult<String>(setUploadJobEndtimeStatus(id, status));
+				return new AsyncResult<String>(setUploadJobEndtimeStatus(bFile, status, Utils.ITEM_OUTCOME_ERROR));
 			}
 			// replacing dots with _ don't need for Weblinks https://itsjira.umms.med.umich.edu/browse/TLCPM-653
 			if(!type.equals(Utils.CTOOLS_RESOURCE_TYPE_URL)) {
@@ -2284,34 +2448,40 @@ class MigrationTaskService {
 				
 				// update job end time and status
 				// return AsyncResult
-				return new AsyncResult<String>(setUploadJobEndtimeStatus(id, status));
+				return new AsyncResult<String>(setUploadJobEndtimeStatus(bFile, status, Utils.ITEM_OUTCOME_ERROR));
 			}
 
 			log.info("begin to upload file " + fileName + " to box folder "
 					+ boxFolderId + " " + fileAccessUrl);
-
-			// mark the file as being processed
-			fRepository.setMigrationBoxFileStartTime(id, new Timestamp(System.currentTimeMillis()));
 			
-			// create httpclient
-			HttpClient httpClient = HttpClientBuilder.create().build();
+			// extend the claim before the potentially long content download
+			renewBoxFileLease(id);
+
 			InputStream content = null;
 
 			try {
-				// get file content from /access url
-				HttpGet getRequest = new HttpGet(fileAccessUrl);
-				getRequest.setConfig(getRequestConfigWithTimeouts());
-				getRequest.setHeader("Content-Type",
-						"application/x-www-form-urlencoded");
-				HttpResponse r = httpClient.execute(getRequest, httpContext);
+				// get file content from /access url, hedged if slow
+				HttpResponse r = contentFetcher.execute(fileAccessUrl, httpContext, getRequestConfigWithTimeouts());
+				int responseCode = r.getStatusLine().getStatusCode();
+				if (MigrationRetryPolicy.isRetryable(responseCode))
+				{
+					// CTools is overloaded or unavailable, the content would be an error page
+					status.append("Cannot get content for " + fileName + ", CTools responded with " + responseCode + ". ");
+					log.error(status.toString());
+					// return the connection into the pool
+					EntityUtils.consumeQuietly(r.getEntity());
+					return new AsyncResult<String>(retryBoxFile(bFile, responseCode, status));
+				}
 
 				content = r.getEntity().getContent();
 
 				if (Utils.isOfURLMIMEType(type)) {
+					// the link content is made up below, return the connection into the pool
+					EntityUtils.consumeQuietly(r.getEntity());
 					if (webLinkUrl == null || webLinkUrl.isEmpty())
 					{
 						status.append("Link "+ fileName + " could not be migrated due to empty URL link. ");
-						return new AsyncResult<String>(setUploadJobEndtimeStatus(id, status));
+						return new AsyncResult<String>(setUploadJobEndtimeStatus(bFile, status, Utils.ITEM_OUTCOME_ERROR));
 					}
 					try {
 						// special handling of Web Links resources
@@ -2323,7 +2493,7 @@ class MigrationTaskService {
 								+ fileName
 								+ " could not be migrated. Please change the link name to be the complete URL and migrate the site again.");
 						log.error(status.toString());
-						return new AsyncResult<String>(setUploadJobEndtimeStatus(id, status));
+						return new AsyncResult<String>(setUploadJobEndtimeStatus(bFile, status, Utils.ITEM_OUTCOME_ERROR));
 					}
 				}
 			} catch (Exception e) {
@@ -2331,9 +2501,14 @@ class MigrationTaskService {
 						+ e.getMessage());
 				log.error(status.toString());
 				
+				if (e instanceof IOException)
+				{
+					// timeouts and connection errors are transient
+					return new AsyncResult<String>(retryBoxFile(bFile, MigrationRetryPolicy.NO_RESPONSE, status));
+				}
 				// update job end time and status
 				// return AsyncResult
-				return new AsyncResult<String>(setUploadJobEndtimeStatus(id, status));
+				return new AsyncResult<String>(setUploadJobEndtimeStatus(bFile, status, Utils.ITEM_OUTCOME_ERROR));
 			}
 
 			// update file name
@@ -2351,26 +2526,57 @@ class MigrationTaskService {
 				
 				// update job end time and status
 				// return AsyncResult
-				return new AsyncResult<String>(setUploadJobEndtimeStatus(id, status));
+				return new AsyncResult<String>(setUploadJobEndtimeStatus(bFile, status, Utils.ITEM_OUTCOME_ERROR));
 			}
 
+			// whether the upload was aborted because the migration is paused or cancelled
+			boolean stopped = false;
+			// the error code of a transient failure, null if none
+			Integer retryErrorCode = null;
+			// whether the file made it into Box, and the outcome of a failed upload
+			boolean uploaded = false;
+			String outcome = null;
+			final String migrationId = bFile.getMigration_id();
 			BufferedInputStream bContent = null;
 			try {
 
+				if (controlStates.isStopped(migrationId))
+				{
+					throw new MigrationStoppedException(migrationId);
+				}
 				bContent = new BufferedInputStream(content);
 				BoxFolder folder = new BoxFolder(api, boxFolderId);
 				log.info("upload file " + fileName + " size " + fileSize + " to folder " + folder.getID());
 
 				fileName = Utils.sanitizeName(type, fileName);
+				final String fileId = id;
+				final long renewInterval = node.getLeaseRenewInterval();
+				// the last time the claim was renewed
+				final long[] lastRenewal = new long[] { System.currentTimeMillis() };
+				long uploadStartTime = System.currentTimeMillis();
 				BoxFile.Info newFileInfo = folder.uploadFile(bContent,
 						fileName, fileSize, new ProgressListener() {
 					public void onProgressChanged(long numBytes,
 							long totalBytes) {
 						log.debug(numBytes + " out of total bytes "
 								+ totalBytes);
+						// abort at this chunk, so that the threads go to other migrations right away
+						if (controlStates.isStopped(migrationId))
+						{
+							throw new MigrationStoppedException(migrationId);
+						}
+						// heartbeat: keep the claim alive while the upload makes progress
+						long now = System.currentTimeMillis();
+						if (now - lastRenewal[0] >= renewInterval)
+						{
+							lastRenewal[0] = now;
+							renewBoxFileLease(fileId);
+						}
 					}
 				});
-
+				// feed the upload latency into the Box concurrency limit
+				concurrencyController.recordBoxSuccess(System.currentTimeMillis() - uploadStartTime, fileSize);
+				uploaded = true;
 
 				BoxFile newFile = newFileInfo.getResource();
 				// set file description
@@ -2381,19 +2587,31 @@ class MigrationTaskService {
 						fileCopyrightAlert, newFile);
 
 				log.info("upload success for file " + fileName);
+			} catch (MigrationStoppedException e) {
+				log.info("upload of file " + fileName + " aborted, " + e.getMessage());
+				stopped = true;
 			} catch (BoxAPIException e) {
-				if (e.getResponseCode() == org.apache.http.HttpStatus.SC_UNAUTHORIZED)
+				// throttling and server errors lower the Box concurrency limit
+				if (!(e.getCause() instanceof MigrationStoppedException))
 				{
-					// 401 means Box access token expired
-					// log it, but do not change status, so this file still sits in pool
-					String errorString = "Box access token expired for user " + userId;
+					concurrencyController.recordBoxFailure(e.getResponseCode());
+				}
+				if (e.getCause() instanceof MigrationStoppedException)
+				{
+					// the abort surfaced wrapped by the Box SDK
+					log.info("upload of file " + fileName + " aborted, " + e.getCause().getMessage());
+					stopped = true;
+				}
+				else if (MigrationRetryPolicy.isRetryable(e.getResponseCode()))
+				{
+					// 401 means Box access token expired; 
+					// throttling, server errors and timeouts are transient as well
+					String errorString = e.getResponseCode() == org.apache.http.HttpStatus.SC_UNAUTHORIZED ? 
+							"Box access token expired for user " + userId : 
+							"There is a problem uploading file \"" + fileName + "\" to Box folder " + boxFolderId + ": " + e.getMessage();
 					log.error(errorString);
-					
-					// we will clean up start_time, end_time, and status for the file, 
-					// so that it would be picked up again for migration
-					fRepository.setMigrationBoxFileStartTime(id, null);
-					fRepository.setMigrationBoxFileEndTime(id, null);
-					fRepository.setMigrationBoxFileStatus(id, null);
+					status.append(errorString + Utils.LINE_BREAK);
+					retryErrorCode = e.getResponseCode();
 				}
 				else if (e.getResponseCode() == org.apache.http.HttpStatus.SC_CONFLICT) {
 					// 409 means name conflict - item already existed
@@ -2401,9 +2619,15 @@ class MigrationTaskService {
 							+ fileName + " - file was not added to Box";
 					log.error(conflictString);
 					status.append(conflictString + Utils.LINE_BREAK);
+					outcome = Utils.ITEM_OUTCOME_CONFLICT;
 				}
 				else
 				{
+					if (e.getResponseCode() == org.apache.http.HttpStatus.SC_REQUEST_TOO_LONG)
+					{
+						// 413 means the file is over the size limit of the Box account
+						outcome = Utils.ITEM_OUTCOME_TOO_LARGE;
+					}
 					String errorString = "There is a problem uploading file \"" + fileName
 							+ "\" to Box folder " + boxFolderId + ": " + e.getMessage();
 					log.error(this + errorString);
@@ -2446,14 +2670,33 @@ class MigrationTaskService {
 				}
 			}
 
+			if (stopped)
+			{
+				// back into the pool, the file is handed out again if the migration is resumed
+				fRepository.releaseMigrationBoxFile(id, node.getNodeId());
+				workSignal.signal();
+				return new AsyncResult<String>("Upload of file " + fileName + " stopped.");
+			}
+
+			if (retryErrorCode != null)
+			{
+				return new AsyncResult<String>(retryBoxFile(bFile, retryErrorCode, status));
+			}
+
 			// box upload success
 			if (status.length() == 0) {
 				status.append("Box upload successful for file " + fileName + ".");
+				outcome = Utils.ITEM_OUTCOME_OK;
+			}
+			else if (outcome == null)
+			{
+				// uploaded with problems setting the file name, description or metadata
+				outcome = uploaded ? Utils.ITEM_OUTCOME_PARTIAL : Utils.ITEM_OUTCOME_ERROR;
 			}
 			
 			// update job end time and status
 			// return AsyncResult
-			return new AsyncResult<String>(setUploadJobEndtimeStatus(id, status));
+			return new AsyncResult<String>(setUploadJobEndtimeStatus(bFile, status, outcome));
 		}
 
 		/**
@@ -2533,13 +2776,63 @@ class MigrationTaskService {
 	}
 
 	/**
-		 * update the status and end time for file item
-		 * @param id
+		 * update the status, outcome and end time for file item
+		 * @param bFile
+		 * @param status
+		 * @param outcome
+		 */
+		private String setUploadJobEndtimeStatus(MigrationBoxFile bFile, StringBuffer status, String outcome) {
+			String id = bFile.getId();
+			// written behind, in a batch with other items; the claim may have been released meanwhile, 
+			// e.g. when this node drained before shutdown, in which case the file sits in the pool again and the outcome is dropped
+			stateRecorder.recordBoxFileFinish(bFile.getMigration_id(), id, new java.sql.Timestamp(System.currentTimeMillis()), 
+					status.toString(), outcome, node.getNodeId());
+			// a processing slot is freed, wake up the processing thread
+			workSignal.signal();
+			return status.toString();
+		}
+
+		/**
+		 * return the file item into the pool after a transient error, to be retried after backoff;
+		 * give it up as failed after the max attempts
+		 * @param bFile
+		 * @param errorCode
 		 * @param status
+		 * @return
 		 */
-		private String setUploadJobEndtimeStatus(String id, StringBuffer status) {
-			fRepository.setMigrationBoxFileEndTime(id, new java.sql.Timestamp(System.currentTimeMillis()));
-			fRepository.setMigrationBoxFileStatus(id, status.toString());
+		private String retryBoxFile(MigrationBoxFile bFile, int errorCode, StringBuffer status) {
+			String id = bFile.getId();
+			int attempts = (bFile.getRetry_count() != null ? bFile.getRetry_count() : 0) + 1;
+			MigrationRetryPolicy retryPolicy = new MigrationRetryPolicy(
+					Utils.getLongProperty(env, Utils.RETRY_BASE_DELAY_PROP, Utils.RETRY_BASE_DELAY_MILLIS),
+					Utils.getLongProperty(env, Utils.RETRY_MAX_DELAY_PROP, Utils.RETRY_MAX_DELAY_MILLIS),
+					Utils.getIntProperty(env, Utils.RETRY_MAX_ATTEMPTS_PROP, Utils.RETRY_MAX_ATTEMPTS));
+			long now = System.currentTimeMillis();
+			if (retryPolicy.canRetry(attempts))
+			{
+				long nextAttemptTime = now + retryPolicy.getBackoffMillis(attempts, random.nextDouble());
+				if (fRepository.retryMigrationBoxFile(id, new Timestamp(nextAttemptTime), errorCode, node.getNodeId()) == 0)
+				{
+					log.warn("The claim on Box file item " + id + " is no longer held by node " + node.getNodeId() + ", retry not scheduled");
+				}
+				else
+				{
+					log.info("Box file item " + id + " failed with " + errorCode + " at attempt " + attempts 
+							+ ", retry at " + new Timestamp(nextAttemptTime));
+					workSignal.signalAt(nextAttemptTime);
+				}
+				// a processing slot is freed, wake up the processing thread
+				workSignal.signal();
+				return status.toString();
+			}
+			
+			// dead letter: stays failed with its last error
+			status.append("Gave up after " + attempts + " attempts.");
+			if (itemCounter.deadLetterBoxFile(bFile.getMigration_id(), id, new Timestamp(now), status.toString(), errorCode, node.getNodeId()) == 0)
+			{
+				log.warn("The claim on Box file item " + id + " is no longer held by node " + node.getNodeId() + ", status not recorded");
+			}
+			workSignal.signal();
 			return status.toString();
 		}
 
@@ -2840,7 +3133,19 @@ class MigrationTaskService {
 						String emailMessage = message.toString();
 						AttachmentHandler attachmentHandler = new AttachmentHandler(request);
 						attachmentHandler.setEnv(env);
+						attachmentHandler.setMemoryBudget(memoryBudget);
 						EmailFormatter emailFormatter = null;
+						// wait for room in the memory budget before formatting the message
+						long reservedBytes = memoryBudget.estimateMessageBytes(emailMessage);
+						try {
+							memoryBudget.reserve(reservedBytes);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							String msg = "Mbox zip file download interrupted";
+							allChannelMsgItems.put(errHandlingForZiparchive(messageId, msg));
+							log.error(msg + " for message: " + messageId);
+							break;
+						}
 						try {
 							emailFormatter = new EmailFormatter(emailMessage, attachmentHandler);
 							MailResultPair mboxFormatTextPlusStatus = emailFormatter.mboxFormat();
@@ -2859,6 +3164,8 @@ class MigrationTaskService {
 							allChannelMsgItems.put(errHandlingForZiparchive(messageId, msg));
 							log.error(msg + "for message: " + messageId + " " + e.getMessage());
 							continue;
+						} finally {
+							memoryBudget.release(reservedBytes + attachmentHandler.getBufferedBytes());
 						}
 					}
 
@@ -3126,6 +3433,22 @@ class MigrationTaskService {
 				String target, String remoteUser, HashMap<String, String> rv,
 				String googleGroupId, String siteId, String toolId,
 				HashMap<String, Object> saveMigration) {
+			try {
+				return queueEmailMessages(request, response, target, remoteUser, rv, 
+						googleGroupId, siteId, toolId, saveMigration);
+			} finally {
+				if (saveMigration.containsKey("migration")) {
+					// no more messages to come, the migration can be finalized once they finish
+					setMigrationQueued(((Migration) saveMigration.get("migration")).getMigration_id());
+				}
+			}
+		}
+
+		private HashMap<String, String> queueEmailMessages(
+				HttpServletRequest request, HttpServletResponse response,
+				String target, String remoteUser, HashMap<String, String> rv,
+				String googleGroupId, String siteId, String toolId,
+				HashMap<String, Object> saveMigration) {
 			if (!saveMigration.containsKey("migration")) {
 				// no new Migration record created
 				rv.put("errorMessage", "Cannot create migration records for user "
@@ -3161,6 +3484,9 @@ class MigrationTaskService {
 			}
 
 			JSONArray channels = channelsJSON.getJSONArray(Utils.JSON_ATTR_MAILARCHIVE_COLLECTION);
+			// messages are queued a chunk at a time
+			int enqueueChunk = Math.min(Utils.ENQUEUE_CHUNK_MAX, Utils.getIntProperty(env, Utils.ENQUEUE_CHUNK_PROP, Utils.ENQUEUE_CHUNK));
+			List<MigrationEmailMessage> pendingMessages = new ArrayList<MigrationEmailMessage>();
 			for (int iChannel = 0; iChannel < channels.length(); iChannel++) {
 				JSONObject channel = channels.getJSONObject(iChannel);
 				String channelId = channel.getString("data");
@@ -3181,19 +3507,70 @@ class MigrationTaskService {
 							remoteUser, googleGroupId,
 							message.toString(), null,
 							null, null);
+					mMessage.setPriority(migration.getPriority());
+					pendingMessages.add(mMessage);
+					if (pendingMessages.size() >= enqueueChunk)
+					{
+						enqueueMessages(migrationId, googleGroupId, pendingMessages);
+					}
+				}
+				// the rest of the channel
+				enqueueMessages(migrationId, googleGroupId, pendingMessages);
+			}
+			return rv;
+		}
+
+		/**
+		 * stamp the migration whose items have all been queued, and wake up the processing thread; 
+		 * until then the leader does not finalize it, even when the items queued so far have all finished
+		 * @param migrationId
+		 */
+		private void setMigrationQueued(String migrationId) {
+			try
+			{
+				migrationRepository.setMigrationQueuedTime(new Timestamp(System.currentTimeMillis()), migrationId);
+			}
+			catch (Exception e)
+			{
+				log.error("Problem marking the items of migration " + migrationId + " as all queued: " + e.getMessage());
+			}
+			workSignal.signal();
+		}
+
+		/**
+		 * save the message items in one batch, and wake up the processing thread;
+		 * if the batch fails, save them one by one, so that one bad message does not keep out the others
+		 * @param migrationId
+		 * @param googleGroupId
+		 * @param messages emptied afterwards
+		 */
+		private void enqueueMessages(String migrationId, String googleGroupId, List<MigrationEmailMessage> messages) {
+			if (messages.isEmpty())
+			{
+				return;
+			}
+			try
+			{
+				itemCounter.addMessages(migrationId, messages);
+			}
+			catch (Exception e)
+			{
+				log.error("Problem saving " + messages.size() + " MigrationEmailMessages in a batch, saving them one by one: " + e.getMessage());
+				for (MigrationEmailMessage mMessage : messages)
+				{
 					try
 					{
-						mRepository.save(mMessage);
+						itemCounter.addMessage(mMessage);
 					}
-					catch (Exception e)
+					catch (Exception ee)
 					{
-						log.error("Problem saving the MigrationEmailMessage " + messageId + " with GoogleGroupId " + googleGroupId + " into database ");
+						log.error("Problem saving the MigrationEmailMessage " + mMessage.getMessage_id() + " with GoogleGroupId " + googleGroupId + " into database ");
 					}
-
-
 				}
 			}
-			return rv;
+			messages.clear();
+			// wake up the processing thread
+			workSignal.signal();
 		}
 
 		/**
@@ -3529,15 +3906,15 @@ class MigrationTaskService {
 		/**
 		 * migrate email content to Group Group using microservice
 		 * @param message
+		 * @param reservedBytes the memory budget reserved for the message, released when done
 		 * @return
 		 */
-		@Async
-		protected Future<String> uploadMessageToGoogleGroup(MigrationEmailMessage message) {
+		@Async(MigrationExecutorConfig.GOOGLE_GROUPS_UPLOAD_EXECUTOR)
+		protected Future<String> uploadMessageToGoogleGroup(MigrationEmailMessage message, long reservedBytes) {
 
 			String googleGroupId = message.getGoogle_group_id();
 
 			String messageId = message.getMessage_id();
-			mRepository.setMigrationMessageStartTime(message.getMessage_id(), new Timestamp(System.currentTimeMillis()));
 			log.info("begin to upload message " + messageId  + " to Google Group id = " + googleGroupId);
 
 			// use EmailFormatter to get RFC822 complaint email content
@@ -3545,8 +3922,12 @@ class MigrationTaskService {
 			HttpServletRequest request = null;
 			AttachmentHandler attachmentHandler = new AttachmentHandler(request);
 			attachmentHandler.setEnv(env);
+			attachmentHandler.setDependencyLimiter(dependencyLimiter);
+			attachmentHandler.setMemoryBudget(memoryBudget);
 
 			String emailText;
+			// whether the message went back into the pool, instead of being uploaded
+			boolean stopped = false;
 			JSONObject statusObj=new JSONObject();
 			statusObj.put(Utils.REPORT_ATTR_ITEM_ID, messageId);
 
@@ -3558,13 +3939,33 @@ class MigrationTaskService {
 				MailResultPair emailTextPlusStatus = formatter.rfc822Format();
 				emailText = emailTextPlusStatus.getMessage();
 				statusObj = emailTextPlusStatus.getReport().getJsonReportObject();
-
-				if (emailText != null) {
+				if (emailText != null && controlStates.isStopped(message.getMigration_id())) {
+					// back into the pool, the message is handed out again if the migration is resumed
+					log.info("upload of message " + messageId + " skipped, migration " + message.getMigration_id() + " is paused or cancelled");
+					mRepository.releaseMigrationMessage(messageId, node.getNodeId());
+					stopped = true;
+				}
+				else if (emailText != null) {
 					// mark the file as being processed
+					// extend the claim, since formatting and attachment download may take long
+					renewMessageLease(messageId);
 
 					// process the message
-					ApiResultWrapper arw = addEmailToGoogleGroup(googleGroupId, emailText);
+					ApiResultWrapper arw = null;
+					long postStartTime = 0;
+					dependencyLimiter.acquire(MigrationDependencyLimiter.GOOGLE_GROUPS);
+					try
+					{
+						postStartTime = System.currentTimeMillis();
+						arw = addEmailToGoogleGroup(googleGroupId, emailText);
+					}
+					finally
+					{
+						dependencyLimiter.release(MigrationDependencyLimiter.GOOGLE_GROUPS);
+					}
 					int statusCode = arw.getStatus();
+					// feed the outcome into the Google Groups concurrency limit
+					concurrencyController.recordGoogleGroupsResult(statusCode, System.currentTimeMillis() - postStartTime);
 					// taking the success msg
 					String ggbResult = arw.getResult();
 					// Taking the error message
@@ -3592,6 +3993,10 @@ class MigrationTaskService {
 				String errorString = "IOException from EmailFormatter for message id " + messageId + " " + exception.getMessage();
 				log.error(errorString);
 				statusObj=errHandlingWhenExceptions(statusObj);
+			}catch (InterruptedException e){
+				Thread.currentThread().interrupt();
+				log.error("interrupted while waiting to upload message id " + messageId);
+				statusObj=errHandlingWhenExceptions(statusObj);
 			}catch (ParseException e){
 				String errorString = "ParseException while extracting response from GGB with message id " + messageId + " " + e.getMessage();
 				log.error(errorString);
@@ -3604,14 +4009,43 @@ class MigrationTaskService {
 			}
 
 			finally {
-				// update the status and end time for file item
-				mRepository.setMigrationMessageEndTime(messageId, new java.sql.Timestamp(System.currentTimeMillis()));
-				mRepository.setMigrationMessageStatus(messageId, statusObj.toString());
+				memoryBudget.release(reservedBytes + attachmentHandler.getBufferedBytes());
+				// update the status and end time for file item, written behind in a batch with other items
+				// the claim may have been released meanwhile, e.g. when this node drained before shutdown
+				if (!stopped)
+				{
+					stateRecorder.recordMessageFinish(message.getMigration_id(), messageId, new java.sql.Timestamp(System.currentTimeMillis()), 
+							statusObj.toString(), statusObj.optString(Utils.REPORT_ATTR_ITEM_STATUS, Utils.ITEM_OUTCOME_ERROR), node.getNodeId());
+				}
+				// a processing slot is freed, wake up the processing thread
+				workSignal.signal();
 			}
 			log.debug("uploadMessageToGoogleGroup: return");
 			return new AsyncResult<String>(statusObj.toString());
 		}
 
+	/**
+	 * extend the claim of the Box file item held by this node
+	 * @param id
+	 */
+	private void renewBoxFileLease(String id) {
+		if (fRepository.renewMigrationBoxFileLease(id, node.getNodeId(), node.getLeaseExpiry()) == 0)
+		{
+			log.warn("The claim on Box file item " + id + " is no longer held by node " + node.getNodeId());
+		}
+	}
+
+	/**
+	 * extend the claim of the email message held by this node
+	 * @param messageId
+	 */
+	private void renewMessageLease(String messageId) {
+		if (mRepository.renewMigrationMessageLease(messageId, node.getNodeId(), node.getLeaseExpiry()) == 0)
+		{
+			log.warn("The claim on message " + messageId + " is no longer held by node " + node.getNodeId());
+		}
+	}
+
 	private JSONObject errHandlingWhenExceptions(JSONObject statusObj) {
 		statusObj.put(Utils.REPORT_ATTR_ITEM_STATUS, Utils.REPORT_STATUS_ERROR);
 		statusObj.put(Utils.REPORT_ATTR_MESSAGE, "Failure to migrate message to Google Groups");
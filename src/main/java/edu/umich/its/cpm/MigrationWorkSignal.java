@@ -0,0 +1,77 @@
+package edu.umich.its.cpm;
+
+import org.springframework.stereotype.Component;
+
+/**
+ * wake-up signal for the migration processing thread
+ *
+ * producers (enqueuing Box files or email messages, queuing bulk site ids,
+ * finishing an item migration) call signal(); the processing thread waits in
+ * await() until it is signalled or the timeout elapses. Multiple signals
+ * raised while the processing thread is busy are coalesced into one wake-up.
+ * Work that becomes due later, e.g. an item retried after backoff, is
+ * signalled at its due time with signalAt().
+ *
+ */
+@Component
+class MigrationWorkSignal {
+
+	private final Object lock = new Object();
+
+	// whether there is new work since the last wake-up
+	private boolean signalled = false;
+
+	// the earliest time work becomes due, Long.MAX_VALUE for none
+	private long dueTime = Long.MAX_VALUE;
+
+	/**
+	 * notify the processing thread that there is new work, or a free slot
+	 */
+	public void signal() {
+		synchronized (lock) {
+			signalled = true;
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * notify the processing thread once the given time is reached
+	 * @param timeMillis
+	 */
+	public void signalAt(long timeMillis) {
+		synchronized (lock) {
+			if (timeMillis < dueTime) {
+				dueTime = timeMillis;
+				lock.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * wait until signalled, or the timeout elapses
+	 * @param timeoutMillis
+	 * @return true if woken up by signal, false if the timeout elapsed
+	 * @throws InterruptedException
+	 */
+	public boolean await(long timeoutMillis) throws InterruptedException {
+		synchronized (lock) {
+			long deadline = System.currentTimeMillis() + timeoutMillis;
+			long remaining = timeoutMillis;
+			while (!signalled && remaining > 0) {
+				long now = System.currentTimeMillis();
+				if (now >= dueTime) {
+					// work became due
+					signalled = true;
+					dueTime = Long.MAX_VALUE;
+					break;
+				}
+				lock.wait(Math.min(remaining, dueTime - now));
+				remaining = deadline - System.currentTimeMillis();
+			}
+			boolean rv = signalled;
+			// reset the flag; signals raised from now on trigger the next wake-up
+			signalled = false;
+			return rv;
+		}
+	}
+}
@@ -0,0 +1,159 @@
+package edu.umich.its.cpm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * orders pending migration items by the remaining work of their migration
+ *
+ * With the shortest-remaining-work-first policy, the migration closest to
+ * completion is served first, which keeps the mean completion time across
+ * users low. A migration that has waited longer than the max wait since it
+ * was last served is aged ahead of all others, longest waiting first, so that
+ * a large migration is not starved by a stream of small ones.
+ *
+ * Items of the interactive lane are still placed before items of the bulk
+ * lane, and the incoming order is kept within each migration. Without
+ * remaining work, order(candidates) falls back to the fair interleaving of
+ * MigrationItemScheduler.
+ *
+ * @param <T> the migration item type
+ */
+public class ShortestRemainingWorkScheduler<T> extends MigrationItemScheduler<T> {
+
+	private final ItemKey<T> key;
+
+	// how long a migration may wait before it is served ahead of smaller ones
+	private final long maxWaitMillis;
+
+	// the time since when each pending migration waits, i.e. its last dispatch or when it was first seen
+	private Map<String, Long> waitingSince = new HashMap<String, Long>();
+
+	public ShortestRemainingWorkScheduler(ItemKey<T> key, long maxWaitMillis) {
+		super(key);
+		this.key = key;
+		this.maxWaitMillis = maxWaitMillis;
+	}
+
+	/**
+	 * order the candidate items, migrations with the least remaining work first, interactive lane first
+	 * @param candidates items in their preferred order within each migration
+	 * @param remainingWork the remaining work of each migration, in bytes or items;
+	 * migrations without entry are placed last
+	 * @return the items in dispatch order
+	 */
+	public synchronized List<T> order(List<T> candidates, Map<String, Long> remainingWork) {
+		long now = currentTimeMillis();
+		// group the candidates by lane, then by migration, keeping the order within each migration
+		LinkedHashMap<String, List<T>> interactive = new LinkedHashMap<String, List<T>>();
+		LinkedHashMap<String, List<T>> bulk = new LinkedHashMap<String, List<T>>();
+		for (T item : candidates)
+		{
+			String migrationId = nullToEmpty(key.getMigrationId(item));
+			LinkedHashMap<String, List<T>> lane = Utils.PRIORITY_BULK.equals(key.getPriority(item)) ? bulk : interactive;
+			List<T> items = lane.get(migrationId);
+			if (items == null)
+			{
+				items = new ArrayList<T>();
+				lane.put(migrationId, items);
+			}
+			items.add(item);
+		}
+
+		// forget migrations without pending items, start the wait of newly seen ones
+		Map<String, Long> pending = new HashMap<String, Long>();
+		for (String migrationId : interactive.keySet())
+		{
+			pending.put(migrationId, waitingSince.containsKey(migrationId) ? waitingSince.get(migrationId) : now);
+		}
+		for (String migrationId : bulk.keySet())
+		{
+			pending.put(migrationId, waitingSince.containsKey(migrationId) ? waitingSince.get(migrationId) : now);
+		}
+		waitingSince = pending;
+
+		List<T> rv = new ArrayList<T>(candidates.size());
+		rv.addAll(concat(interactive, remainingWork, now));
+		rv.addAll(concat(bulk, remainingWork, now));
+		return rv;
+	}
+
+	/**
+	 * @param migrationItems
+	 * @param remainingWork
+	 * @param now
+	 * @return the items of the sorted migrations, one migration after the other
+	 */
+	private List<T> concat(final Map<String, List<T>> migrationItems, final Map<String, Long> remainingWork, final long now) {
+		List<String> migrationIds = new ArrayList<String>(migrationItems.keySet());
+		Collections.sort(migrationIds, new Comparator<String>() {
+			public int compare(String m1, String m2) {
+				long wait1 = now - waitingSince.get(m1);
+				long wait2 = now - waitingSince.get(m2);
+				boolean starved1 = wait1 >= maxWaitMillis;
+				boolean starved2 = wait2 >= maxWaitMillis;
+				if (starved1 != starved2)
+				{
+					return starved1 ? -1 : 1;
+				}
+				if (starved1)
+				{
+					// longest waiting first
+					return compareLong(wait2, wait1, m1, m2);
+				}
+				return compareLong(getRemainingWork(remainingWork, m1), getRemainingWork(remainingWork, m2), m1, m2);
+			}
+		});
+		List<T> rv = new ArrayList<T>();
+		for (String migrationId : migrationIds)
+		{
+			rv.addAll(migrationItems.get(migrationId));
+		}
+		return rv;
+	}
+
+	/**
+	 * record the item as dispatched; the wait of its migration starts again
+	 * @param item
+	 */
+	@Override
+	public synchronized void served(T item) {
+		super.served(item);
+		String migrationId = nullToEmpty(key.getMigrationId(item));
+		// only migrations ordered by remaining work are tracked
+		if (waitingSince.containsKey(migrationId))
+		{
+			waitingSince.put(migrationId, currentTimeMillis());
+		}
+	}
+
+	/**
+	 * overridden by tests
+	 * @return
+	 */
+	protected long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+	private static long getRemainingWork(Map<String, Long> remainingWork, String migrationId) {
+		Long work = remainingWork.get(migrationId);
+		return work != null ? work : Long.MAX_VALUE;
+	}
+
+	private static int compareLong(long l1, long l2, String m1, String m2) {
+		if (l1 != l2)
+		{
+			return l1 < l2 ? -1 : 1;
+		}
+		return m1.compareTo(m2);
+	}
+
+	private static String nullToEmpty(String s) {
+		return s == null ? "" : s;
+	}
+}
@@ -27,6 +27,27 @@ class StatusEndpoint implements Endpoint<String>, ServletContextAware{
 	@Autowired
 	private Environment env;
 	
+	@Autowired
+	private MigrationConcurrencyController concurrencyController;
+	
+	@Autowired
+	private MigrationInstanceService migrationInstanceService;
+	
+	@Autowired
+	private MigrationLeaderElection leaderElection;
+	
+	@Autowired
+	private CToolsContentFetcher contentFetcher;
+	
+	@Autowired
+	private MigrationMemoryBudget memoryBudget;
+	
+	@Autowired
+	private MigrationStateRecorder stateRecorder;
+	
+	@Autowired
+	private MigrationItemArchiver itemArchiver;
+	
 	public String getId() {
 		return Utils.REPORT_ATTR_STATUS;
 	}
@@ -81,6 +102,20 @@ class StatusEndpoint implements Endpoint<String>, ServletContextAware{
 			urlMap.put("CTools ping", env.getProperty(Utils.SERVER_URL)+"/"+Utils.STATUS_DEPENDENCIES_CTOOLS);
 			urlMap.put("Box ping", env.getProperty(Utils.SERVER_URL)+"/"+Utils.STATUS_DEPENDENCIES_BOX);
 			statusMap.put("urls", urlMap);
+			
+			// current in-flight limits of the upload destinations
+			statusMap.put("concurrency", concurrencyController.getStatus());
+			// whether this instance is draining ahead of shutdown
+			statusMap.put("drain", migrationInstanceService.getDrainStatus());
+			// whether this instance runs the cluster-wide processing duties
+			statusMap.put("leader", leaderElection.getStatus());
+			// how often slow CTools content requests are hedged
+			statusMap.put("hedging", contentFetcher.getStatus());
+			// message content held in memory by this instance
+			statusMap.put("memory", memoryBudget.getStatus());
+			statusMap.put("stateRecorder", stateRecorder.getStatus());
+			// items of finished migrations moved to the history tables
+			statusMap.put("archive", itemArchiver.getStatus());
 			rv = (new JSONObject(statusMap)).toString();
 			
 		} catch (Throwable e) {
@@ -37,8 +37,12 @@ import javax.servlet.http.HttpServletRequest;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URLDecoder;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -161,9 +165,19 @@ class Utils {
 	public static final String REPORT_STATUS_OK = "OK";
 	public static final String REPORT_STATUS_PARTIAL = "PARTIAL";
 	public static final String REPORT_STATUS_ERROR = "ERROR";
+	public static final String REPORT_STATUS_CANCELLED = "CANCELLED";
+	public static final String REPORT_ATTR_COUNTS_CANCELLED = "cancelled";
 	public static final String REPORT_ATTR_COUNT_PARTIALS = "partial_successes";
 	public static final String REPORT_ATTR_ID = "id";
 	public static final String REPORT_ATTR_ROLE = "role";
+	// outcome code of a finished Box file or message item, next to its status text
+	public static final String ITEM_OUTCOME_OK = "OK";
+	public static final String ITEM_OUTCOME_PARTIAL = "PARTIAL";
+	public static final String ITEM_OUTCOME_ERROR = "ERROR";
+	public static final String ITEM_OUTCOME_CONFLICT = "CONFLICT";
+	public static final String ITEM_OUTCOME_TOO_LARGE = "TOO_LARGE";
+	public static final String ITEM_OUTCOME_RETRIES_EXHAUSTED = "RETRIES_EXHAUSTED";
+	public static final String ITEM_OUTCOME_ABANDONED = "ABANDONED";
 	public static final String HAS_CONTENT_ITEM = "hasContentItem";
 	public static final String FILE_EXTENSION_BIN = "bin";
 	public static final String JSON_ATTR_MAIL_SUBJECT = "subject";
@@ -204,6 +218,161 @@ class Utils {
 	public static final String MAX_PARALLEL_THREADS_PROP = "max_parallel_threads_prop";
 	public static final int MAX_PARALLEL_THREADS_NUM = 20;
 
+	// the processing thread wakes up when new work is signalled;
+	// the sweep interval is the longest it waits without a signal, as a safety net
+	public static final String DISPATCHER_SWEEP_INTERVAL_PROP = "migration.dispatcher.sweep.interval";
+	public static final long DISPATCHER_SWEEP_INTERVAL_MILLIS = 60000L;
+	// the minimum gap between two processing passes, so that bursts of signals are coalesced
+	public static final String DISPATCHER_MIN_INTERVAL_PROP = "migration.dispatcher.min.interval";
+	public static final long DISPATCHER_MIN_INTERVAL_MILLIS = 250L;
+
+	// the id of this instance, recorded as owner of claimed migration items; defaults to host name
+	public static final String NODE_ID_PROP = "migration.node.id";
+	// how long a claimed migration item is reserved for the claiming instance
+	public static final String CLAIM_LEASE_DURATION_PROP = "migration.claim.lease.seconds";
+	public static final long CLAIM_LEASE_DURATION_SECONDS = 300L;
+	// how often claims with expired lease are returned to the pool
+	public static final String CLAIM_REAPER_INTERVAL_PROP = "migration.claim.reaper.interval";
+	public static final long CLAIM_REAPER_INTERVAL_MILLIS = 60000L;
+	// an item whose claim expired this many times is marked as failed, instead of returned to the pool
+	public static final String CLAIM_MAX_ATTEMPTS_PROP = "migration.claim.max.attempts";
+	public static final int CLAIM_MAX_ATTEMPTS = 3;
+	// Box file items failing with a transient error are retried with exponential backoff,
+	// from the base delay up to the max delay, and given up after the max attempts, 
+	// counted apart from the expired claims
+	public static final String RETRY_BASE_DELAY_PROP = "migration.retry.base.delay";
+	public static final long RETRY_BASE_DELAY_MILLIS = 30000L;
+	public static final String RETRY_MAX_DELAY_PROP = "migration.retry.max.delay";
+	public static final long RETRY_MAX_DELAY_MILLIS = 1800000L;
+	public static final String RETRY_MAX_ATTEMPTS_PROP = "migration.retry.max.attempts";
+	public static final int RETRY_MAX_ATTEMPTS = 5;
+	// CTools content requests without response after the p95 latency of recent requests are hedged
+	// with a second request, up to the max percent of requests; 0 disables hedging
+	public static final String HEDGE_MAX_PERCENT_PROP = "migration.hedge.max.percent";
+	public static final int HEDGE_MAX_PERCENT = 5;
+	public static final String HEDGE_MIN_DELAY_PROP = "migration.hedge.min.delay";
+	public static final long HEDGE_MIN_DELAY_MILLIS = 200L;
+	public static final int HEDGE_WINDOW_SIZE = 500;
+	public static final int HEDGE_MIN_SAMPLES = 50;
+	public static final double HEDGE_PERCENTILE = 95;
+	// bytes of message content all Google Groups uploads and mbox downloads of this instance may hold in memory,
+	// defaults to a quarter of the max heap; each message reserves its json plus the expected attachment bytes
+	public static final String MEMORY_BUDGET_PROP = "migration.memory.budget.bytes";
+	public static final String MEMORY_MESSAGE_ATTACHMENT_BYTES_PROP = "migration.memory.message.attachment.bytes";
+	public static final long MEMORY_MESSAGE_ATTACHMENT_BYTES = 1048576L;
+	// how long the leader lease lasts without renewal; another instance takes over the leader duties after that
+	public static final String LEADER_LEASE_DURATION_PROP = "migration.leader.lease.seconds";
+	public static final long LEADER_LEASE_DURATION_SECONDS = 15L;
+	// how long a draining instance waits for its running item migrations, before returning them to the pool
+	public static final String DRAIN_TIMEOUT_PROP = "migration.drain.timeout";
+	public static final long DRAIN_TIMEOUT_MILLIS = 300000L;
+
+	// Box files split into size classes, each with its own concurrency limit, e.g. "10M:16,1G:4,*:1";
+	// unset for a single class
+	public static final String BOX_SIZE_CLASSES_PROP = "migration.box.size.classes";
+
+	// finished items are recorded in batches: once a batch is full, or its oldest item waited the interval;
+	// an interval of 0 records each item right away. Keep the interval well below the claim lease duration
+	public static final String STATE_FLUSH_INTERVAL_PROP = "migration.state.flush.interval";
+	public static final long STATE_FLUSH_INTERVAL_MILLIS = 1000L;
+	public static final String STATE_FLUSH_BATCH_PROP = "migration.state.flush.batch";
+	public static final int STATE_FLUSH_BATCH = 100;
+	// batches held back at most; once full, an item is written by the thread finishing it
+	public static final int STATE_FLUSH_QUEUED_BATCHES = 10;
+
+	// Box file and message items found while walking a site are inserted this many at a time;
+	// at most 1000, the ids of a chunk are looked up in one in-list
+	public static final String ENQUEUE_CHUNK_PROP = "migration.enqueue.chunk";
+	public static final int ENQUEUE_CHUNK = 500;
+	public static final int ENQUEUE_CHUNK_MAX = 1000;
+
+	// the items of migrations finished longer than the archive age ago are moved to the history tables,
+	// up to a batch of migrations every interval, by the leader; an interval of 0 disables archiving
+	public static final String ARCHIVE_INTERVAL_PROP = "migration.archive.interval";
+	public static final long ARCHIVE_INTERVAL_MILLIS = 3600000L;
+	public static final String ARCHIVE_AFTER_PROP = "migration.archive.after";
+	public static final long ARCHIVE_AFTER_MILLIS = 7L * 24 * 3600000L;
+	public static final String ARCHIVE_BATCH_PROP = "migration.archive.batch";
+	public static final int ARCHIVE_BATCH = 50;
+
+	// failed items read at a time when the report of a finished migration is put together
+	public static final int REPORT_ITEMS_PAGE_SIZE = 500;
+
+	// priority lanes of migrations and their items:
+	// migrations started by site owners are interactive, migrations queued by bulk upload are bulk
+	public static final String PRIORITY_INTERACTIVE = "interactive";
+	public static final String PRIORITY_BULK = "bulk";
+	// percentage of processing threads reserved for the interactive lane; bulk work cannot use those
+	public static final String PRIORITY_INTERACTIVE_SHARE_PROP = "migration.priority.interactive.share";
+	public static final int PRIORITY_INTERACTIVE_SHARE_PERCENT = 25;
+
+	// how pending items are ordered: "fair" interleaves users and migrations,
+	// "srwf" serves the migrations with the least remaining work first
+	public static final String SCHEDULER_POLICY_PROP = "migration.scheduler.policy";
+	public static final String SCHEDULER_POLICY_FAIR = "fair";
+	public static final String SCHEDULER_POLICY_SRWF = "srwf";
+	// with the srwf policy, a migration waiting longer than this is served ahead of smaller ones
+	public static final String SCHEDULER_SRWF_MAX_WAIT_PROP = "migration.scheduler.srwf.max.wait";
+	public static final long SCHEDULER_SRWF_MAX_WAIT_MILLIS = 600000L;
+	// the period of finished items the destination throughput for the migration ETA is measured over
+	public static final String ETA_THROUGHPUT_WINDOW_PROP = "migration.eta.throughput.window";
+	public static final long ETA_THROUGHPUT_WINDOW_MILLIS = 900000L;
+	// how long the remaining work and throughput read for scheduling and the migration ETA are reused
+	public static final String ETA_CACHE_PROP = "migration.eta.cache";
+	public static final long ETA_CACHE_MILLIS = 5000L;
+
+	// control states of a migration; a running migration has none.
+	// Items of paused or cancelled migrations are not handed out, and their running uploads are aborted
+	public static final String MIGRATION_STATE_PAUSED = "paused";
+	public static final String MIGRATION_STATE_CANCELLED = "cancelled";
+
+	// default schedule of bulk migrations without their own: comma separated HH:mm-HH:mm time windows,
+	// the most items in flight and the most bytes per second per bulk migration and instance; unset for no limit
+	public static final String BULK_SCHEDULE_WINDOWS_PROP = "migration.bulk.schedule.windows";
+	public static final String BULK_SCHEDULE_MAX_ITEMS_PROP = "migration.bulk.schedule.max.items";
+	public static final String BULK_SCHEDULE_MAX_BYTES_PROP = "migration.bulk.schedule.max.bytes.per.second";
+
+	// run Box and Google Groups uploads on virtual threads, when the JDK supports them
+	public static final String VIRTUAL_THREADS_PROP = "migration.executor.virtual.threads";
+	// in virtual thread mode, the most uploads in flight per destination
+	public static final String VIRTUAL_THREADS_BOX_CAPACITY_PROP = "migration.executor.virtual.box.capacity";
+	public static final String VIRTUAL_THREADS_GOOGLE_GROUPS_CAPACITY_PROP = "migration.executor.virtual.googlegroups.capacity";
+	public static final int VIRTUAL_THREADS_CAPACITY = 1000;
+	// concurrent calls allowed against each dependency, 0 for no limit;
+	// defaults to no limit with thread pools, and to DEPENDENCY_VIRTUAL_THREADS_PERMITS with virtual threads
+	public static final String DEPENDENCY_PERMITS_PROP_PREFIX = "migration.dependency.";
+	public static final String DEPENDENCY_PERMITS_PROP_SUFFIX = ".permits";
+	public static final int DEPENDENCY_VIRTUAL_THREADS_PERMITS = 200;
+
+	// adaptive in-flight limits of Box and Google Groups uploads;
+	// the upper bound is the executor pool size, the limit starts there unless configured otherwise
+	public static final String CONCURRENCY_BOX_MIN_PROP = "migration.concurrency.box.min";
+	public static final String CONCURRENCY_BOX_INITIAL_PROP = "migration.concurrency.box.initial";
+	// Box upload latency threshold is per MB of file size
+	public static final String CONCURRENCY_BOX_LATENCY_THRESHOLD_PROP = "migration.concurrency.box.latency.threshold";
+	public static final long CONCURRENCY_BOX_LATENCY_THRESHOLD_MILLIS = 20000L;
+	public static final String CONCURRENCY_GOOGLE_GROUPS_MIN_PROP = "migration.concurrency.googlegroups.min";
+	public static final String CONCURRENCY_GOOGLE_GROUPS_INITIAL_PROP = "migration.concurrency.googlegroups.initial";
+	public static final String CONCURRENCY_GOOGLE_GROUPS_LATENCY_THRESHOLD_PROP = "migration.concurrency.googlegroups.latency.threshold";
+	public static final long CONCURRENCY_GOOGLE_GROUPS_LATENCY_THRESHOLD_MILLIS = 30000L;
+	// percentage the limit is cut to on overload
+	public static final String CONCURRENCY_BACKOFF_PERCENT_PROP = "migration.concurrency.backoff.percent";
+	public static final int CONCURRENCY_BACKOFF_PERCENT = 50;
+	// minimum time between two cuts of the limit
+	public static final String CONCURRENCY_COOLDOWN_PROP = "migration.concurrency.cooldown";
+	public static final long CONCURRENCY_COOLDOWN_MILLIS = 10000L;
+	// HTTP status for throttled requests
+	public static final int HTTP_STATUS_TOO_MANY_REQUESTS = 429;
+
+	// thread pool sizes and queue capacities of the migration executors;
+	// upload pools default to MAX_PARALLEL_THREADS_PROP, bulk preparation pool to one thread
+	public static final String BOX_EXECUTOR_POOL_SIZE_PROP = "migration.executor.box.pool.size";
+	public static final String BOX_EXECUTOR_QUEUE_CAPACITY_PROP = "migration.executor.box.queue.capacity";
+	public static final String GOOGLE_GROUPS_EXECUTOR_POOL_SIZE_PROP = "migration.executor.googlegroups.pool.size";
+	public static final String GOOGLE_GROUPS_EXECUTOR_QUEUE_CAPACITY_PROP = "migration.executor.googlegroups.queue.capacity";
+	public static final String BULK_EXECUTOR_POOL_SIZE_PROP = "migration.executor.bulk.pool.size";
+	public static final String BULK_EXECUTOR_QUEUE_CAPACITY_PROP = "migration.executor.bulk.queue.capacity";
+
 	// Google connection property names
 	public static final String GGB_SERVER_NAME = "ggb.server";
 	public static final String GGB_GOOGLE_GROUP_DOMAIN = "ggb.google.group.domain";
@@ -440,6 +609,33 @@ class Utils {
 
 	}
 
+	/**
+	 * the owners of a migration, from its comma separated migrated_by field, as login ids:
+	 * addresses in the default email domain are stripped of it, other addresses are kept
+	 * @param migratedBy
+	 * @return the distinct owner ids, in the order listed
+	 */
+	public static List<String> getMigrationOwnerIds(String migratedBy) {
+		Set<String> rv = new LinkedHashSet<String>();
+		if (migratedBy != null)
+		{
+			String defaultSuffix = EMAIL_AT + DEFAULT_EMAIL_MEMBER_SUFFIX;
+			for (String owner : migratedBy.split(","))
+			{
+				owner = owner.trim();
+				if (owner.toLowerCase().endsWith(defaultSuffix))
+				{
+					owner = owner.substring(0, owner.length() - defaultSuffix.length());
+				}
+				if (owner.length() > 0)
+				{
+					rv.add(owner);
+				}
+			}
+		}
+		return new ArrayList<String>(rv);
+	}
+
 	/*
 	 * check whether the current user is in cpm admin MCommunity group based on
 	 * ldap group membership
@@ -957,6 +1153,63 @@ class Utils {
         return (new JSONObject(statusMap)).toString();
     }
 
+	/**
+	 * return the integer value of property setting, or the default value if not set or not valid
+	 * @param env
+	 * @param propertyName
+	 * @param defaultValue
+	 * @return
+	 */
+	public static int getIntProperty(Environment env, String propertyName, int defaultValue)
+	{
+		String value = env.getProperty(propertyName);
+		if (value != null)
+		{
+			try
+			{
+				return Integer.parseInt(value.trim());
+			}
+			catch (NumberFormatException e)
+			{
+				log.error(propertyName + " property should have integer value: " + value);
+			}
+		}
+		return defaultValue;
+	}
+
+	/**
+	 * @param bulkMigrationId
+	 * @return the priority lane of a migration, bulk if it is part of a bulk migration
+	 */
+	public static String getMigrationPriority(String bulkMigrationId)
+	{
+		return bulkMigrationId != null ? PRIORITY_BULK : PRIORITY_INTERACTIVE;
+	}
+
+	/**
+	 * return the long value of property setting, or the default value if not set or not valid
+	 * @param env
+	 * @param propertyName
+	 * @param defaultValue
+	 * @return
+	 */
+	public static long getLongProperty(Environment env, String propertyName, long defaultValue)
+	{
+		String value = env.getProperty(propertyName);
+		if (value != null)
+		{
+			try
+			{
+				return Long.parseLong(value.trim());
+			}
+			catch (NumberFormatException e)
+			{
+				log.error(propertyName + " property should have long value: " + value);
+			}
+		}
+		return defaultValue;
+	}
+
 	// max length for valid zip entry name
 	public static String ZIP_ENTRY_NAME_MAX_LENGTH_NAME = "zip_entry_name_max_length_name";
 	// default value for max length for valid zip entry name
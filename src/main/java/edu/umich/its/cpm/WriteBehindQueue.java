@@ -0,0 +1,130 @@
+package edu.umich.its.cpm;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * entries held back to be written in one batch
+ *
+ * An entry is due once it has waited the max delay; the whole queue is due
+ * once it holds a batch. drain() hands out the oldest entries first, and
+ * requeue() puts back a batch that could not be written, ahead of newer
+ * entries, so that the order of writes is kept, and holds the queue back
+ * for a backoff that doubles with each failure in a row, from the max
+ * delay up to a minute, so that an outage is not retried in a busy loop.
+ * The queue holds up to a capacity; once full, the caller writes its
+ * entry itself instead of adding it.
+ *
+ */
+public class WriteBehindQueue<T> {
+
+	private final int batchSize;
+
+	private final long maxDelayMillis;
+
+	private final int capacity;
+
+	private static final long MAX_BACKOFF_MILLIS = 60000L;
+
+	// failed writes in a row, and the time the queue is held back till
+	private int failures = 0;
+
+	private long retryTime = 0L;
+
+	private final LinkedList<T> entries = new LinkedList<T>();
+
+	// the time each entry was added, in the same order
+	private final LinkedList<Long> addedTimes = new LinkedList<Long>();
+
+	public WriteBehindQueue(int batchSize, long maxDelayMillis, int capacity) {
+		this.batchSize = Math.max(1, batchSize);
+		this.maxDelayMillis = Math.max(0L, maxDelayMillis);
+		this.capacity = Math.max(this.batchSize, capacity);
+	}
+
+	/**
+	 * @return true if no entry can be added
+	 */
+	public synchronized boolean isFull() {
+		return entries.size() >= capacity;
+	}
+
+	/**
+	 * @param entry
+	 * @param now
+	 * @return true if a whole batch is waiting
+	 */
+	public synchronized boolean add(T entry, long now) {
+		entries.addLast(entry);
+		addedTimes.addLast(now);
+		return entries.size() >= batchSize;
+	}
+
+	/**
+	 * put back entries that could not be written, ahead of the others, 
+	 * and hold the queue back for the backoff
+	 * @param batch
+	 * @param now
+	 */
+	public synchronized void requeue(List<T> batch, long now) {
+		for (int i = batch.size() - 1; i >= 0; i--)
+		{
+			entries.addFirst(batch.get(i));
+			addedTimes.addFirst(now);
+		}
+		long backoff = Math.max(100L, maxDelayMillis) << Math.min(failures, 10);
+		failures++;
+		retryTime = now + Math.min(backoff, MAX_BACKOFF_MILLIS);
+	}
+
+	/**
+	 * a batch was written: no more backoff
+	 */
+	public synchronized void written() {
+		failures = 0;
+		retryTime = 0L;
+	}
+
+	/**
+	 * @param now
+	 * @return milliseconds till the next batch is due, 0 if due now, -1 if there is nothing to write
+	 */
+	public synchronized long getFlushDelay(long now) {
+		if (entries.isEmpty())
+		{
+			return -1L;
+		}
+		if (now < retryTime)
+		{
+			return retryTime - now;
+		}
+		if (entries.size() >= batchSize)
+		{
+			return 0L;
+		}
+		return Math.max(0L, addedTimes.getFirst() + maxDelayMillis - now);
+	}
+
+	/**
+	 * take out the oldest entries, up to a batch
+	 * @return
+	 */
+	public synchronized List<T> drain() {
+		List<T> rv = new ArrayList<T>(Math.min(batchSize, entries.size()));
+		while (!entries.isEmpty() && rv.size() < batchSize)
+		{
+			rv.add(entries.removeFirst());
+			addedTimes.removeFirst();
+		}
+		return rv;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+}
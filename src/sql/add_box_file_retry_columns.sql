@@ -0,0 +1,7 @@
+-- upgrade existing CPM databases for retrying Box file items with backoff
+-- a file returned to the pool after a retryable error waits till next_attempt_time;
+-- last_error_code is the HTTP status of the last retryable error, 0 for no response
+
+alter table migration_box_file add (
+next_attempt_time TIMESTAMP,
+last_error_code NUMBER(10));
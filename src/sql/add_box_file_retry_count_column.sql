@@ -0,0 +1,18 @@
+-- upgrade existing CPM databases for counting the retries of Box file items apart from their expired claims
+-- retry_count is the number of retryable errors, limited by migration.retry.max.attempts;
+-- attempt_count keeps the number of expired claims, limited by migration.claim.max.attempts
+-- run after add_migration_item_history_tables.sql
+
+alter table migration_box_file add (retry_count NUMBER(10) DEFAULT 0);
+alter table migration_box_file_history add (retry_count NUMBER(10) DEFAULT 0);
+
+create or replace view migration_box_file_all as
+select id, migration_id, user_id, box_folder_id, type, title, web_link_url, file_access_url, description, author,
+copyright_alert, file_size, start_time, end_time, status, outcome, owner_node, lease_expiry, attempt_count,
+next_attempt_time, last_error_code, retry_count, priority
+from migration_box_file
+union all
+select id, migration_id, user_id, box_folder_id, type, title, web_link_url, file_access_url, description, author,
+copyright_alert, file_size, start_time, end_time, status, outcome, owner_node, lease_expiry, attempt_count,
+next_attempt_time, last_error_code, retry_count, priority
+from migration_box_file_history;
@@ -0,0 +1,9 @@
+-- upgrade existing CPM databases for bulk migration schedules
+-- time windows, items in flight and bytes per second of each bulk migration
+
+create table bulk_migration_schedule (
+bulk_migration_id VARCHAR(99) NOT NULL,
+time_windows VARCHAR(2000),
+max_concurrent_items NUMBER(10) DEFAULT 0,
+max_bytes_per_second NUMBER(19) DEFAULT 0,
+PRIMARY KEY (bulk_migration_id));
@@ -0,0 +1,24 @@
+-- upgrade existing CPM databases for structured item outcome codes
+-- outcome is OK, PARTIAL, ERROR, CONFLICT, TOO_LARGE, RETRIES_EXHAUSTED or ABANDONED;
+-- the status column keeps the text shown to users
+
+alter table migration_box_file add (outcome VARCHAR(20));
+alter table migration_email_message add (outcome VARCHAR(20));
+
+create index migration_box_file_outcome on migration_box_file (migration_id, outcome);
+create index migration_email_message_outcome on migration_email_message (migration_id, outcome);
+
+-- backfill the outcome of finished items from their status
+update migration_box_file set outcome = 'OK'
+where end_time is not null and status like '%Box upload successful for file%';
+update migration_box_file set outcome = 'ERROR'
+where end_time is not null and outcome is null;
+
+update migration_email_message set outcome = 'OK'
+where end_time is not null and status like '%"item_Status":"OK"%';
+update migration_email_message set outcome = 'PARTIAL'
+where end_time is not null and status like '%"item_Status":"PARTIAL"%';
+update migration_email_message set outcome = 'ERROR'
+where end_time is not null and outcome is null;
+
+commit;
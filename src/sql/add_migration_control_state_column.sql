@@ -0,0 +1,4 @@
+-- upgrade existing CPM databases for pausing, resuming and cancelling migrations
+-- null while running, 'paused' or 'cancelled'
+
+alter table migration add (control_state VARCHAR(20));
@@ -0,0 +1,8 @@
+-- upgrade existing CPM databases for reclaiming expired migration items
+-- attempt_count is the number of times an item was claimed; run after add_migration_item_lease_columns.sql
+
+alter table migration_box_file add (
+attempt_count NUMBER(10) DEFAULT 0);
+
+alter table migration_email_message add (
+attempt_count NUMBER(10) DEFAULT 0);
@@ -0,0 +1,16 @@
+-- upgrade existing CPM databases for tracking migration completion with item counters
+-- item_count is the number of Box file or message items queued for the migration,
+-- finished_item_count the number of those with an end time
+
+alter table migration add (
+item_count NUMBER(10) DEFAULT 0,
+finished_item_count NUMBER(10) DEFAULT 0);
+
+-- backfill the counters of existing migrations; run while no migration is being queued
+update migration m set
+item_count = (select count(*) from migration_box_file f where f.migration_id = m.migration_id)
+ + (select count(*) from migration_email_message e where e.migration_id = m.migration_id),
+finished_item_count = (select count(*) from migration_box_file f where f.migration_id = m.migration_id and f.end_time is not null)
+ + (select count(*) from migration_email_message e where e.migration_id = m.migration_id and e.end_time is not null);
+
+commit;
@@ -0,0 +1,5 @@
+-- upgrade existing CPM databases for measuring the throughput of the migration ETA
+-- without a full scan of the item tables
+
+create index migration_box_file_finished on migration_box_file (end_time);
+create index migration_email_message_finished on migration_email_message (end_time);
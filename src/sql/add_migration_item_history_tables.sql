@@ -0,0 +1,73 @@
+-- upgrade existing CPM databases for archiving the items of finished migrations
+-- archive_time is set once the Box file and message items of the migration are moved to the history tables
+
+alter table migration add (
+archive_time TIMESTAMP);
+
+-- the items of migrations finished for the archive age, moved out of the tables above
+create table migration_box_file_history (
+id VARCHAR(99) NOT NULL,
+migration_id VARCHAR(99) NOT NULL,
+user_id VARCHAR(99) NOT NULL,
+box_folder_id VARCHAR(99) NOT NULL,
+type VARCHAR(99) NOT NULL,
+title VARCHAR(256) NOT NULL,
+web_link_url VARCHAR(2000),
+file_access_url VARCHAR(2000) NOT NULL,
+description VARCHAR(2000),
+author VARCHAR(2000) NOT NULL,
+copyright_alert VARCHAR(2000),
+file_size number(10) NOT NULL,
+start_time TIMESTAMP,
+end_time TIMESTAMP,
+status CLOB,
+owner_node VARCHAR(99),
+lease_expiry TIMESTAMP,
+attempt_count NUMBER(10) DEFAULT 0,
+priority VARCHAR(20),
+next_attempt_time TIMESTAMP,
+last_error_code NUMBER(10),
+outcome VARCHAR(20),
+PRIMARY KEY (id));
+
+create index migration_box_file_history_mig on migration_box_file_history (migration_id, outcome);
+
+-- a message can be migrated again by a later migration of the site, so it is kept once per migration
+create table migration_email_message_history (
+message_id VARCHAR(150) NOT NULL,
+migration_id VARCHAR(99) NOT NULL,
+user_id VARCHAR(99) NOT NULL,
+google_group_id VARCHAR(99) NOT NULL,
+json CLOB NOT NULL,
+start_time TIMESTAMP,
+end_time TIMESTAMP,
+status CLOB,
+owner_node VARCHAR(99),
+lease_expiry TIMESTAMP,
+attempt_count NUMBER(10) DEFAULT 0,
+priority VARCHAR(20),
+outcome VARCHAR(20),
+PRIMARY KEY (migration_id, message_id));
+
+-- the items of a migration, whether archived or not, for reporting
+create view migration_box_file_all as
+select id, migration_id, user_id, box_folder_id, type, title, web_link_url, file_access_url, description, author,
+copyright_alert, file_size, start_time, end_time, status, outcome, owner_node, lease_expiry, attempt_count,
+next_attempt_time, last_error_code, priority
+from migration_box_file
+union all
+select id, migration_id, user_id, box_folder_id, type, title, web_link_url, file_access_url, description, author,
+copyright_alert, file_size, start_time, end_time, status, outcome, owner_node, lease_expiry, attempt_count,
+next_attempt_time, last_error_code, priority
+from migration_box_file_history;
+
+create view migration_email_message_all as
+select message_id, migration_id, user_id, google_group_id, json, start_time, end_time, status, outcome,
+owner_node, lease_expiry, attempt_count, priority
+from migration_email_message
+union all
+select message_id, migration_id, user_id, google_group_id, json, start_time, end_time, status, outcome,
+owner_node, lease_expiry, attempt_count, priority
+from migration_email_message_history;
+
+commit;
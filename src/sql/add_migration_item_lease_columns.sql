@@ -0,0 +1,10 @@
+-- upgrade existing CPM databases for claiming migration items per node
+-- owner_node is the id of the instance holding the claim on the item, lease_expiry the time the claim lapses
+
+alter table migration_box_file add (
+owner_node VARCHAR(99),
+lease_expiry TIMESTAMP);
+
+alter table migration_email_message add (
+owner_node VARCHAR(99),
+lease_expiry TIMESTAMP);
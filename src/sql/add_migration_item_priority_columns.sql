@@ -0,0 +1,24 @@
+-- upgrade existing CPM databases for the interactive and bulk priority lanes of migration items
+-- run after add_migration_item_attempt_count_columns.sql
+
+alter table migration add (priority VARCHAR(20));
+
+alter table migration_box_file add (
+priority VARCHAR(20));
+
+alter table migration_email_message add (
+priority VARCHAR(20));
+
+-- migrations queued by bulk upload are in the bulk lane, all others are interactive
+update migration
+set priority = case when bulk_migration_id is null then 'interactive' else 'bulk' end;
+
+update migration_box_file f
+set priority = (select m.priority from migration m where m.migration_id = f.migration_id);
+
+update migration_email_message e
+set priority = (select m.priority from migration m where m.migration_id = e.migration_id);
+commit;
+
+-- pending files are fetched by start_time is null, smallest file first
+create index migration_box_file_pending on migration_box_file (start_time, file_size);
@@ -0,0 +1,11 @@
+-- upgrade existing CPM databases for leader election among CPM instances
+-- the leader reclaims expired item claims and aggregates the status of finished migrations
+
+create table migration_leader_lease (
+lease_name VARCHAR(99) NOT NULL,
+owner_node VARCHAR(99),
+lease_expiry TIMESTAMP,
+PRIMARY KEY (lease_name));
+
+insert into migration_leader_lease (lease_name) values ('migration_processing');
+commit;
@@ -0,0 +1,22 @@
+-- upgrade existing CPM databases for looking up the migrations of a user by an index
+-- migration_owner holds one row per user listed in the comma separated migrated_by field of a migration:
+-- the login id for addresses in the umich.edu domain, the address otherwise
+
+create table migration_owner (
+migration_id VARCHAR(99) NOT NULL,
+user_id VARCHAR(99) NOT NULL,
+PRIMARY KEY (migration_id, user_id));
+
+create index migration_owner_user on migration_owner (user_id, migration_id);
+
+-- backfill the owners of existing migrations; run before the new version takes requests
+insert into migration_owner (migration_id, user_id)
+select distinct migration_id, user_id from (
+select m.migration_id,
+regexp_replace(trim(regexp_substr(m.migrated_by, '[^,]+', 1, n.i)), '@umich\.edu$', '', 1, 0, 'i') user_id
+from migration m,
+(select level i from dual connect by level <= 500) n
+where n.i <= regexp_count(m.migrated_by, '[^,]+'))
+where user_id is not null;
+
+commit;
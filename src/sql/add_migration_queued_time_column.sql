@@ -0,0 +1,9 @@
+-- upgrade existing CPM databases for keeping migrations out of finalization while their items are being queued
+-- queued_time is set when the site walk has queued all items of the migration, null before
+
+alter table migration add (queued_time TIMESTAMP);
+
+-- existing migrations are fully queued; run while no migration is being queued
+update migration set queued_time = start_time where queued_time is null;
+
+commit;
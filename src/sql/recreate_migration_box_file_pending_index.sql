@@ -0,0 +1,6 @@
+-- upgrade existing CPM databases for ranking pending Box files per migration from the index,
+-- instead of sorting all pending files at each processing pass
+-- run after add_migration_item_priority_columns.sql
+
+drop index migration_box_file_pending;
+create index migration_box_file_pending on migration_box_file (start_time, migration_id, file_size, id);
@@ -0,0 +1,83 @@
+package junit.edu.umich.its.cpmtest;
+
+import edu.umich.its.cpm.AdaptiveConcurrencyLimit;
+import org.junit.*;
+
+import static org.junit.Assert.assertEquals;
+
+public class AdaptiveConcurrencyLimitTest {
+
+	// limit with a controllable clock
+	private static class TestLimit extends AdaptiveConcurrencyLimit {
+		long now = 100000L;
+
+		TestLimit(int min, int max, int initial) {
+			super("test", min, max, initial, 0.5, 1000L, 10000L);
+		}
+
+		@Override
+		protected long currentTimeMillis() {
+			return now;
+		}
+	}
+
+	@Test
+	public void testInitialLimitWithinBounds() {
+		assertEquals(10, new TestLimit(1, 10, 50).getLimit());
+		assertEquals(2, new TestLimit(2, 10, 0).getLimit());
+	}
+
+	@Test
+	public void testAdditiveIncreaseAfterWindowOfSuccesses() {
+		TestLimit limit = new TestLimit(1, 10, 4);
+		for (int i = 0; i < 3; i++) {
+			limit.onSuccess(10);
+		}
+		assertEquals(4, limit.getLimit());
+		// the increments shrink as the limit grows, so a window takes slightly more than limit successes
+		limit.onSuccess(10);
+		limit.onSuccess(10);
+		assertEquals(5, limit.getLimit());
+	}
+
+	@Test
+	public void testIncreaseStopsAtMax() {
+		TestLimit limit = new TestLimit(1, 5, 5);
+		for (int i = 0; i < 100; i++) {
+			limit.onSuccess(10);
+		}
+		assertEquals(5, limit.getLimit());
+	}
+
+	@Test
+	public void testMultiplicativeDecreaseOnOverload() {
+		TestLimit limit = new TestLimit(1, 20, 16);
+		limit.onOverload();
+		assertEquals(8, limit.getLimit());
+	}
+
+	@Test
+	public void testOneDecreasePerCooldown() {
+		TestLimit limit = new TestLimit(1, 20, 16);
+		limit.onOverload();
+		limit.onOverload();
+		assertEquals(8, limit.getLimit());
+		limit.now += 10000L;
+		limit.onOverload();
+		assertEquals(4, limit.getLimit());
+	}
+
+	@Test
+	public void testSlowResponseDecreases() {
+		TestLimit limit = new TestLimit(1, 20, 16);
+		limit.onSuccess(5000);
+		assertEquals(8, limit.getLimit());
+	}
+
+	@Test
+	public void testDecreaseStopsAtMin() {
+		TestLimit limit = new TestLimit(3, 20, 4);
+		limit.onOverload();
+		assertEquals(3, limit.getLimit());
+	}
+}
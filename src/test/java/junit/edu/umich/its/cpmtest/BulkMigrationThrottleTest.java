@@ -0,0 +1,88 @@
+package junit.edu.umich.its.cpmtest;
+
+import edu.umich.its.cpm.BulkMigrationThrottle;
+import org.junit.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BulkMigrationThrottleTest {
+
+	@Test
+	public void testNoWindowsAlwaysOpen() {
+		BulkMigrationThrottle throttle = new BulkMigrationThrottle(null, 0, 0);
+		assertTrue(throttle.isOpen(0));
+		assertTrue(throttle.isOpen(12 * 60));
+	}
+
+	@Test
+	public void testWindowWithinDay() {
+		BulkMigrationThrottle throttle = new BulkMigrationThrottle("12:00-13:30", 0, 0);
+		assertFalse(throttle.isOpen(11 * 60 + 59));
+		assertTrue(throttle.isOpen(12 * 60));
+		assertTrue(throttle.isOpen(13 * 60 + 29));
+		assertFalse(throttle.isOpen(13 * 60 + 30));
+	}
+
+	@Test
+	public void testWindowPastMidnight() {
+		BulkMigrationThrottle throttle = new BulkMigrationThrottle("22:00-06:00, 12:00-13:00", 0, 0);
+		assertTrue(throttle.isOpen(23 * 60));
+		assertTrue(throttle.isOpen(5 * 60));
+		assertTrue(throttle.isOpen(12 * 60 + 30));
+		assertFalse(throttle.isOpen(6 * 60));
+		assertFalse(throttle.isOpen(21 * 60));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidWindow() {
+		new BulkMigrationThrottle("22:00", 0, 0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidTime() {
+		new BulkMigrationThrottle("25:00-26:00", 0, 0);
+	}
+
+	@Test
+	public void testConcurrentItems() {
+		BulkMigrationThrottle throttle = new BulkMigrationThrottle("", 2, 0);
+		assertTrue(throttle.hasFreeSlot(1));
+		assertFalse(throttle.hasFreeSlot(2));
+		assertTrue(new BulkMigrationThrottle("", 0, 0).hasFreeSlot(1000));
+	}
+
+	@Test
+	public void testByteRate() {
+		BulkMigrationThrottle throttle = new BulkMigrationThrottle("", 0, 1000);
+		// a full bucket admits an item larger than the rate, and is overdrawn
+		assertTrue(throttle.tryConsume(1500, 0));
+		assertFalse(throttle.tryConsume(10, 0));
+		// half a second repays half of the debt
+		assertFalse(throttle.tryConsume(10, 500));
+		assertTrue(throttle.tryConsume(10, 1001));
+	}
+
+	@Test
+	public void testRefundOfItemNotStarted() {
+		BulkMigrationThrottle throttle = new BulkMigrationThrottle("", 0, 1000);
+		assertTrue(throttle.tryConsume(1500, 0));
+		assertFalse(throttle.tryConsume(10, 0));
+		// the item was claimed by another node
+		throttle.refund(1500);
+		assertTrue(throttle.tryConsume(10, 0));
+		// never more than a full bucket
+		throttle.refund(5000);
+		assertTrue(throttle.tryConsume(1000, 0));
+		assertFalse(throttle.tryConsume(10, 0));
+	}
+
+	@Test
+	public void testSettings() {
+		BulkMigrationThrottle throttle = new BulkMigrationThrottle(" 22:00-06:00 ", 5, 1000);
+		assertTrue(throttle.hasSettings("22:00-06:00", 5, 1000));
+		assertFalse(throttle.hasSettings("22:00-06:00", 5, 2000));
+		assertEquals("22:00-06:00", throttle.getTimeWindows());
+	}
+}
@@ -0,0 +1,86 @@
+package junit.edu.umich.its.cpmtest;
+
+import edu.umich.its.cpm.ByteBudget;
+import org.junit.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ByteBudgetTest {
+
+	private ByteBudget budget;
+
+	@Before
+	public void setUp() throws Exception {
+		budget = new ByteBudget(1000L);
+	}
+
+	@Test
+	public void testReserveWithinBudget() {
+		assertTrue(budget.tryAcquire(600L));
+		assertTrue(budget.tryAcquire(400L));
+		assertFalse(budget.tryAcquire(1L));
+		assertEquals(1000L, budget.getUsed());
+	}
+
+	@Test
+	public void testReleaseMakesRoom() {
+		assertTrue(budget.tryAcquire(800L));
+		assertFalse(budget.tryAcquire(300L));
+		budget.release(800L);
+		assertTrue(budget.tryAcquire(300L));
+	}
+
+	@Test
+	public void testOversizedWorkRunsAlone() {
+		assertTrue(budget.tryAcquire(5000L));
+		assertFalse(budget.tryAcquire(1L));
+		budget.release(5000L);
+		assertEquals(0L, budget.getUsed());
+	}
+
+	@Test
+	public void testForcedBytesHoldBackNewWork() {
+		assertTrue(budget.tryAcquire(500L));
+		budget.forceAcquire(900L);
+		assertEquals(1400L, budget.getUsed());
+		assertFalse(budget.tryAcquire(1L));
+		budget.release(900L);
+		assertTrue(budget.tryAcquire(500L));
+	}
+
+	@Test
+	public void testAcquireWaitsForRelease() throws Exception {
+		assertTrue(budget.tryAcquire(800L));
+		Thread waiter = new Thread(new Runnable() {
+			public void run() {
+				try {
+					budget.acquire(500L);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		waiter.start();
+		while (budget.getWaiting() == 0) {
+			Thread.sleep(10);
+		}
+		// queued work goes before new work
+		assertFalse(budget.tryAcquire(100L));
+		budget.release(800L);
+		waiter.join(5000L);
+		assertEquals(500L, budget.getUsed());
+		assertEquals(0, budget.getWaiting());
+	}
+
+	@Test
+	public void testAcquireGivesUpAfterTimeout() throws Exception {
+		assertTrue(budget.tryAcquire(800L));
+		assertFalse(budget.acquire(500L, 50L));
+		assertEquals(800L, budget.getUsed());
+		assertEquals(0, budget.getWaiting());
+		assertTrue(budget.acquire(200L, 50L));
+		assertEquals(1000L, budget.getUsed());
+	}
+}
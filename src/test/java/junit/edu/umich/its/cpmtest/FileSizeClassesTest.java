@@ -0,0 +1,59 @@
+package junit.edu.umich.its.cpmtest;
+
+import edu.umich.its.cpm.FileSizeClasses;
+import org.junit.*;
+
+import static org.junit.Assert.assertEquals;
+
+public class FileSizeClassesTest {
+
+	private static final long MB = 1024L * 1024L;
+
+	@Test
+	public void testNoClassesIsOneClassWithoutLimit() {
+		FileSizeClasses classes = new FileSizeClasses(null);
+		assertEquals(1, classes.size());
+		assertEquals(0, classes.getSizeClass(5000L * MB));
+		assertEquals(7, classes.getFreeSlots(0, 100, 7));
+	}
+
+	@Test
+	public void testClassOfFileSize() {
+		FileSizeClasses classes = new FileSizeClasses("10M:16, 1G:4, *:1");
+		assertEquals(3, classes.size());
+		assertEquals(0, classes.getSizeClass(0L));
+		assertEquals(0, classes.getSizeClass(10 * MB - 1));
+		assertEquals(1, classes.getSizeClass(10 * MB));
+		assertEquals(2, classes.getSizeClass(4096 * MB));
+		assertEquals(10 * MB, classes.getMinSize(1));
+		assertEquals(1024 * MB, classes.getMaxSize(1));
+		assertEquals(Long.MAX_VALUE, classes.getMaxSize(2));
+	}
+
+	@Test
+	public void testImplicitLastClassWithoutLimit() {
+		FileSizeClasses classes = new FileSizeClasses("1048576:8");
+		assertEquals(2, classes.size());
+		assertEquals(8, classes.getLimit(0));
+		assertEquals(0, classes.getLimit(1));
+		assertEquals(1, classes.getSizeClass(MB));
+	}
+
+	@Test
+	public void testFreeSlotsWithinClassLimit() {
+		FileSizeClasses classes = new FileSizeClasses("10M:16,*:2");
+		assertEquals(10, classes.getFreeSlots(0, 4, 10));
+		assertEquals(1, classes.getFreeSlots(1, 1, 10));
+		assertEquals(0, classes.getFreeSlots(1, 3, 10));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testClassesNotAscending() {
+		new FileSizeClasses("1G:4,10M:16");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBadLimit() {
+		new FileSizeClasses("10M:many");
+	}
+}
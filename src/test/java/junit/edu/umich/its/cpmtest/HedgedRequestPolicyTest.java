@@ -0,0 +1,82 @@
+package junit.edu.umich.its.cpmtest;
+
+import edu.umich.its.cpm.HedgedRequestPolicy;
+import org.junit.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HedgedRequestPolicyTest {
+
+	private HedgedRequestPolicy policy;
+
+	@Before
+	public void setUp() throws Exception {
+		policy = new HedgedRequestPolicy(100, 20, 95, 0.05, 10L);
+	}
+
+	private void recordLatencies(int from, int to) {
+		for (int latency = from; latency <= to; latency++) {
+			policy.record(latency, false, false);
+		}
+	}
+
+	@Test
+	public void testNoHedgingWithoutEnoughSamples() {
+		recordLatencies(1, 19);
+		assertEquals(-1L, policy.getHedgeDelayMillis());
+	}
+
+	@Test
+	public void testHedgeAfterPercentileLatency() {
+		recordLatencies(1, 100);
+		assertEquals(95L, policy.getHedgeDelayMillis());
+	}
+
+	@Test
+	public void testHedgeDelayAtLeastMinDelay() {
+		recordLatencies(1, 5);
+		recordLatencies(1, 5);
+		recordLatencies(1, 5);
+		recordLatencies(1, 5);
+		assertEquals(10L, policy.getHedgeDelayMillis());
+	}
+
+	@Test
+	public void testWindowForgetsOldLatencies() {
+		recordLatencies(1000, 1099);
+		recordLatencies(1, 100);
+		assertEquals(95L, policy.getHedgeDelayMillis());
+	}
+
+	@Test
+	public void testHedgesCappedAtRatio() {
+		recordLatencies(1, 100);
+		// 5% of 100 requests
+		for (int i = 0; i < 5; i++) {
+			assertTrue(policy.tryHedge());
+		}
+		assertFalse(policy.tryHedge());
+	}
+
+	@Test
+	public void testHedgesCounted() {
+		recordLatencies(1, 100);
+		assertTrue(policy.tryHedge());
+		policy.record(50, true, true);
+		assertTrue(policy.tryHedge());
+		policy.record(50, true, false);
+		assertEquals(102L, policy.getTotalRequests());
+		assertEquals(2L, policy.getTotalHedges());
+		assertEquals(1L, policy.getTotalHedgeWins());
+	}
+
+	@Test
+	public void testDisabledWithZeroRatio() {
+		policy = new HedgedRequestPolicy(100, 20, 95, 0, 10L);
+		recordLatencies(1, 100);
+		assertEquals(-1L, policy.getHedgeDelayMillis());
+		assertFalse(policy.tryHedge());
+	}
+}
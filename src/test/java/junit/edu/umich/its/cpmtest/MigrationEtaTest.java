@@ -0,0 +1,42 @@
+package junit.edu.umich.its.cpmtest;
+
+import edu.umich.its.cpm.MigrationEta;
+import org.junit.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class MigrationEtaTest {
+
+	private List<Long> others = Arrays.asList(100L, 300L, 2000L);
+
+	@Test
+	public void testAloneAtObservedThroughput() {
+		assertEquals(5000L, MigrationEta.estimateMillis(500L, Collections.<Long>emptyList(), true, 100.0));
+	}
+
+	@Test
+	public void testShortestFirstWaitsForSmallerMigrations() {
+		// 100 + 300 ahead of 500
+		assertEquals(9000L, MigrationEta.estimateMillis(500L, others, true, 100.0));
+	}
+
+	@Test
+	public void testFairSharingWithEveryMigration() {
+		// 100 + 300 + 500 of the larger one alongside 500
+		assertEquals(14000L, MigrationEta.estimateMillis(500L, others, false, 100.0));
+	}
+
+	@Test
+	public void testFinishedMigration() {
+		assertEquals(0L, MigrationEta.estimateMillis(0L, others, true, 100.0));
+	}
+
+	@Test
+	public void testUnknownWithoutThroughput() {
+		assertEquals(MigrationEta.UNKNOWN, MigrationEta.estimateMillis(500L, others, true, 0));
+	}
+}
@@ -0,0 +1,74 @@
+package junit.edu.umich.its.cpmtest;
+
+import edu.umich.its.cpm.MigrationItemScheduler;
+import org.junit.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class MigrationItemSchedulerTest {
+
+	// test items in the form of "user/migration/item", with optional "/bulk" lane suffix
+	private MigrationItemScheduler<String> scheduler;
+
+	@Before
+	public void setUp() throws Exception {
+		scheduler = new MigrationItemScheduler<String>(new MigrationItemScheduler.ItemKey<String>() {
+			public String getUserId(String item) {
+				return item.split("/")[0];
+			}
+
+			public String getMigrationId(String item) {
+				return item.split("/")[1];
+			}
+
+			public String getPriority(String item) {
+				return item.endsWith("/bulk") ? "bulk" : "interactive";
+			}
+		});
+	}
+
+	@Test
+	public void testEmptyCandidates() {
+		assertEquals(0, scheduler.order(new ArrayList<String>()).size());
+	}
+
+	@Test
+	public void testSingleMigrationKeepsOrder() {
+		List<String> candidates = Arrays.asList("u1/m1/a", "u1/m1/b", "u1/m1/c");
+		assertEquals(candidates, scheduler.order(candidates));
+	}
+
+	@Test
+	public void testBulkDoesNotStarveInteractiveUser() {
+		List<String> candidates = Arrays.asList("bulk/m1/a", "bulk/m1/b", "bulk/m2/c", "bulk/m2/d", "user/m3/e");
+		List<String> ordered = scheduler.order(candidates);
+		// the interactive user gets the second slot, not the last one
+		assertEquals(Arrays.asList("bulk/m1/a", "user/m3/e", "bulk/m2/c", "bulk/m1/b", "bulk/m2/d"), ordered);
+	}
+
+	@Test
+	public void testRotationContinuesAfterServedUser() {
+		List<String> candidates = Arrays.asList("u1/m1/a", "u2/m2/b", "u3/m3/c");
+		scheduler.served("u1/m1/a");
+		assertEquals(Arrays.asList("u2/m2/b", "u3/m3/c", "u1/m1/a"), scheduler.order(candidates));
+		scheduler.served("u3/m3/c");
+		assertEquals(Arrays.asList("u1/m1/a", "u2/m2/b", "u3/m3/c"), scheduler.order(candidates));
+	}
+
+	@Test
+	public void testRotationAcrossMigrationsOfSameUser() {
+		List<String> candidates = Arrays.asList("u1/m1/a", "u1/m1/b", "u1/m2/c");
+		scheduler.served("u1/m1/x");
+		assertEquals(Arrays.asList("u1/m2/c", "u1/m1/a", "u1/m1/b"), scheduler.order(candidates));
+	}
+
+	@Test
+	public void testInteractiveLaneFirst() {
+		List<String> candidates = Arrays.asList("admin/m1/a/bulk", "admin/m2/b/bulk", "u1/m3/c", "u2/m4/d");
+		assertEquals(Arrays.asList("u1/m3/c", "u2/m4/d", "admin/m1/a/bulk", "admin/m2/b/bulk"), scheduler.order(candidates));
+	}
+}
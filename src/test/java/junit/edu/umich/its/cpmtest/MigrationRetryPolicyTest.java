@@ -0,0 +1,57 @@
+package junit.edu.umich.its.cpmtest;
+
+import edu.umich.its.cpm.MigrationRetryPolicy;
+import org.junit.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MigrationRetryPolicyTest {
+
+	private MigrationRetryPolicy policy = new MigrationRetryPolicy(1000L, 10000L, 3);
+
+	@Test
+	public void testTransientErrorsAreRetryable() {
+		assertTrue(MigrationRetryPolicy.isRetryable(MigrationRetryPolicy.NO_RESPONSE));
+		assertTrue(MigrationRetryPolicy.isRetryable(401));
+		assertTrue(MigrationRetryPolicy.isRetryable(408));
+		assertTrue(MigrationRetryPolicy.isRetryable(429));
+		assertTrue(MigrationRetryPolicy.isRetryable(500));
+		assertTrue(MigrationRetryPolicy.isRetryable(503));
+	}
+
+	@Test
+	public void testClientErrorsAreNotRetryable() {
+		assertFalse(MigrationRetryPolicy.isRetryable(400));
+		assertFalse(MigrationRetryPolicy.isRetryable(403));
+		assertFalse(MigrationRetryPolicy.isRetryable(404));
+		assertFalse(MigrationRetryPolicy.isRetryable(409));
+	}
+
+	@Test
+	public void testDeadLetterAfterMaxAttempts() {
+		assertTrue(policy.canRetry(1));
+		assertTrue(policy.canRetry(2));
+		assertFalse(policy.canRetry(3));
+	}
+
+	@Test
+	public void testBackoffDoubles() {
+		assertEquals(1000L, policy.getBackoffMillis(1, 1.0));
+		assertEquals(2000L, policy.getBackoffMillis(2, 1.0));
+		assertEquals(4000L, policy.getBackoffMillis(3, 1.0));
+	}
+
+	@Test
+	public void testBackoffCappedAtMaxDelay() {
+		assertEquals(10000L, policy.getBackoffMillis(10, 1.0));
+		assertEquals(10000L, policy.getBackoffMillis(100, 1.0));
+	}
+
+	@Test
+	public void testHalfOfBackoffIsJitter() {
+		assertEquals(2000L, policy.getBackoffMillis(3, 0));
+		assertEquals(3000L, policy.getBackoffMillis(3, 0.5));
+	}
+}
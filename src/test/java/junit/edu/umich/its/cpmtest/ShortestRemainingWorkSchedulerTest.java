@@ -0,0 +1,99 @@
+package junit.edu.umich.its.cpmtest;
+
+import edu.umich.its.cpm.MigrationItemScheduler;
+import edu.umich.its.cpm.ShortestRemainingWorkScheduler;
+import org.junit.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class ShortestRemainingWorkSchedulerTest {
+
+	// scheduler with a controllable clock
+	private static class TestScheduler extends ShortestRemainingWorkScheduler<String> {
+		long now = 100000L;
+
+		TestScheduler(long maxWaitMillis) {
+			super(new MigrationItemScheduler.ItemKey<String>() {
+				public String getUserId(String item) {
+					return item.split("/")[0];
+				}
+
+				public String getMigrationId(String item) {
+					return item.split("/")[1];
+				}
+
+				public String getPriority(String item) {
+					return item.endsWith("/bulk") ? "bulk" : "interactive";
+				}
+			}, maxWaitMillis);
+		}
+
+		@Override
+		protected long currentTimeMillis() {
+			return now;
+		}
+	}
+
+	// test items in the form of "user/migration/item", with optional "/bulk" lane suffix
+	private TestScheduler scheduler;
+
+	private Map<String, Long> remainingWork;
+
+	@Before
+	public void setUp() throws Exception {
+		scheduler = new TestScheduler(60000L);
+		remainingWork = new HashMap<String, Long>();
+		remainingWork.put("m1", 5000L);
+		remainingWork.put("m2", 100L);
+		remainingWork.put("m3", 800L);
+	}
+
+	@Test
+	public void testLeastRemainingWorkFirst() {
+		List<String> ordered = scheduler.order(Arrays.asList("a/m1/1", "a/m1/2", "b/m2/1", "c/m3/1"), remainingWork);
+		assertEquals(Arrays.asList("b/m2/1", "c/m3/1", "a/m1/1", "a/m1/2"), ordered);
+	}
+
+	@Test
+	public void testUnknownRemainingWorkLast() {
+		List<String> ordered = scheduler.order(Arrays.asList("a/m9/1", "a/m1/1"), remainingWork);
+		assertEquals(Arrays.asList("a/m1/1", "a/m9/1"), ordered);
+	}
+
+	@Test
+	public void testInteractiveLaneFirst() {
+		List<String> ordered = scheduler.order(Arrays.asList("b/m2/1/bulk", "a/m1/1"), remainingWork);
+		assertEquals(Arrays.asList("a/m1/1", "b/m2/1/bulk"), ordered);
+	}
+
+	@Test
+	public void testWaitingMigrationIsAgedAhead() {
+		List<String> candidates = Arrays.asList("a/m1/1", "b/m2/1");
+		scheduler.order(candidates, remainingWork);
+		scheduler.served("b/m2/1");
+		scheduler.now += 30000L;
+		assertEquals(Arrays.asList("b/m2/1", "a/m1/1"), scheduler.order(candidates, remainingWork));
+		scheduler.served("b/m2/1");
+		// m1 has not been served for the max wait
+		scheduler.now += 30000L;
+		assertEquals(Arrays.asList("a/m1/1", "b/m2/1"), scheduler.order(candidates, remainingWork));
+		scheduler.served("a/m1/1");
+		assertEquals(Arrays.asList("b/m2/1", "a/m1/1"), scheduler.order(candidates, remainingWork));
+	}
+
+	@Test
+	public void testFinishedMigrationIsForgotten() {
+		scheduler.order(Arrays.asList("a/m1/1", "b/m2/1"), remainingWork);
+		// m1 has no pending items for a while, then comes back with a new wait
+		scheduler.now += 30000L;
+		scheduler.order(Arrays.asList("b/m2/1"), remainingWork);
+		scheduler.served("b/m2/1");
+		scheduler.now += 40000L;
+		assertEquals(Arrays.asList("b/m2/1", "a/m1/1"), scheduler.order(Arrays.asList("a/m1/1", "b/m2/1"), remainingWork));
+	}
+}
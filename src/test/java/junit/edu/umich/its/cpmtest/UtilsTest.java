@@ -3,10 +3,12 @@ package junit.edu.umich.its.cpmtest;
 import edu.umich.its.cpm.Utils;
 import org.junit.*;
 
+import java.util.Arrays;
 import java.util.HashMap;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
 
 //import junit.framework.TestCase;
 
@@ -232,4 +234,16 @@ public class UtilsTest {
 
 	}
 
+	@Test
+	public void testGetMigrationOwnerIds() {
+		// the user starting the migration first, then site owners in the default domain or not
+		assertEquals(Arrays.asList("jsmith", "ann@gmail.com", "bob"),
+				Utils.getMigrationOwnerIds("jsmith@umich.edu,ann@gmail.com, bob@UMICH.EDU"));
+		// a plain login id is kept, and each owner listed once
+		assertEquals(Arrays.asList("jsmith"), Utils.getMigrationOwnerIds("jsmith,jsmith@umich.edu,"));
+		// no substring matches of other owners
+		assertEquals(Arrays.asList("ann", "joann"), Utils.getMigrationOwnerIds("ann@umich.edu,joann@umich.edu"));
+		assertTrue(Utils.getMigrationOwnerIds(null).isEmpty());
+	}
+
 }
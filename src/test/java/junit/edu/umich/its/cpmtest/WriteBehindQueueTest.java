@@ -0,0 +1,102 @@
+package junit.edu.umich.its.cpmtest;
+
+import java.util.Arrays;
+import java.util.List;
+
+import edu.umich.its.cpm.WriteBehindQueue;
+import org.junit.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WriteBehindQueueTest {
+
+	private WriteBehindQueue<String> queue;
+
+	@Before
+	public void setUp() throws Exception {
+		queue = new WriteBehindQueue<String>(3, 1000L, 6);
+	}
+
+	@Test
+	public void testNothingToWrite() {
+		assertEquals(-1L, queue.getFlushDelay(0L));
+		assertTrue(queue.drain().isEmpty());
+	}
+
+	@Test
+	public void testDueAfterMaxDelayOfOldestEntry() {
+		assertFalse(queue.add("a", 0L));
+		assertFalse(queue.add("b", 600L));
+		assertEquals(700L, queue.getFlushDelay(300L));
+		assertEquals(0L, queue.getFlushDelay(1000L));
+	}
+
+	@Test
+	public void testDueWhenBatchIsFull() {
+		queue.add("a", 0L);
+		queue.add("b", 0L);
+		assertTrue(queue.add("c", 0L));
+		assertEquals(0L, queue.getFlushDelay(0L));
+	}
+
+	@Test
+	public void testDrainOldestBatchFirst() {
+		for (String s : Arrays.asList("a", "b", "c", "d"))
+		{
+			queue.add(s, 0L);
+		}
+		assertEquals(Arrays.asList("a", "b", "c"), queue.drain());
+		assertEquals(1, queue.size());
+		assertEquals(Arrays.asList("d"), queue.drain());
+	}
+
+	@Test
+	public void testRequeueGoesAheadOfNewerEntries() {
+		queue.add("a", 0L);
+		queue.add("b", 0L);
+		List<String> batch = queue.drain();
+		queue.add("c", 500L);
+		queue.requeue(batch, 800L);
+		assertEquals(Arrays.asList("a", "b", "c"), queue.drain());
+	}
+
+	@Test
+	public void testBackoffAfterFailedWrite() {
+		for (String s : Arrays.asList("a", "b", "c", "d"))
+		{
+			queue.add(s, 0L);
+		}
+		// a whole batch is waiting, but the retry is held back
+		queue.requeue(queue.drain(), 0L);
+		assertEquals(1000L, queue.getFlushDelay(0L));
+		assertEquals(0L, queue.getFlushDelay(1000L));
+		// the backoff doubles with each failure in a row
+		queue.requeue(queue.drain(), 1000L);
+		assertEquals(2000L, queue.getFlushDelay(1000L));
+		queue.requeue(queue.drain(), 3000L);
+		assertEquals(4000L, queue.getFlushDelay(3000L));
+	}
+
+	@Test
+	public void testBackoffEndsOnWrite() {
+		queue.add("a", 0L);
+		queue.requeue(queue.drain(), 0L);
+		queue.written();
+		assertEquals(1000L, queue.getFlushDelay(0L));
+		queue.requeue(queue.drain(), 1000L);
+		assertEquals(1000L, queue.getFlushDelay(1000L));
+	}
+
+	@Test
+	public void testFullAtCapacity() {
+		for (String s : Arrays.asList("a", "b", "c", "d", "e"))
+		{
+			queue.add(s, 0L);
+		}
+		assertFalse(queue.isFull());
+		queue.add("f", 0L);
+		assertTrue(queue.isFull());
+	}
+}